@@ -0,0 +1,43 @@
+package moller.benchmark;
+
+/**
+ * One measured operation for the BenchmarkRunner, such as one call to
+ * UpdateManager.update. The parameters, for example "sprites=1000", tell
+ * runs of the same benchmark apart.
+ */
+public abstract class Benchmark {
+
+	private String name;
+	private String parameters;
+
+	public Benchmark(String name, String parameters) {
+		this.name = name;
+		this.parameters = parameters;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Builds what the operation needs. Not measured.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Frees what setUp built. Not measured.
+	 */
+	public void tearDown() throws Exception {
+	}
+
+	/**
+	 * Runs the operation the number of times. Returns a value computed from
+	 * the results, so the JIT can not leave out the work.
+	 */
+	public abstract long run(int operations) throws Exception;
+}
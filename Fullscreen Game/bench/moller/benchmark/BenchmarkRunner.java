@@ -0,0 +1,187 @@
+package moller.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs Benchmarks and prints one CSV line per benchmark:
+ *
+ * <pre>
+ * benchmark,parameters,nsPerOp,errorNsPerOp,minNsPerOp,opsPerIteration,baselineNsPerOp,changePercent
+ * </pre>
+ *
+ * Every benchmark is first warmed up, then measured in a number of
+ * iterations of about ITERATION_TIME each. nsPerOp is the mean of the
+ * iterations, errorNsPerOp their standard deviation and minNsPerOp the
+ * fastest one.
+ *
+ * The output of an earlier run, for example of another commit, can be given
+ * as a baseline. The last two columns then compare against it, and are
+ * empty otherwise.
+ */
+public class BenchmarkRunner {
+
+	public static final String HEADER = "benchmark,parameters,nsPerOp,errorNsPerOp,"
+			+ "minNsPerOp,opsPerIteration,baselineNsPerOp,changePercent";
+
+	private static final long ITERATION_TIME = 100000000;
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASURED_ITERATIONS = 10;
+
+	private int warmupIterations = WARMUP_ITERATIONS;
+	private int measuredIterations = MEASURED_ITERATIONS;
+	private long iterationTime = ITERATION_TIME;
+	private String filter;
+	private HashMap<String, Double> baseline = new HashMap<String, Double>();
+	private PrintWriter output;
+	private long blackhole;
+
+	/**
+	 * Reads the options:
+	 *
+	 * -filter TEXT only runs benchmarks whose name contains the text
+	 * -baseline FILE compares against the results in the file
+	 * -out FILE also writes the results to the file
+	 * -quick runs fewer and shorter iterations, for trying things out
+	 */
+	public BenchmarkRunner(String[] args) throws IOException {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-filter")) {
+				filter = args[++i];
+			} else if (args[i].equals("-baseline")) {
+				readBaseline(new File(args[++i]));
+			} else if (args[i].equals("-out")) {
+				output = new PrintWriter(new FileWriter(args[++i]));
+			} else if (args[i].equals("-quick")) {
+				warmupIterations = 2;
+				measuredIterations = 3;
+				iterationTime = ITERATION_TIME / 5;
+			} else {
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+	}
+
+	public void run(List<Benchmark> benchmarks) throws Exception {
+		print(HEADER);
+		try {
+			for (int i = 0; i < benchmarks.size(); i++) {
+				Benchmark benchmark = benchmarks.get(i);
+				if (filter == null || benchmark.getName().indexOf(filter) >= 0) {
+					run(benchmark);
+				}
+			}
+		} finally {
+			if (output != null) {
+				output.close();
+			}
+		}
+		// keeps the results alive, see Benchmark.run
+		if (blackhole == 42) {
+			System.err.println();
+		}
+	}
+
+	private void run(Benchmark benchmark) throws Exception {
+		benchmark.setUp();
+		try {
+			// the first calibration runs cold code, the second one is closer
+			calibrate(benchmark);
+			int operations = calibrate(benchmark);
+			for (int i = 0; i < warmupIterations; i++) {
+				time(benchmark, operations);
+			}
+			double[] nsPerOp = new double[measuredIterations];
+			for (int i = 0; i < measuredIterations; i++) {
+				nsPerOp[i] = (double) time(benchmark, operations) / operations;
+			}
+			report(benchmark, nsPerOp, operations);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	// finds how many operations take about one iteration time
+	private int calibrate(Benchmark benchmark) throws Exception {
+		int operations = 1;
+		while (true) {
+			long time = time(benchmark, operations);
+			if (time >= iterationTime / 10 || operations >= Integer.MAX_VALUE / 20) {
+				long scaled = operations * iterationTime / Math.max(time, 1);
+				return (int) Math.max(1, Math.min(scaled, Integer.MAX_VALUE));
+			}
+			operations *= 2;
+		}
+	}
+
+	private long time(Benchmark benchmark, int operations) throws Exception {
+		long start = System.nanoTime();
+		blackhole += benchmark.run(operations);
+		return System.nanoTime() - start;
+	}
+
+	private void report(Benchmark benchmark, double[] nsPerOp, int operations) {
+		double sum = 0;
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < nsPerOp.length; i++) {
+			sum += nsPerOp[i];
+			min = Math.min(min, nsPerOp[i]);
+		}
+		double mean = sum / nsPerOp.length;
+		double squares = 0;
+		for (int i = 0; i < nsPerOp.length; i++) {
+			squares += (nsPerOp[i] - mean) * (nsPerOp[i] - mean);
+		}
+		double error = Math.sqrt(squares / Math.max(nsPerOp.length - 1, 1));
+
+		String key = benchmark.getName() + "," + benchmark.getParameters();
+		StringBuilder line = new StringBuilder(key);
+		line.append(',').append(format(mean));
+		line.append(',').append(format(error));
+		line.append(',').append(format(min));
+		line.append(',').append(operations);
+		Double old = baseline.get(key);
+		if (old != null) {
+			line.append(',').append(format(old));
+			line.append(',').append(format((mean - old) * 100 / old));
+		} else {
+			line.append(",,");
+		}
+		print(line.toString());
+	}
+
+	private void print(String line) {
+		System.out.println(line);
+		if (output != null) {
+			output.println(line);
+			output.flush();
+		}
+	}
+
+	private void readBaseline(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split(",");
+				if (columns.length < 3 || line.equals(HEADER)) {
+					continue;
+				}
+				baseline.put(columns[0] + "," + columns[1], Double.valueOf(columns[2]));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+}
@@ -0,0 +1,468 @@
+package moller.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import moller.core.ResourceManager;
+import moller.game.CollisionManager;
+import moller.game.TileHit;
+import moller.game.UpdateManager;
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.Animation;
+import moller.sprites.Bullet;
+import moller.sprites.Creature;
+import moller.sprites.Enemy;
+import moller.sprites.Item;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+
+/**
+ * Benchmarks of the code that runs every frame, plus level loading, for a
+ * range of sprite counts and map sizes. See BenchmarkRunner for the options
+ * and the output, for example:
+ *
+ * java -Djava.awt.headless=true moller.benchmark.GameBenchmarks -out new.csv -baseline old.csv
+ *
+ * Run from the project folder, so the images are found.
+ */
+public class GameBenchmarks {
+
+	private static final int[] SPRITE_COUNTS = { 100, 1000, 10000 };
+	private static final int[] MAP_WIDTHS = { 100, 10000 };
+	private static final int[] LEVEL_WIDTHS = { 1000, 10000 };
+	private static final int[] ACTIVE_MAP_WIDTHS = { 1000, 10000, 100000 };
+	private static final int[][] SCREEN_SIZES = { { 800, 600 }, { 1920, 1080 } };
+	private static final int[] SCENE_COUNTS = { 1, 3, 16 };
+	private static final int[] GROUND_MAP_HEIGHTS = { 12, 256 };
+
+	private static final int SPRITES_PER_COLUMN = 2;
+	private static final int MAP_HEIGHT = 12;
+	private static final long TICK_TIME = 10;
+
+	public static void main(String[] args) throws Exception {
+		ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for (int i = 0; i < SPRITE_COUNTS.length; i++) {
+			benchmarks.add(new Update(SPRITE_COUNTS[i]));
+		}
+		for (int i = 0; i < ACTIVE_MAP_WIDTHS.length; i++) {
+			benchmarks.add(new ActiveUpdate(ACTIVE_MAP_WIDTHS[i]));
+		}
+		for (int i = 0; i < MAP_WIDTHS.length; i++) {
+			benchmarks.add(new TileCollision(MAP_WIDTHS[i]));
+		}
+		for (int i = 0; i < GROUND_MAP_HEIGHTS.length; i++) {
+			benchmarks.add(new FindGround(GROUND_MAP_HEIGHTS[i]));
+		}
+		for (int i = 0; i < SPRITE_COUNTS.length; i++) {
+			benchmarks.add(new SpriteCollision(SPRITE_COUNTS[i]));
+		}
+		for (int i = 0; i < SCREEN_SIZES.length; i++) {
+			for (int j = 0; j < SPRITE_COUNTS.length; j++) {
+				benchmarks.add(new Draw(SPRITE_COUNTS[j], SCREEN_SIZES[i][0],
+						SCREEN_SIZES[i][1], true));
+				benchmarks.add(new Draw(SPRITE_COUNTS[j], SCREEN_SIZES[i][0],
+						SCREEN_SIZES[i][1], false));
+			}
+		}
+		for (int i = 0; i < SCENE_COUNTS.length; i++) {
+			benchmarks.add(new AnimationUpdate(SCENE_COUNTS[i]));
+		}
+		for (int i = 0; i < LEVEL_WIDTHS.length; i++) {
+			benchmarks.add(new LoadLevel(LEVEL_WIDTHS[i]));
+		}
+		benchmarks.add(new LoadSpawnLevel(LevelLoadBenchmark.SPAWN_COUNT));
+		new BenchmarkRunner(args).run(benchmarks);
+	}
+
+	/**
+	 * Builds a map with a floor, a platform every 97 columns and the sprite
+	 * count split between blobs and coins. All blobs are awake.
+	 */
+	static TileMap createMap(int width, int spriteCount, long seed) {
+		Random random = new Random(seed);
+		TileMap map = new TileMap(width, MAP_HEIGHT);
+		BufferedImage tile = new BufferedImage(TileMapRenderer.TILE_SIZE,
+				TileMapRenderer.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = tile.createGraphics();
+		g.setColor(Color.GREEN);
+		g.fillRect(0, 0, tile.getWidth(), tile.getHeight() / 2);
+		g.dispose();
+		for (int x = 0; x < width; x++) {
+			map.setTile(x, MAP_HEIGHT - 1, tile);
+			if (x % 97 >= 20 && x % 97 < 30) {
+				map.setTile(x, MAP_HEIGHT - 5, tile);
+			}
+		}
+
+		Animation animation = SpriteCollisionBenchmark.createAnimation(32, 32);
+		int mapWidth = TileMapRenderer.tilesToPixels(width);
+		int floor = TileMapRenderer.tilesToPixels(MAP_HEIGHT - 1);
+		for (int i = 0; i < spriteCount; i++) {
+			Sprite sprite;
+			if (i % 2 == 0) {
+				sprite = new Enemy.Blob(animation, animation, animation, animation);
+			} else {
+				sprite = new Item.Coin(animation);
+			}
+			sprite.setX(random.nextInt(mapWidth - 64));
+			sprite.setY(random.nextInt(floor - 64));
+			sprite.savePreviousPosition();
+			map.addSprite(sprite);
+			if (sprite instanceof Creature) {
+				((Creature) sprite).wakeUp();
+			}
+		}
+
+		Player player = new Player(animation, animation, animation, animation);
+		player.setX(TileMapRenderer.tilesToPixels(ResourceManager.DEFAULT_STARTING_X));
+		player.setY(floor - player.getHeight());
+		player.savePreviousPosition();
+		map.setPlayer(player);
+		return map;
+	}
+
+	private static int mapWidthFor(int spriteCount) {
+		return Math.max(spriteCount / SPRITES_PER_COLUMN, 50);
+	}
+
+	/**
+	 * One tick of UpdateManager.update of every sprite in the map.
+	 */
+	private static class Update extends Benchmark {
+
+		private int spriteCount;
+		private UpdateManager updateManager;
+		private ArrayList<Bullet> bullets = new ArrayList<Bullet>();
+
+		public Update(int spriteCount) {
+			super("UpdateManager.update", "sprites=" + spriteCount + ";columns="
+					+ mapWidthFor(spriteCount));
+			this.spriteCount = spriteCount;
+		}
+
+		public void setUp() {
+			updateManager = new UpdateManager(createMap(mapWidthFor(spriteCount),
+					spriteCount, 42));
+			updateManager.setActivationMargin(UpdateManager.ACTIVATE_ALL);
+		}
+
+		public long run(int operations) {
+			for (int i = 0; i < operations; i++) {
+				updateManager.update(TICK_TIME, bullets);
+			}
+			return updateManager.getTileMap().getEntities().size();
+		}
+	}
+
+	/**
+	 * One tick of UpdateManager.update of the sprites around the screen, in
+	 * maps of the same density but different lengths.
+	 */
+	private static class ActiveUpdate extends Benchmark {
+
+		private int width;
+		private UpdateManager updateManager;
+		private ArrayList<Bullet> bullets = new ArrayList<Bullet>();
+
+		public ActiveUpdate(int width) {
+			super("UpdateManager.update", "columns=" + width + ";activation="
+					+ UpdateManager.DEFAULT_ACTIVATION_MARGIN);
+			this.width = width;
+		}
+
+		public void setUp() {
+			updateManager = new UpdateManager(createMap(width, width
+					* SPRITES_PER_COLUMN, 42));
+			updateManager.setScreenWidth(SCREEN_SIZES[0][0]);
+		}
+
+		public long run(int operations) {
+			for (int i = 0; i < operations; i++) {
+				updateManager.update(TICK_TIME, bullets);
+			}
+			return updateManager.getActiveCount();
+		}
+	}
+
+	/**
+	 * CollisionManager.getTileCollision for sprites falling and walking
+	 * across the map.
+	 */
+	private static class TileCollision extends Benchmark {
+
+		private static final int PROBES = 1024;
+
+		private int width;
+		private CollisionManager collisionManager;
+		private Sprite[] probes;
+		private TileHit hit = new TileHit();
+
+		public TileCollision(int width) {
+			super("CollisionManager.getTileCollision", "columns=" + width);
+			this.width = width;
+		}
+
+		public void setUp() {
+			TileMap map = createMap(width, 0, 42);
+			collisionManager = new CollisionManager(map);
+			Random random = new Random(7);
+			Animation animation = SpriteCollisionBenchmark.createAnimation(32, 32);
+			int mapWidth = TileMapRenderer.tilesToPixels(width);
+			int mapHeight = TileMapRenderer.tilesToPixels(MAP_HEIGHT);
+			probes = new Sprite[PROBES];
+			for (int i = 0; i < PROBES; i++) {
+				probes[i] = new Sprite(animation);
+				probes[i].setX((long) (mapWidth - 64) * i / PROBES);
+				probes[i].setY(random.nextInt(mapHeight - 64));
+			}
+		}
+
+		public long run(int operations) {
+			long hits = 0;
+			for (int i = 0; i < operations; i++) {
+				Sprite probe = probes[i & (PROBES - 1)];
+				// a move as far as a falling creature goes in one tick
+				if (collisionManager.getTileCollision(probe, probe.getX() + 5,
+						probe.getY() + 10, hit)) {
+					hits++;
+				}
+			}
+			return hits;
+		}
+	}
+
+	/**
+	 * TileMap.findSolidBelow from the top of every column of a map with a
+	 * floor and a platform every 97 columns, for short and tall maps.
+	 */
+	private static class FindGround extends Benchmark {
+
+		private static final int WIDTH = 1000;
+
+		private int height;
+		private TileMap map;
+
+		public FindGround(int height) {
+			super("TileMap.findSolidBelow", "rows=" + height);
+			this.height = height;
+		}
+
+		public void setUp() {
+			map = new TileMap(WIDTH, height);
+			BufferedImage tile = new BufferedImage(TileMapRenderer.TILE_SIZE,
+					TileMapRenderer.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+			for (int x = 0; x < WIDTH; x++) {
+				map.setTile(x, height - 1, tile);
+				if (x % 97 >= 20 && x % 97 < 30) {
+					map.setTile(x, height - 5, tile);
+				}
+			}
+		}
+
+		public long run(int operations) {
+			long rows = 0;
+			for (int i = 0; i < operations; i++) {
+				rows += map.findSolidBelow(i % WIDTH, 0);
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * CollisionManager.getSpriteCollision for sprites spread over the map.
+	 */
+	private static class SpriteCollision extends Benchmark {
+
+		private static final int PROBES = 1024;
+
+		private int spriteCount;
+		private CollisionManager collisionManager;
+		private Sprite[] probes;
+
+		public SpriteCollision(int spriteCount) {
+			super("CollisionManager.getSpriteCollision", "sprites=" + spriteCount
+					+ ";columns=" + mapWidthFor(spriteCount));
+			this.spriteCount = spriteCount;
+		}
+
+		public void setUp() {
+			int width = mapWidthFor(spriteCount);
+			collisionManager = new CollisionManager(createMap(width, spriteCount, 42));
+			Random random = new Random(7);
+			Animation animation = SpriteCollisionBenchmark.createAnimation(32, 32);
+			int mapWidth = TileMapRenderer.tilesToPixels(width);
+			int mapHeight = TileMapRenderer.tilesToPixels(MAP_HEIGHT);
+			probes = new Sprite[PROBES];
+			for (int i = 0; i < PROBES; i++) {
+				probes[i] = new Sprite(animation);
+				probes[i].setX((long) mapWidth * i / PROBES);
+				probes[i].setY(random.nextInt(mapHeight));
+			}
+		}
+
+		public long run(int operations) {
+			long hits = 0;
+			for (int i = 0; i < operations; i++) {
+				if (collisionManager.getSpriteCollision(probes[i & (PROBES - 1)]) != null) {
+					hits++;
+				}
+			}
+			return hits;
+		}
+	}
+
+	/**
+	 * One frame of TileMapRenderer.draw into an offscreen image, with the
+	 * camera moving along the map.
+	 */
+	private static class Draw extends Benchmark {
+
+		private int spriteCount;
+		private int screenWidth;
+		private int screenHeight;
+		private boolean chunkCache;
+		private TileMapRenderer renderer;
+		private BufferedImage screen;
+		private Graphics2D g;
+		private int maxX;
+
+		public Draw(int spriteCount, int screenWidth, int screenHeight,
+				boolean chunkCache) {
+			super("TileMapRenderer.draw", "sprites=" + spriteCount + ";columns="
+					+ mapWidthFor(spriteCount) + ";screen=" + screenWidth + "x"
+					+ screenHeight + ";chunkCache=" + chunkCache);
+			this.spriteCount = spriteCount;
+			this.screenWidth = screenWidth;
+			this.screenHeight = screenHeight;
+			this.chunkCache = chunkCache;
+		}
+
+		public void setUp() {
+			TileMap map = createMap(mapWidthFor(spriteCount), spriteCount, 42);
+			maxX = TileMapRenderer.tilesToPixels(map.getWidth());
+			renderer = new TileMapRenderer();
+			renderer.setTileMap(map);
+			renderer.setChunkCacheEnabled(chunkCache);
+			renderer.setScreenWidth(screenWidth);
+			renderer.setScreenHeight(screenHeight);
+			screen = new BufferedImage(screenWidth, screenHeight,
+					BufferedImage.TYPE_INT_RGB);
+			g = screen.createGraphics();
+		}
+
+		public void tearDown() {
+			g.dispose();
+		}
+
+		public long run(int operations) {
+			Sprite player = renderer.getTileMap().getPlayer();
+			for (int i = 0; i < operations; i++) {
+				player.setX((player.getX() + 7) % maxX);
+				player.savePreviousPosition();
+				renderer.draw(g);
+			}
+			return screen.getRGB(screenWidth / 2, screenHeight - 1);
+		}
+	}
+
+	/**
+	 * A sprite moving through an animation with a number of scenes of 100 ms
+	 * each, getting the image of every tick.
+	 */
+	private static class AnimationUpdate extends Benchmark {
+
+		private int sceneCount;
+		private Sprite sprite;
+
+		public AnimationUpdate(int sceneCount) {
+			super("Animation.update", "scenes=" + sceneCount);
+			this.sceneCount = sceneCount;
+		}
+
+		public void setUp() {
+			Animation animation = new Animation();
+			for (int i = 0; i < sceneCount; i++) {
+				animation.addScene(new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB),
+						100);
+			}
+			sprite = new Sprite(animation);
+		}
+
+		public long run(int operations) {
+			long hash = 0;
+			for (int i = 0; i < operations; i++) {
+				sprite.update(TICK_TIME);
+				hash += System.identityHashCode(sprite.getImage());
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * ResourceManager.loadLevel of a generated text level.
+	 */
+	private static class LoadLevel extends Benchmark {
+
+		private int width;
+		private ResourceManager resourceManager;
+		private File file;
+
+		public LoadLevel(int width) {
+			super("ResourceManager.loadLevel", "columns=" + width);
+			this.width = width;
+		}
+
+		public void setUp() throws Exception {
+			resourceManager = new ResourceManager(null);
+			file = new File(LevelLoadBenchmark.createTempFolder(), "Level" + width
+					+ ".txt");
+			LevelLoadBenchmark.writeLevel(file, width);
+		}
+
+		public long run(int operations) throws Exception {
+			long sprites = 0;
+			for (int i = 0; i < operations; i++) {
+				TileMap map = resourceManager.loadLevel(file.getPath());
+				sprites += map.getEntities().size();
+			}
+			return sprites;
+		}
+	}
+
+	/**
+	 * ResourceManager.loadLevel of a generated text level that spawns the
+	 * sprite count.
+	 */
+	private static class LoadSpawnLevel extends Benchmark {
+
+		private int spriteCount;
+		private ResourceManager resourceManager;
+		private File file;
+
+		public LoadSpawnLevel(int spriteCount) {
+			super("ResourceManager.loadLevel", "sprites=" + spriteCount);
+			this.spriteCount = spriteCount;
+		}
+
+		public void setUp() throws Exception {
+			resourceManager = new ResourceManager(null);
+			file = new File(LevelLoadBenchmark.createTempFolder(), "Spawn"
+					+ spriteCount + ".txt");
+			LevelLoadBenchmark.writeSpawnLevel(file, spriteCount);
+		}
+
+		public long run(int operations) throws Exception {
+			long sprites = 0;
+			for (int i = 0; i < operations; i++) {
+				TileMap map = resourceManager.loadLevel(file.getPath());
+				sprites += map.getEntities().size();
+			}
+			return sprites;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package moller.benchmark;
+
+import moller.core.ResourceManager;
+import moller.resource.ImageCache;
+
+/**
+ * Loads the images of the game with the default image cache budget and with
+ * a quarter of the bytes the default one ends up keeping, and checks that
+ * the cache keeps to its budget. Then lowers the budget of the first
+ * ResourceManager with setImageCacheBudget and checks that the cache
+ * forgets images right away and loads them again when asked. Exits with 1
+ * if a check fails.
+ *
+ * Run from the project folder, so the images are found, with:
+ * java -Djava.awt.headless=true moller.benchmark.ImageCacheBudgetCheck
+ */
+public class ImageCacheBudgetCheck {
+
+	private static final String IMAGE = "goal1.png";
+
+	public static void main(String[] args) {
+		ResourceManager full = new ResourceManager(null, false);
+		ImageCache fullCache = full.getImageCache();
+		print("default budget", fullCache);
+		check(fullCache.getBudget() == ImageCache.DEFAULT_BUDGET,
+				"the default budget is used");
+		check(fullCache.getEvictionCount() == 0, "nothing is evicted");
+
+		long budget = fullCache.getBytes() / 4;
+		ResourceManager small = new ResourceManager(null, false, budget);
+		ImageCache smallCache = small.getImageCache();
+		print(budget / 1024 + " KB budget", smallCache);
+		check(smallCache.getBudget() == budget, "the budget is used");
+		check(smallCache.getBytes() <= budget, "the cache keeps to its budget");
+		check(smallCache.getEvictionCount() > 0, "images are evicted");
+
+		full.setImageCacheBudget(0);
+		print("budget set to 0", fullCache);
+		check(full.getImageCacheBudget() == 0, "setImageCacheBudget sets the budget");
+		check(fullCache.getBytes() == 0, "all decoded images are evicted");
+		long misses = fullCache.getMissCount();
+		full.loadImage(IMAGE);
+		check(fullCache.getMissCount() == misses + 1, "an evicted image is loaded again");
+		full.setImageCacheBudget(ImageCache.DEFAULT_BUDGET);
+		full.loadImage(IMAGE);
+		check(fullCache.getMissCount() == misses + 1, "a kept image is not loaded again");
+		System.out.println("all checks passed");
+	}
+
+	private static void print(String name, ImageCache cache) {
+		System.out.println(name + ": " + cache.size() + " images, "
+				+ cache.getBytes() / 1024 + " KB, " + cache.getMissCount() + " misses, "
+				+ cache.getEvictionCount() + " evicted");
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			System.out.println("failed: " + what);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package moller.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import moller.core.LevelCompiler;
+import moller.core.ResourceManager;
+import moller.resource.LevelFile;
+import moller.resource.TileMap;
+
+/**
+ * Compares loading generated levels from text with loading them from plain
+ * and run-length encoded compiled files, and times loading a level that
+ * spawns SPAWN_COUNT sprites.
+ * 
+ * Run from the project folder, so the images are found, with:
+ * java -Djava.awt.headless=true moller.benchmark.LevelLoadBenchmark
+ */
+public class LevelLoadBenchmark {
+
+	private static final int[] WIDTHS = { 1000, 10000, 100000 };
+	private static final int HEIGHT = 16;
+	private static final int ROUNDS = 5;
+	static final int SPAWN_COUNT = 100000;
+	// the rows above the floor filled with sprites in a spawn level
+	private static final int SPAWN_ROWS = 8;
+	private static final String SPAWN_CHARS = "cbe";
+
+	public static void main(String[] args) throws IOException {
+		ResourceManager resourceManager = new ResourceManager(null);
+		File folder = createTempFolder();
+
+		System.out.println("columns,textBytes,textMs,compiledBytes,compiledMs,rleBytes,rleMs");
+		for (int i = 0; i < WIDTHS.length; i++) {
+			int width = WIDTHS[i];
+			File textFile = new File(folder, "Level" + width + ".txt");
+			File compiledFile = new File(folder, "Level" + width + LevelFile.EXTENSION);
+			File rleFile = new File(folder, "Level" + width + "rle" + LevelFile.EXTENSION);
+			writeLevel(textFile, width);
+			LevelCompiler.compile(textFile, compiledFile, false);
+			LevelCompiler.compile(textFile, rleFile, true);
+			// make sure the text file is loaded as text
+			textFile.setLastModified(compiledFile.lastModified() + 1000);
+
+			double textTime = time(resourceManager, textFile, width);
+			double compiledTime = time(resourceManager, compiledFile, width);
+			double rleTime = time(resourceManager, rleFile, width);
+			System.out.println(width + "," + textFile.length() + ","
+					+ format(textTime) + "," + compiledFile.length() + ","
+					+ format(compiledTime) + "," + rleFile.length() + ","
+					+ format(rleTime));
+		}
+
+		System.out.println();
+		System.out.println("sprites,columns,textMs,compiledMs");
+		File textFile = new File(folder, "Spawn" + SPAWN_COUNT + ".txt");
+		File compiledFile = new File(folder, "Spawn" + SPAWN_COUNT + LevelFile.EXTENSION);
+		int width = writeSpawnLevel(textFile, SPAWN_COUNT);
+		LevelCompiler.compile(textFile, compiledFile, true);
+		textFile.setLastModified(compiledFile.lastModified() + 1000);
+		double textTime = time(resourceManager, textFile, width);
+		double compiledTime = time(resourceManager, compiledFile, width);
+		System.out.println(SPAWN_COUNT + "," + width + "," + format(textTime) + ","
+				+ format(compiledTime));
+	}
+
+	// the best time of a few rounds, in milliseconds
+	private static double time(ResourceManager resourceManager, File file,
+			int width) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			TileMap map = resourceManager.loadLevel(file.getPath());
+			best = Math.min(best, System.nanoTime() - start);
+			if (map.getWidth() != width) {
+				throw new IllegalStateException(file + " loaded with width "
+						+ map.getWidth());
+			}
+		}
+		return best / 1000000.0;
+	}
+
+	private static String format(double millis) {
+		return String.valueOf(Math.round(millis * 100) / 100.0);
+	}
+
+	static File createTempFolder() throws IOException {
+		File folder = File.createTempFile("levels", "");
+		folder.delete();
+		folder.mkdir();
+		folder.deleteOnExit();
+		return folder;
+	}
+
+	// a floor with platforms, coins and blobs that repeat every 97 columns
+	static void writeLevel(File file, int width) throws IOException {
+		file.deleteOnExit();
+		LevelFile.getCompiledFile(file).deleteOnExit();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		try {
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < width; x++) {
+					int pattern = x % 97;
+					char ch = ' ';
+					if (y == HEIGHT - 1 && pattern < 90
+							|| y == HEIGHT - 5 && pattern >= 20 && pattern < 30) {
+						ch = 'g';
+					} else if (y == HEIGHT - 6 && pattern >= 22 && pattern < 28) {
+						ch = 'c';
+					} else if (y == HEIGHT - 2 && pattern == 60) {
+						ch = 'e';
+					}
+					out.write(ch);
+				}
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes a level with a floor and the rows above it full of coins, ammo
+	 * and blobs, spawnCount sprites in all. Returns its width in columns.
+	 */
+	static int writeSpawnLevel(File file, int spawnCount) throws IOException {
+		file.deleteOnExit();
+		LevelFile.getCompiledFile(file).deleteOnExit();
+		int width = (spawnCount + SPAWN_ROWS - 1) / SPAWN_ROWS;
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		try {
+			for (int y = 0; y < HEIGHT; y++) {
+				int row = HEIGHT - 1 - y;
+				for (int x = 0; x < width; x++) {
+					char ch = ' ';
+					if (row == 0) {
+						ch = 'g';
+					} else if (row <= SPAWN_ROWS && (row - 1) * width + x < spawnCount) {
+						ch = SPAWN_CHARS.charAt((x + y) % SPAWN_CHARS.length());
+					}
+					out.write(ch);
+				}
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		return width;
+	}
+}
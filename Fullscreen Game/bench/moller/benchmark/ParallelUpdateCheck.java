@@ -0,0 +1,117 @@
+package moller.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import moller.core.ResourceManager;
+import moller.game.UpdateManager;
+import moller.resource.TileMap;
+import moller.sprites.Bullet;
+import moller.sprites.Creature;
+import moller.sprites.EntityStore;
+import moller.sprites.Sprite;
+
+/**
+ * Runs the same generated level with a serial and a parallel UpdateManager
+ * side by side and checks after every tick that both worlds hash the same.
+ * Then times both. Exits with 1 if the worlds ever differ. Every sprite is
+ * updated, unless -activation sets an activation margin.
+ *
+ * Run from the project folder, so the images are found, with:
+ * java -Djava.awt.headless=true moller.benchmark.ParallelUpdateCheck [-threads N] [-ticks N] [-columns N] [-activation N]
+ */
+public class ParallelUpdateCheck {
+
+	private static final long TICK_TIME = 10;
+
+	public static void main(String[] args) throws IOException {
+		int threads = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+		int ticks = 2000;
+		int columns = 100000;
+		int activationMargin = UpdateManager.ACTIVATE_ALL;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-ticks")) {
+				ticks = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-columns")) {
+				columns = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-activation")) {
+				activationMargin = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+
+		File file = new File(LevelLoadBenchmark.createTempFolder(), "Level" + columns
+				+ ".txt");
+		LevelLoadBenchmark.writeLevel(file, columns);
+		ResourceManager resourceManager = new ResourceManager(null);
+		UpdateManager serial = new UpdateManager(loadAwake(resourceManager, file));
+		UpdateManager parallel = new UpdateManager(loadAwake(resourceManager, file));
+		parallel.setThreadCount(threads);
+		serial.setActivationMargin(activationMargin);
+		parallel.setActivationMargin(activationMargin);
+		System.out.println(serial.getTileMap().getEntities().size() + " entities, "
+				+ threads + " threads");
+
+		ArrayList<Bullet> bullets = new ArrayList<Bullet>();
+		for (int tick = 1; tick <= ticks; tick++) {
+			serial.update(TICK_TIME, bullets);
+			parallel.update(TICK_TIME, bullets);
+			long serialHash = hash(serial.getTileMap());
+			long parallelHash = hash(parallel.getTileMap());
+			if (serialHash != parallelHash) {
+				System.out.println("tick " + tick + ": serial " + Long.toHexString(serialHash)
+						+ ", parallel " + Long.toHexString(parallelHash));
+				System.exit(1);
+			}
+		}
+		System.out.println(ticks + " ticks, hashes equal: "
+				+ Long.toHexString(hash(serial.getTileMap())));
+
+		System.out.println("serial:   " + format(time(serial, ticks, bullets)) + " ms per tick");
+		System.out.println("parallel: " + format(time(parallel, ticks, bullets)) + " ms per tick");
+		parallel.shutdown();
+	}
+
+	private static TileMap loadAwake(ResourceManager resourceManager, File file)
+			throws IOException {
+		TileMap map = resourceManager.loadLevel(file.getPath());
+		EntityStore entities = map.getEntities();
+		for (int i = 0; i < entities.size(); i++) {
+			Sprite sprite = entities.getSprite(i);
+			if (sprite instanceof Creature) {
+				((Creature) sprite).wakeUp();
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Hashes the state of the sprites and the player.
+	 */
+	static long hash(TileMap map) {
+		Sprite player = map.getPlayer();
+		long hash = map.getEntities().stateHash();
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getX()));
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getY()));
+		return hash;
+	}
+
+	// milliseconds per tick
+	private static double time(UpdateManager updateManager, int ticks,
+			ArrayList<Bullet> bullets) {
+		long start = System.nanoTime();
+		for (int tick = 0; tick < ticks; tick++) {
+			updateManager.update(TICK_TIME, bullets);
+		}
+		return (System.nanoTime() - start) / 1000000.0 / ticks;
+	}
+
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 1000) / 1000.0);
+	}
+}
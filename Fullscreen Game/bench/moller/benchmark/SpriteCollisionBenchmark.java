@@ -0,0 +1,116 @@
+package moller.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.Random;
+
+import moller.game.CollisionManager;
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.Animation;
+import moller.sprites.Item;
+import moller.sprites.Sprite;
+
+/**
+ * Measures CollisionManager.getSpriteCollision against a plain scan of all
+ * sprites. The sprite density is the same for every run, so the level gets
+ * longer as the sprite count grows, just like a real level would.
+ * 
+ * Run with: java -Djava.awt.headless=true moller.benchmark.SpriteCollisionBenchmark
+ */
+public class SpriteCollisionBenchmark {
+
+	private static final int[] SPRITE_COUNTS = { 100, 1000, 10000, 50000 };
+	private static final int SPRITES_PER_COLUMN = 2;
+	private static final int MAP_HEIGHT = 12;
+	private static final int QUERIES = 20000;
+	// the plain scan is far too slow to run every query on big maps
+	private static final int SCAN_QUERIES = 200;
+
+	public static void main(String[] args) {
+		System.out.println("sprites,gridNsPerQuery,scanNsPerQuery");
+		for (int i = 0; i < SPRITE_COUNTS.length; i++) {
+			run(SPRITE_COUNTS[i]);
+		}
+	}
+
+	private static void run(int spriteCount) {
+		Random random = new Random(42);
+		Animation animation = createAnimation(32, 32);
+		TileMap map = new TileMap(spriteCount / SPRITES_PER_COLUMN, MAP_HEIGHT);
+		int mapWidth = TileMapRenderer.tilesToPixels(map.getWidth());
+		int mapHeight = TileMapRenderer.tilesToPixels(map.getHeight());
+		for (int i = 0; i < spriteCount; i++) {
+			Sprite sprite = new Item.Coin(animation);
+			sprite.setX(random.nextInt(mapWidth));
+			sprite.setY(random.nextInt(mapHeight));
+			map.addSprite(sprite);
+		}
+
+		// queries sweep the level from left to right, like the player and
+		// the bullets do, instead of jumping around at random
+		Sprite[] queries = new Sprite[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			queries[i] = new Sprite(animation);
+			queries[i].setX((long) mapWidth * i / QUERIES);
+			queries[i].setY(random.nextInt(mapHeight));
+		}
+
+		CollisionManager collisionManager = new CollisionManager(map);
+		// warm up both paths before measuring
+		for (int round = 0; round < 3; round++) {
+			queryGrid(collisionManager, queries, QUERIES);
+			queryScan(collisionManager, map, queries, SCAN_QUERIES);
+		}
+
+		long start = System.nanoTime();
+		queryGrid(collisionManager, queries, QUERIES);
+		long gridTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int scanHits = queryScan(collisionManager, map, queries, SCAN_QUERIES);
+		long scanTime = System.nanoTime() - start;
+
+		int gridHits = queryGrid(collisionManager, queries, SCAN_QUERIES);
+		if (gridHits != scanHits) {
+			throw new IllegalStateException("grid found " + gridHits
+					+ " collisions but the scan found " + scanHits);
+		}
+		System.out.println(spriteCount + "," + (gridTime / QUERIES) + ","
+				+ (scanTime / SCAN_QUERIES));
+	}
+
+	private static int queryGrid(CollisionManager collisionManager,
+			Sprite[] queries, int count) {
+		int hits = 0;
+		for (int i = 0; i < count; i++) {
+			if (collisionManager.getSpriteCollision(queries[i]) != null) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	// the way getSpriteCollision worked before the grid
+	private static int queryScan(CollisionManager collisionManager, TileMap map,
+			Sprite[] queries, int count) {
+		int hits = 0;
+		for (int q = 0; q < count; q++) {
+			Iterator<Sprite> i = map.getSprites();
+			while (i.hasNext()) {
+				if (collisionManager.isCollision(queries[q], i.next())) {
+					hits++;
+					break;
+				}
+			}
+		}
+		return hits;
+	}
+
+	static Animation createAnimation(int width, int height) {
+		Animation animation = new Animation();
+		animation.addScene(new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_ARGB), 100);
+		return animation;
+	}
+}
@@ -0,0 +1,171 @@
+package moller.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import moller.game.UpdateManager;
+import moller.resource.StreamingTileMap;
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.Animation;
+import moller.sprites.Bullet;
+import moller.sprites.Enemy;
+import moller.sprites.Item;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+import moller.sprites.SpriteRegistry;
+
+/**
+ * Walks a player across a generated level with 1,000,000 columns, full of
+ * creatures and coins, and prints the used heap along the way. The map is a
+ * StreamingTileMap updated by an UpdateManager, so chunks and their sprites
+ * are loaded ahead of the player and dropped behind it. The number of
+ * sprites should stay the same from start to end, no matter how long the
+ * level is. So should the used heap, but for the collected coins, which the
+ * map remembers in one bit per character of the level walked over.
+ *
+ * The player collects the coins on its way, and at the end walks back a
+ * little. Collected coins must not come back when their chunk is loaded
+ * again.
+ *
+ * Run with: java -Xmx32m -Djava.awt.headless=true moller.benchmark.StreamingTileMapStressTest
+ */
+public class StreamingTileMapStressTest {
+
+	private static final int WIDTH = 1000000;
+	private static final int HEIGHT = 16;
+	private static final int STEP = 8;
+	private static final int REPORT_EVERY = 100000;
+	private static final long MEMORY_BUDGET = 1024 * 1024;
+	// coins are on the top row every COIN_EVERY columns, where the player
+	// is put down
+	private static final int COIN_EVERY = 12 * STEP;
+	private static final int WALK_BACK = 20000;
+	private static final long TICK_TIME = 10;
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("stress-level", ".txt");
+		file.deleteOnExit();
+		long start = System.nanoTime();
+		writeLevel(file);
+		System.out.println("wrote " + file.length() / 1024 + " KB level in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		start = System.nanoTime();
+		StreamingTileMap map = new StreamingTileMap(file);
+		map.mapCharToTile('g', new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB));
+		map.setMemoryBudget(MEMORY_BUDGET);
+		final SpriteRegistry registry = createRegistry();
+		map.mapCharToSpawn('e');
+		map.mapCharToSpawn('c');
+		map.setSpawnListener(new StreamingTileMap.SpawnListener() {
+			public Sprite spawn(TileMap map, char ch, int tileX, int tileY) {
+				Sprite sprite = registry.create(ch);
+				sprite.setX(TileMapRenderer.tilesToPixels(tileX));
+				sprite.setY(TileMapRenderer.tilesToPixels(tileY + 1) - sprite.getHeight());
+				sprite.savePreviousPosition();
+				map.addSprite(sprite);
+				return sprite;
+			}
+		});
+		Player player = new Player(createAnimation(), createAnimation(),
+				createAnimation(), createAnimation());
+		map.setPlayer(player);
+		UpdateManager updateManager = new UpdateManager(map);
+		updateManager.setScreenWidth(TileMapRenderer.tilesToPixels(16));
+		ArrayList<Bullet> bullets = new ArrayList<Bullet>();
+		System.out.println("opened " + map.getWidth() + "x" + map.getHeight()
+				+ " map in " + (System.nanoTime() - start) / 1000000 + " ms, "
+				+ map.getMaxResidentChunks() + " chunks allowed");
+
+		System.out.println("column,usedHeapKB,residentChunks,chunksRead,sprites,coins");
+		start = System.nanoTime();
+		for (int focus = 0; focus < map.getWidth(); focus += STEP) {
+			walkTo(player, focus);
+			updateManager.update(TICK_TIME, bullets);
+			if (focus % REPORT_EVERY == 0) {
+				report(map, focus, player);
+			}
+		}
+		long time = System.nanoTime() - start;
+		report(map, map.getWidth(), player);
+		System.out.println("walked the map in " + time / 1000000 + " ms");
+
+		int coins = player.getCoins();
+		for (int focus = map.getWidth() - STEP; focus >= map.getWidth() - WALK_BACK;
+				focus -= STEP) {
+			walkTo(player, focus);
+			updateManager.update(TICK_TIME, bullets);
+		}
+		report(map, map.getWidth() - WALK_BACK, player);
+		System.out.println("coins collected again walking back: "
+				+ (player.getCoins() - coins));
+		map.close();
+	}
+
+	// puts the player down on the top row of the column, standing still
+	private static void walkTo(Player player, int column) {
+		player.setX(TileMapRenderer.tilesToPixels(column));
+		player.setY(TileMapRenderer.tilesToPixels(1) - player.getHeight());
+		player.setVelocityX(0);
+		player.setVelocityY(0);
+		player.savePreviousPosition();
+	}
+
+	private static SpriteRegistry createRegistry() {
+		SpriteRegistry registry = new SpriteRegistry();
+		registry.register('e', new Enemy.Blob(createAnimation(), createAnimation(),
+				createAnimation(), createAnimation()));
+		registry.register('c', new Item.Coin(createAnimation()));
+		return registry;
+	}
+
+	private static Animation createAnimation() {
+		Animation animation = new Animation();
+		animation.addScene(new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB), 100);
+		return animation;
+	}
+
+	private static void report(StreamingTileMap map, int column, Player player) {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		System.out.println(column + "," + used / 1024 + ","
+				+ map.getResidentChunkCount() + "," + map.getLoadCount() + ","
+				+ map.getEntities().size() + "," + player.getCoins());
+	}
+
+	// a floor with holes and platforms that repeat every 97 columns, a
+	// creature on every low platform and coins on the top row
+	private static void writeLevel(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		try {
+			out.write("# generated stress test level\n".getBytes("US-ASCII"));
+			for (int y = 0; y < HEIGHT; y++) {
+				for (int x = 0; x < WIDTH; x++) {
+					int pattern = x % 97;
+					boolean tile = (y == HEIGHT - 1 && pattern < 90)
+							|| (y == HEIGHT - 5 && pattern >= 20 && pattern < 30)
+							|| (y == HEIGHT - 9 && pattern >= 50 && pattern < 56);
+					if (tile) {
+						out.write('g');
+					} else if (y == 0 && x % COIN_EVERY == 0) {
+						out.write('c');
+					} else if (y == HEIGHT - 6 && pattern == 25) {
+						out.write('e');
+					} else {
+						out.write(' ');
+					}
+				}
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
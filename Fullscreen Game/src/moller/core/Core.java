@@ -1,84 +1,424 @@
-package moller.core;
-/********************************************************************************************************************************************************************************************
- * Core.java
- * 
- * The Core class uses all the important classes and making it the core structure of the game.
- * 
- * Made By: Emil Mller
- * Email: emilmol@kth.se
- *******************************************************************************************************************************************************************************************/
-
-import java.awt.Color;
-import java.awt.DisplayMode;
-import java.awt.Font;
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Window;
-
-import javax.swing.ImageIcon;
-
-public abstract class Core {
-
-	private static DisplayMode modes[] = { new DisplayMode(800, 600, 32, 0),
-			new DisplayMode(800, 600, 24, 0), new DisplayMode(800, 600, 16, 0),
-			new DisplayMode(640, 480, 32, 0), new DisplayMode(640, 480, 24, 0),
-			new DisplayMode(640, 480, 16, 0) };
-
-	private boolean running;
-	protected ScreenManager screenManager;
-
-	public void stop() {
-		running = false;
-	}
-
-	public void run() {
-		try {
-			init();
-			gameLoop();
-		} finally {
-			screenManager.restoreScreen();
-		}
-	}
-
-	public void init() {
-		screenManager = new ScreenManager();
-		DisplayMode dm = screenManager.findFirstCompatibleDisplayMode(modes);
-		screenManager.setFullScreen(dm);
-
-		Window window = screenManager.getFullScreenWindow();
-		window.setFont(new Font("Arial", Font.PLAIN, 24));
-		window.setBackground(Color.GREEN);
-		window.setForeground(Color.WHITE);
-		running = true;
-	}
-
-	public Image loadImage(String fileName) {
-		return new ImageIcon(fileName).getImage();
-	}
-
-	public void gameLoop() {
-		long startingTime = System.currentTimeMillis();
-		long cumulativeTime = startingTime;
-
-		while (running) {
-			long timePassed = System.currentTimeMillis() - cumulativeTime;
-			cumulativeTime += timePassed;
-
-			update(timePassed);
-
-			Graphics2D g = screenManager.getGraphics();
-			draw(g);
-			g.dispose();
-			screenManager.update();
-
-			try {
-				Thread.sleep(20);
-			} catch (Exception exception) {
-				exception.toString();
-			}
-		}
-	}
-
-	public abstract void update(long timePassed);
-	public abstract void draw(Graphics2D g);
-}
+package moller.core;
+/********************************************************************************************************************************************************************************************
+ * Core.java
+ * 
+ * The Core class uses all the important classes and making it the core structure of the game.
+ * 
+ * Made By: Emil Möller
+ * Email: emilmol@kth.se
+ *******************************************************************************************************************************************************************************************/
+
+import java.awt.Color;
+import java.awt.DisplayMode;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Window;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.ImageIcon;
+
+public abstract class Core {
+
+	private static DisplayMode modes[] = { new DisplayMode(800, 600, 32, 0),
+			new DisplayMode(800, 600, 24, 0), new DisplayMode(800, 600, 16, 0),
+			new DisplayMode(640, 480, 32, 0), new DisplayMode(640, 480, 24, 0),
+			new DisplayMode(640, 480, 16, 0) };
+
+	// length of one simulation tick in milliseconds
+	public static final long TICK_TIME = 10;
+	// the most ticks run before a frame is drawn, so a long stall
+	// does not make the simulation spiral trying to catch up
+	public static final int MAX_TICKS_PER_FRAME = 5;
+
+	// frames per second the game loop is held to unless set otherwise
+	public static final int DEFAULT_FRAME_RATE = 60;
+
+	// screen size used when running headless without a render target
+	public static final int DEFAULT_SCREEN_WIDTH = 800;
+	public static final int DEFAULT_SCREEN_HEIGHT = 600;
+
+	// read by the render thread when pipelined
+	private volatile boolean running;
+	private boolean fixedTimeStep = true;
+	private boolean pipelined;
+	private boolean incrementalDrawing;
+	private int frameRate = DEFAULT_FRAME_RATE;
+	// only used by the thread drawing the frames
+	private boolean frameKept;
+	private float interpolation = 1;
+	protected ScreenManager screenManager;
+
+	// headless mode
+	private boolean headless;
+	private boolean unlimitedSpeed;
+	private BufferedImage renderTarget;
+	private long maxTicks;
+	private long tickCount;
+	private long loopStartTime;
+	private long loopEndTime;
+
+	private FrameStats frameStats = new FrameStats();
+
+	public void stop() {
+		running = false;
+	}
+
+	public void run() {
+		try {
+			init();
+			gameLoop();
+		} finally {
+			if (screenManager != null) {
+				screenManager.restoreScreen();
+			}
+		}
+	}
+
+	public void init() {
+		running = true;
+		frameStats.register();
+		if (headless) {
+			return;
+		}
+		screenManager = new ScreenManager();
+		DisplayMode dm = screenManager.findFirstCompatibleDisplayMode(modes);
+		screenManager.setFullScreen(dm, incrementalDrawing);
+
+		Window window = screenManager.getFullScreenWindow();
+		window.setFont(new Font("Arial", Font.PLAIN, 24));
+		window.setBackground(Color.GREEN);
+		window.setForeground(Color.WHITE);
+	}
+
+	public boolean isHeadless() {
+		return headless;
+	}
+
+	/**
+	 * Chooses whether the game runs without a screen or input. A headless
+	 * game only draws if it has a render target. Must be set before run().
+	 */
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+
+	public BufferedImage getRenderTarget() {
+		return renderTarget;
+	}
+
+	/**
+	 * Sets an image a headless game draws every frame to.
+	 */
+	public void setRenderTarget(BufferedImage renderTarget) {
+		this.renderTarget = renderTarget;
+	}
+
+	/**
+	 * Makes a headless game run the next tick as soon as the last one is
+	 * done, instead of keeping up with the clock.
+	 */
+	public void setUnlimitedSpeed(boolean unlimitedSpeed) {
+		this.unlimitedSpeed = unlimitedSpeed;
+	}
+
+	/**
+	 * Stops the game after the number of ticks, or never if it is 0.
+	 */
+	public void setMaxTicks(long maxTicks) {
+		this.maxTicks = maxTicks;
+	}
+
+	/**
+	 * Gets the number of times update() has been called.
+	 */
+	public long getTickCount() {
+		return tickCount;
+	}
+
+	/**
+	 * Gets the ticks per second of the game loop so far.
+	 */
+	public double getTicksPerSecond() {
+		long end = running ? System.nanoTime() : loopEndTime;
+		long time = end - loopStartTime;
+		return (time > 0) ? tickCount * 1000000000.0 / time : 0;
+	}
+
+	/**
+	 * Gets how long the phases of the game loop took so far.
+	 */
+	public FrameStats getFrameStats() {
+		return frameStats;
+	}
+
+	public int getScreenWidth() {
+		if (screenManager != null) {
+			return screenManager.getWidth();
+		}
+		return (renderTarget != null) ? renderTarget.getWidth() : DEFAULT_SCREEN_WIDTH;
+	}
+
+	public int getScreenHeight() {
+		if (screenManager != null) {
+			return screenManager.getHeight();
+		}
+		return (renderTarget != null) ? renderTarget.getHeight() : DEFAULT_SCREEN_HEIGHT;
+	}
+
+	public Image loadImage(String fileName) {
+		return new ImageIcon(fileName).getImage();
+	}
+
+	public boolean isFixedTimeStep() {
+		return fixedTimeStep;
+	}
+
+	/**
+	 * Chooses between running update() in fixed ticks of TICK_TIME (the
+	 * default) or once per frame with the measured frame time.
+	 */
+	public void setFixedTimeStep(boolean fixedTimeStep) {
+		this.fixedTimeStep = fixedTimeStep;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/**
+	 * Chooses whether frames are drawn on a render thread of their own
+	 * while the game thread runs the ticks. After the ticks of a pass of the
+	 * game loop, the game thread calls publish(), which should hand a
+	 * snapshot of the game to draw(), for example through a TripleBuffer.
+	 * draw() is then called on the render thread and must only draw from
+	 * the latest snapshot. Must be set before run().
+	 */
+	public void setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+	}
+
+	public int getFrameRate() {
+		return frameRate;
+	}
+
+	/**
+	 * Sets the frames per second the game loop is held to, see FramePacer,
+	 * or 0 to draw frames as fast as possible. A headless game running at
+	 * unlimited speed is never held back. Must be set before run().
+	 */
+	public void setFrameRate(int frameRate) {
+		this.frameRate = frameRate;
+	}
+
+	public boolean isIncrementalDrawing() {
+		return incrementalDrawing;
+	}
+
+	/**
+	 * Chooses whether each frame should start out holding the frame drawn
+	 * before it, so draw() only has to draw what changed. The screen then
+	 * copies finished frames to the display instead of flipping them, which
+	 * still may lose the frame, see isFrameKept(). Must be set before run().
+	 */
+	public void setIncrementalDrawing(boolean incrementalDrawing) {
+		this.incrementalDrawing = incrementalDrawing;
+	}
+
+	/**
+	 * Returns true if the frame draw() is drawing still holds the frame
+	 * drawn before it. Only meaningful during draw().
+	 */
+	public boolean isFrameKept() {
+		return frameKept;
+	}
+
+	/**
+	 * Called on the game thread after the ticks of a pass of the game loop
+	 * when pipelined, see setPipelined.
+	 */
+	protected void publish() {
+	}
+
+	/**
+	 * Gets how far the current frame is between the previous and the latest
+	 * tick, from 0 to 1. Sprites should be drawn this far between their
+	 * previous and current positions.
+	 */
+	public float getInterpolation() {
+		return interpolation;
+	}
+
+	public void gameLoop() {
+		loopStartTime = System.nanoTime();
+		if (pipelined) {
+			pipelinedLoop();
+		} else if (headless && unlimitedSpeed) {
+			unlimitedSpeedLoop();
+		} else if (fixedTimeStep) {
+			fixedTimeStepLoop();
+		} else {
+			variableTimeStepLoop();
+		}
+		loopEndTime = System.nanoTime();
+	}
+
+	private void tick(long timePassed) {
+		update(timePassed);
+		tickCount++;
+		if (tickCount == maxTicks) {
+			stop();
+		}
+	}
+
+	private void unlimitedSpeedLoop() {
+		interpolation = 1;
+		while (running) {
+			long frameStart = System.nanoTime();
+			tick(TICK_TIME);
+			drawFrame();
+			frameStats.recordSince(FrameStats.FRAME, frameStart);
+		}
+	}
+
+	private void fixedTimeStepLoop() {
+		long tickNanos = TICK_TIME * 1000000L;
+		long accumulator = 0;
+		long lastTime = System.nanoTime();
+		FramePacer pacer = new FramePacer(frameRate, frameStats);
+
+		while (running) {
+			long now = System.nanoTime();
+			long frameStart = now;
+			accumulator += now - lastTime;
+			lastTime = now;
+
+			int ticks = 0;
+			while (running && accumulator >= tickNanos && ticks < MAX_TICKS_PER_FRAME) {
+				tick(TICK_TIME);
+				accumulator -= tickNanos;
+				ticks++;
+			}
+			if (accumulator >= tickNanos) {
+				// too far behind, drop the time we could not simulate
+				accumulator %= tickNanos;
+			}
+
+			interpolation = (float) accumulator / tickNanos;
+			drawFrame();
+			frameStats.recordSince(FrameStats.FRAME, frameStart);
+			waitForNextFrame(pacer);
+		}
+	}
+
+	// runs the ticks while a render thread draws the published snapshots
+	private void pipelinedLoop() {
+		publish();
+		Thread renderThread = new Thread(new Runnable() {
+			public void run() {
+				renderLoop();
+			}
+		}, "Render");
+		renderThread.start();
+
+		long tickNanos = TICK_TIME * 1000000L;
+		long nextTick = System.nanoTime();
+		try {
+			while (running) {
+				int ticks = 0;
+				while (running && (unlimitedSpeed && headless || System.nanoTime() >= nextTick)
+						&& ticks < MAX_TICKS_PER_FRAME) {
+					tick(TICK_TIME);
+					nextTick += tickNanos;
+					ticks++;
+				}
+				long now = System.nanoTime();
+				if (now - nextTick >= tickNanos) {
+					// too far behind, drop the time we could not simulate
+					nextTick = now;
+				}
+				if (ticks > 0) {
+					publish();
+				}
+				if (!(unlimitedSpeed && headless)) {
+					LockSupport.parkNanos(nextTick - System.nanoTime());
+				}
+			}
+		} finally {
+			running = false;
+			try {
+				renderThread.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void renderLoop() {
+		FramePacer pacer = new FramePacer(unlimitedSpeed && headless ? 0 : frameRate,
+				frameStats);
+		try {
+			while (running) {
+				long frameStart = System.nanoTime();
+				drawFrame();
+				frameStats.recordSince(FrameStats.FRAME, frameStart);
+				waitForNextFrame(pacer);
+			}
+		} finally {
+			// the game can not go on without frames
+			stop();
+		}
+	}
+
+	private void variableTimeStepLoop() {
+		long lastTime = System.nanoTime();
+		interpolation = 1;
+		FramePacer pacer = new FramePacer(frameRate, frameStats);
+
+		while (running) {
+			long now = System.nanoTime();
+			long timePassed = (now - lastTime) / 1000000L;
+			lastTime += timePassed * 1000000L;
+
+			tick(timePassed);
+			drawFrame();
+			frameStats.recordSince(FrameStats.FRAME, now);
+			waitForNextFrame(pacer);
+		}
+	}
+
+	private void waitForNextFrame(FramePacer pacer) {
+		pacer.waitForNextFrame();
+		if (Thread.currentThread().isInterrupted()) {
+			stop();
+		}
+	}
+
+	private void drawFrame() {
+		if (headless) {
+			if (renderTarget != null) {
+				Graphics2D g = renderTarget.createGraphics();
+				frameKept = true;
+				g.setFont(new Font("Arial", Font.PLAIN, 24));
+				g.setColor(Color.WHITE);
+				long start = System.nanoTime();
+				draw(g);
+				frameStats.recordSince(FrameStats.DRAW, start);
+				g.dispose();
+			}
+			return;
+		}
+		Graphics2D g = screenManager.getGraphics();
+		frameKept = screenManager.isBackBufferKept();
+		long start = System.nanoTime();
+		draw(g);
+		g.dispose();
+		start = frameStats.recordSince(FrameStats.DRAW, start);
+		screenManager.update();
+		frameStats.recordSince(FrameStats.SHOW, start);
+	}
+
+	public abstract void update(long timePassed);
+	public abstract void draw(Graphics2D g);
+}
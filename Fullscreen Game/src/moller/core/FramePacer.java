@@ -0,0 +1,119 @@
+package moller.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The FramePacer class holds the game loop to a target frame rate. Frames
+ * are due at fixed times one frame time apart, so a slow frame only shortens
+ * the wait for the next one instead of adding to it. The pacer parks the
+ * thread until shortly before the next frame is due and spins the rest of
+ * the way, because a parked thread wakes up late by an amount that depends
+ * on the system. The pacer measures how late it wakes up and parks that
+ * much shorter.
+ *
+ * The time waited and the jitter, how far the time between two frames was
+ * from the frame time, are recorded in a FrameStats, together with the
+ * frames per second reached.
+ */
+public class FramePacer {
+
+	// the least time spun before a frame is due
+	private static final long MIN_SPIN_TIME = 100000;
+	// the most time spun, however late parking wakes up
+	private static final long MAX_SPIN_TIME = 2000000;
+	// how often the frames per second are worked out
+	private static final long FPS_INTERVAL = 1000000000L;
+
+	private FrameStats frameStats;
+	private long frameTime;
+	private long nextFrame;
+	private long lastFrame;
+	// how late parking woke up on average, in nanoseconds
+	private long overshoot;
+	private long spinTime = MAX_SPIN_TIME;
+	private long fpsStart;
+	private int fpsFrames;
+
+	/**
+	 * Creates a pacer for the frames per second, or for frames as fast as
+	 * possible if it is 0, recording in the frame stats.
+	 */
+	public FramePacer(int framesPerSecond, FrameStats frameStats) {
+		this.frameStats = frameStats;
+		setFrameRate(framesPerSecond);
+	}
+
+	public int getFrameRate() {
+		return (frameTime > 0) ? (int) Math.round(1000000000.0 / frameTime) : 0;
+	}
+
+	/**
+	 * Sets the frames per second, or 0 for frames as fast as possible.
+	 */
+	public void setFrameRate(int framesPerSecond) {
+		frameTime = (framesPerSecond > 0) ? 1000000000L / framesPerSecond : 0;
+		nextFrame = 0;
+	}
+
+	/**
+	 * Gets how late parking the thread woke up on average, in nanoseconds.
+	 */
+	public long getOvershoot() {
+		return overshoot;
+	}
+
+	/**
+	 * Waits until the next frame is due and returns the System.nanoTime()
+	 * it starts at. If the frame is more than a frame time late, it starts
+	 * right away and the frames after it are due a frame time apart from
+	 * it, instead of rushing to catch up. An interrupted thread does not
+	 * park, but keeps its interrupted status.
+	 */
+	public long waitForNextFrame() {
+		long now = System.nanoTime();
+		long start;
+		if (frameTime == 0) {
+			Thread.yield();
+			start = System.nanoTime();
+		} else {
+			if (nextFrame == 0 || now - nextFrame > frameTime) {
+				nextFrame = now;
+			}
+			long parkTime = nextFrame - spinTime - now;
+			if (parkTime > 0 && !Thread.currentThread().isInterrupted()) {
+				LockSupport.parkNanos(parkTime);
+				adaptSpinTime(System.nanoTime() - now - parkTime);
+			}
+			start = System.nanoTime();
+			while (start - nextFrame < 0) {
+				start = System.nanoTime();
+			}
+			nextFrame += frameTime;
+		}
+		frameStats.record(FrameStats.WAIT, start - now);
+		frameStarted(start);
+		return start;
+	}
+
+	// spins a little longer than parking usually wakes up late, so parking
+	// wakes up before the frame is due
+	private void adaptSpinTime(long late) {
+		overshoot += (Math.max(late, 0) - overshoot) / 8;
+		spinTime = Math.max(MIN_SPIN_TIME, Math.min(overshoot * 2, MAX_SPIN_TIME));
+	}
+
+	private void frameStarted(long start) {
+		if (lastFrame != 0 && frameTime > 0) {
+			frameStats.record(FrameStats.JITTER, Math.abs(start - lastFrame - frameTime));
+		}
+		lastFrame = start;
+		if (fpsFrames == 0) {
+			fpsStart = start;
+		} else if (start - fpsStart >= FPS_INTERVAL) {
+			frameStats.setFramesPerSecond(fpsFrames * 1000000000.0 / (start - fpsStart));
+			fpsStart = start;
+			fpsFrames = 0;
+		}
+		fpsFrames++;
+	}
+}
@@ -0,0 +1,178 @@
+package moller.core;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The FrameStats class keeps a LatencyHistogram of how long each phase of
+ * the game loop takes, so a hitch can be traced to the phase causing it.
+ * The phases are:
+ *
+ * INPUT - GameManager reading the game actions, once per tick
+ * UPDATE - UpdateManager.update, once per tick, including COLLISION
+ * COLLISION - the player and bullet collision checks of one tick
+ * DRAW - drawing a frame, mostly TileMapRenderer.draw
+ * SHOW - showing the drawn frame on the screen
+ * FRAME - one pass of the game loop, all ticks and the frame
+ * WAIT - the FramePacer waiting for the next frame
+ * JITTER - how far the time between two frames was from the frame time
+ * of the FramePacer, so not really a phase
+ *
+ * The FramePacer also sets the frames per second reached.
+ *
+ * Durations are recorded on the game loop thread, and in a pipelined game
+ * also on the render thread, which records DRAW, SHOW, FRAME, WAIT and
+ * JITTER while the game loop thread records INPUT, UPDATE and COLLISION.
+ * That is why record is synchronized. The stats may be read on any thread,
+ * for example by JMX.
+ */
+public class FrameStats implements FrameStatsMBean {
+
+	public static final int INPUT = 0;
+	public static final int UPDATE = 1;
+	public static final int COLLISION = 2;
+	public static final int DRAW = 3;
+	public static final int SHOW = 4;
+	public static final int FRAME = 5;
+	public static final int WAIT = 6;
+	public static final int JITTER = 7;
+	public static final int PHASE_COUNT = 8;
+
+	public static final String OBJECT_NAME = "moller:type=FrameStats";
+
+	private static final String[] PHASE_NAMES = { "input", "update", "collision",
+			"draw", "show", "frame", "wait", "jitter" };
+
+	private LatencyHistogram[] histograms = new LatencyHistogram[PHASE_COUNT];
+	private volatile double framesPerSecond;
+
+	public FrameStats() {
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records that the phase took the nanoseconds.
+	 */
+	public synchronized void record(int phase, long nanos) {
+		histograms[phase].record(nanos);
+	}
+
+	/**
+	 * Records that the phase took from start, a System.nanoTime(), until
+	 * now. Returns now.
+	 */
+	public long recordSince(int phase, long start) {
+		long now = System.nanoTime();
+		record(phase, now - start);
+		return now;
+	}
+
+	public static String getPhaseName(int phase) {
+		return PHASE_NAMES[phase];
+	}
+
+	public synchronized long getCount(int phase) {
+		return histograms[phase].getCount();
+	}
+
+	/**
+	 * Gets the nanoseconds the fraction, from 0 to 1, of the recorded
+	 * durations of the phase are shorter than or equal to.
+	 */
+	public synchronized long getPercentile(int phase, double fraction) {
+		return histograms[phase].getPercentile(fraction);
+	}
+
+	public synchronized long getMax(int phase) {
+		return histograms[phase].getMax();
+	}
+
+	public double getFramesPerSecond() {
+		return framesPerSecond;
+	}
+
+	public void setFramesPerSecond(double framesPerSecond) {
+		this.framesPerSecond = framesPerSecond;
+	}
+
+	public String[] getPhaseNames() {
+		return PHASE_NAMES.clone();
+	}
+
+	public synchronized long[] getCounts() {
+		long[] counts = new long[PHASE_COUNT];
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			counts[i] = histograms[i].getCount();
+		}
+		return counts;
+	}
+
+	public synchronized double[] getP50Millis() {
+		return getPercentileMillis(0.5);
+	}
+
+	public synchronized double[] getP99Millis() {
+		return getPercentileMillis(0.99);
+	}
+
+	public synchronized double[] getMaxMillis() {
+		double[] millis = new double[PHASE_COUNT];
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			millis[i] = histograms[i].getMax() / 1000000.0;
+		}
+		return millis;
+	}
+
+	public synchronized void reset() {
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			histograms[i].reset();
+		}
+	}
+
+	/**
+	 * Registers the stats with the platform MBean server, replacing the
+	 * stats of an earlier game in the same virtual machine.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+		} catch (JMException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Lists p50, p99 and max of every phase in milliseconds, one phase per
+	 * line, and the frames per second.
+	 */
+	public synchronized String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			LatencyHistogram histogram = histograms[i];
+			text.append(String.format("%-9s p50 %7.3f  p99 %7.3f  max %7.3f ms  (%d)%n",
+					PHASE_NAMES[i], histogram.getPercentile(0.5) / 1000000.0,
+					histogram.getPercentile(0.99) / 1000000.0,
+					histogram.getMax() / 1000000.0, histogram.getCount()));
+		}
+		text.append(String.format("%-9s %.1f%n", "fps", framesPerSecond));
+		return text.toString();
+	}
+
+	private double[] getPercentileMillis(double fraction) {
+		double[] millis = new double[PHASE_COUNT];
+		for (int i = 0; i < PHASE_COUNT; i++) {
+			millis[i] = histograms[i].getPercentile(fraction) / 1000000.0;
+		}
+		return millis;
+	}
+}
@@ -0,0 +1,29 @@
+package moller.core;
+
+/**
+ * The management interface of FrameStats, seen in JConsole or VisualVM as
+ * moller:type=FrameStats. The arrays hold one value per phase, in the order
+ * of getPhaseNames().
+ */
+public interface FrameStatsMBean {
+
+	public String[] getPhaseNames();
+
+	public long[] getCounts();
+
+	public double[] getP50Millis();
+
+	public double[] getP99Millis();
+
+	public double[] getMaxMillis();
+
+	/**
+	 * Gets the frames per second reached over the last second.
+	 */
+	public double getFramesPerSecond();
+
+	/**
+	 * Forgets all durations recorded so far.
+	 */
+	public void reset();
+}
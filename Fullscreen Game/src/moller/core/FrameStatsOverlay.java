@@ -0,0 +1,100 @@
+package moller.core;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+
+/**
+ * The FrameStatsOverlay class draws the p50, p99 and max of every phase of
+ * a FrameStats and the frames per second in a box on top of the game. The
+ * text is only remade twice a second, so the numbers can be read and
+ * drawing the overlay costs little.
+ */
+public class FrameStatsOverlay {
+
+	private static final long REFRESH_TIME = 500000000L;
+	private static final int MARGIN = 8;
+	private static final int TOP = 30;
+
+	private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+	private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+
+	private FrameStats frameStats;
+	private String[] lines = new String[0];
+	private long refreshTime;
+
+	public FrameStatsOverlay(FrameStats frameStats) {
+		this.frameStats = frameStats;
+	}
+
+	/**
+	 * Draws the overlay in the top right corner of a screen the width.
+	 */
+	public void draw(Graphics2D g, int screenWidth) {
+		refresh();
+		Font oldFont = g.getFont();
+		Color oldColor = g.getColor();
+		g.setFont(FONT);
+		FontMetrics metrics = g.getFontMetrics();
+		int width = getTextWidth(metrics);
+		int lineHeight = metrics.getHeight();
+		int x = screenWidth - width - MARGIN * 2;
+		g.setColor(BACKGROUND);
+		g.fillRect(x - MARGIN, TOP, width + MARGIN * 2, lineHeight * lines.length
+				+ MARGIN);
+		g.setColor(Color.WHITE);
+		for (int i = 0; i < lines.length; i++) {
+			g.drawString(lines[i], x, TOP + MARGIN / 2 + metrics.getAscent() + i
+					* lineHeight);
+		}
+		g.setFont(oldFont);
+		g.setColor(oldColor);
+	}
+
+	/**
+	 * Sets the rectangle to where the overlay is drawn on a screen the width
+	 * and returns it. Drawing the overlay right after draws within it.
+	 */
+	public Rectangle getBounds(Graphics2D g, int screenWidth, Rectangle bounds) {
+		refresh();
+		FontMetrics metrics = g.getFontMetrics(FONT);
+		int width = getTextWidth(metrics) + MARGIN * 2;
+		bounds.setBounds(screenWidth - width - MARGIN, TOP, width, metrics.getHeight()
+				* lines.length + MARGIN);
+		return bounds;
+	}
+
+	// remakes the text if it is time to
+	private void refresh() {
+		long now = System.nanoTime();
+		if (lines.length == 0 || now - refreshTime >= REFRESH_TIME) {
+			lines = createLines();
+			refreshTime = now;
+		}
+	}
+
+	private int getTextWidth(FontMetrics metrics) {
+		int width = 0;
+		for (int i = 0; i < lines.length; i++) {
+			width = Math.max(width, metrics.stringWidth(lines[i]));
+		}
+		return width;
+	}
+
+	private String[] createLines() {
+		String[] lines = new String[FrameStats.PHASE_COUNT + 2];
+		lines[0] = String.format("%-9s %6s %6s %6s ms", "", "p50", "p99", "max");
+		for (int i = 0; i < FrameStats.PHASE_COUNT; i++) {
+			lines[i + 1] = String.format("%-9s %6.2f %6.2f %6.2f",
+					FrameStats.getPhaseName(i),
+					frameStats.getPercentile(i, 0.5) / 1000000.0,
+					frameStats.getPercentile(i, 0.99) / 1000000.0,
+					frameStats.getMax(i) / 1000000.0);
+		}
+		lines[FrameStats.PHASE_COUNT + 1] = String.format("%-9s %6.1f", "fps",
+				frameStats.getFramesPerSecond());
+		return lines;
+	}
+}
@@ -0,0 +1,97 @@
+package moller.core;
+
+/**
+ * The LatencyHistogram class counts durations in nanoseconds in a fixed set
+ * of buckets, so recording never allocates. Durations under 16 ns get a
+ * bucket each, longer ones share 8 buckets per power of two, so a
+ * percentile is off by at most an eighth. The longest duration is kept
+ * exactly.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// durations below this each have their own bucket
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	private static final int LINEAR_BITS = 4;
+	// durations from 2^40 ns, about 18 minutes, go in the last bucket
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private long[] counts = new long[bucketOf(MAX_VALUE) + 1];
+	private long count;
+	private long total;
+	private long max;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[bucketOf(Math.min(nanos, MAX_VALUE))]++;
+		count++;
+		total += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public long getMean() {
+		return (count > 0) ? total / count : 0;
+	}
+
+	/**
+	 * Gets the duration that the given fraction of the recorded durations,
+	 * from 0 to 1, are shorter than or equal to. That is the upper end of
+	 * its bucket, but never more than the longest duration.
+	 */
+	public long getPercentile(double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(fraction * count), 1);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = 0;
+		}
+		count = 0;
+		total = 0;
+		max = 0;
+	}
+
+	private static int bucketOf(long nanos) {
+		if (nanos < LINEAR_LIMIT) {
+			return (int) nanos;
+		}
+		int bits = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (bits - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (bits - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int bits = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+		int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		int shift = bits - SUB_BUCKET_BITS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
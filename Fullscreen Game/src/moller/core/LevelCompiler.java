@@ -0,0 +1,93 @@
+package moller.core;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import moller.resource.LevelFile;
+
+/**
+ * The LevelCompiler class turns text levels into compiled levels, see
+ * LevelFile. ResourceManager loads the compiled level instead of the text
+ * level when it is not older than the text level.
+ * 
+ * Usage: java moller.core.LevelCompiler [-rle] Levels/Level1.txt ...
+ */
+public class LevelCompiler {
+
+	public static void main(String[] args) throws IOException {
+		boolean runLengthEncode = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-rle")) {
+				runLengthEncode = true;
+			} else {
+				File textFile = new File(args[i]);
+				File compiledFile = LevelFile.getCompiledFile(textFile);
+				compile(textFile, compiledFile, runLengthEncode);
+				System.out.println(textFile + " (" + textFile.length() + " bytes) -> "
+						+ compiledFile + " (" + compiledFile.length() + " bytes)");
+			}
+		}
+	}
+
+	/**
+	 * Compiles a text level using the tile and sprite characters of
+	 * ResourceManager.
+	 */
+	public static void compile(File textFile, File compiledFile,
+			boolean runLengthEncode) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		int width = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(textFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// add every line except for comments (#)
+				if (!line.startsWith("#")) {
+					lines.add(line);
+					width = Math.max(width, line.length());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		int height = lines.size();
+		byte[] tiles = new byte[width * height];
+		int[] spawns = new int[48];
+		int spawnCount = 0;
+		for (int y = 0; y < height; y++) {
+			String line = lines.get(y);
+			for (int x = 0; x < line.length(); x++) {
+				char ch = line.charAt(x);
+				int tile = ResourceManager.TILE_CHARS.indexOf(ch);
+				if (tile >= 0) {
+					tiles[y * width + x] = (byte) (tile + 1);
+				} else if (ResourceManager.SPAWN_CHARS.indexOf(ch) >= 0) {
+					if (spawnCount * 3 == spawns.length) {
+						spawns = Arrays.copyOf(spawns, spawns.length * 2);
+					}
+					spawns[spawnCount * 3] = x;
+					spawns[spawnCount * 3 + 1] = y;
+					spawns[spawnCount * 3 + 2] = ch;
+					spawnCount++;
+				}
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(compiledFile), 65536));
+		try {
+			LevelFile.write(out, width, height, ResourceManager.TILE_CHARS, tiles,
+					spawns, spawnCount, runLengthEncode);
+		} finally {
+			out.close();
+		}
+	}
+}
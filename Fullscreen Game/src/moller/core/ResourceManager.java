@@ -1,292 +1,583 @@
-package moller.core;
-
-import java.awt.*;
-import java.awt.geom.AffineTransform;
-import java.io.*;
-import java.util.ArrayList;
-
-import javax.swing.ImageIcon;
-
-import moller.resource.TileMap;
-import moller.resource.TileMapRenderer;
-import moller.sprites.Animation;
-import moller.sprites.Enemy;
-import moller.sprites.Item;
-import moller.sprites.Player;
-import moller.sprites.Sprite;
-
-/**
- * The ResourceManager class loads and manages tile Images and "host" Sprites
- * used in the game.
- */
-public class ResourceManager {
-
-	public static final int DEFAULT_STARTING_X = 3;
-	public static final int DEFAULT_STARTING_Y = 0;
-
-	private ArrayList tiles;
-	private int currentLevel;
-	private GraphicsConfiguration gc;
-
-	// host sprites used for cloning
-	private Sprite playerSprite;
-	private Sprite coinSprite;
-	private Sprite ammoSprite;
-	private Sprite goalSprite;
-	private Sprite flyingSprite;
-	private Sprite blobSprite;
-	
-	private TileMap currentMap;
-
-	/**
-	 * Creates a new ResourceManager with the specified GraphicsConfiguration.
-	 */
-	public ResourceManager(GraphicsConfiguration gc) {
-		this.gc = gc;
-		loadTileImages();
-		loadCreatureSprites();
-		loadItemSprites();
-	}
-	
-	public void loadTileImages() {
-		tiles = new ArrayList();
-		char ch = 'g';
-		// keep looking for tile g,h,i,...
-		// makes it easier to add new tile images.
-		while (true) {
-			String name = "tile_" + ch + ".png";
-			File file = new File("Images/" + name);
-			if (!file.exists()) {
-				break;
-			}
-			tiles.add(loadImage(name));
-			ch++;
-		}
-	}
-
-	public void loadCreatureSprites() {
-		Image[][] images = new Image[4][];
-		
-		// load left-facing images
-		images[0] = new Image[] { loadImage("player1.png"),
-				loadImage("player2.png"), loadImage("player3.png"),
-				loadImage("blob1.png"), loadImage("blob2.png"),
-				loadImage("blob3.png"), };
-		images[1] = new Image[images[0].length];
-		images[2] = new Image[images[0].length];
-		images[3] = new Image[images[0].length];
-		for (int i = 0; i < images[0].length; i++) {
-			// right-facing images
-			images[1][i] = getMirrorImage(images[0][i]);
-			// left-facing "dead" images
-			images[2][i] = getFlippedImage(images[0][i]);
-			// right-facing "dead" images
-			images[3][i] = getFlippedImage(images[0][i]);
-		}
-
-		// create creature animations
-		Animation[] playerAnimation = new Animation[4];
-		Animation[] blobAnimation = new Animation[4];
-		for (int i = 0; i < 4; i++) {
-			playerAnimation[i] = createPlayerAnim(images[i][0], images[i][1],
-					images[i][2]);
-			blobAnimation[i] = createBlobAnim(images[i][3], images[i][4],
-					images[i][5]);
-		}
-		createCreatureSprites(playerAnimation, blobAnimation);
-	}
-	
-	private void createCreatureSprites(Animation[] playerAnimation, Animation[] blobAnimation) {
-		playerSprite = new Player(playerAnimation[0], playerAnimation[1], playerAnimation[2],
-				playerAnimation[3]);
-		blobSprite = new Enemy.Blob(blobAnimation[0], blobAnimation[1], blobAnimation[2],
-				blobAnimation[3]);
-	}
-
-	private Animation createPlayerAnim(Image player1, Image player2,
-			Image player3) {
-		Animation anim = new Animation();
-		anim.addScene(player1, 250);
-		anim.addScene(player2, 150);
-		anim.addScene(player1, 150);
-		anim.addScene(player2, 150);
-		anim.addScene(player3, 200);
-		anim.addScene(player2, 150);
-		return anim;
-	}
-
-	private Animation createBlobAnim(Image img1, Image img2, Image img3) {
-		Animation anim = new Animation();
-		anim.addScene(img1, 50);
-		anim.addScene(img2, 50);
-		anim.addScene(img3, 50);
-		anim.addScene(img2, 50);
-		return anim;
-	}
-
-	private void loadItemSprites() {
-		loadGoalAnimations();
-		loadAmmoAnimation();
-		loadCoinAnimation();
-	}
-	
-	private void loadGoalAnimations() {
-		Animation anim = new Animation();
-		anim.addScene(loadImage("goal1.png"), 150); // pic1
-		anim.addScene(loadImage("goal2.png"), 150); // pic2
-		anim.addScene(loadImage("goal3.png"), 150); // pic3
-		anim.addScene(loadImage("goal2.png"), 150); // pic2
-		goalSprite = new Item.Goal(anim);
-	}
-	
-	private void loadAmmoAnimation() {
-		Animation anim = new Animation();
-		anim.addScene(loadImage("ammo1.png"), 100); // pic1
-		anim.addScene(loadImage("ammo2.png"), 100); // pic2
-		anim.addScene(loadImage("ammo3.png"), 100); // pic3
-		anim.addScene(loadImage("ammo4.png"), 100); // pic2
-		ammoSprite = new Item.Ammo(anim);
-	}
-	
-	private void loadCoinAnimation() {
-		Animation anim = new Animation();
-		anim.addScene(loadImage("coin1.png"), 150); // pic1
-		anim.addScene(loadImage("coin2.png"), 150); // pic2
-		anim.addScene(loadImage("coin3.png"), 150); // pic3
-		anim.addScene(loadImage("coin2.png"), 150); // pic2
-		coinSprite = new Item.Coin(anim);
-	}
-
-	public Image loadImage(String name) {
-		String filename = "Images/" + name;
-		return new ImageIcon(filename).getImage();
-	}
-
-	public Image getMirrorImage(Image image) {
-		return getTransformedImage(image, -1, 1);
-	}
-
-	public Image getFlippedImage(Image image) {
-		return getTransformedImage(image, 1, -1);
-	}
-
-	private Image getTransformedImage(Image image, float x, float y) {
-		AffineTransform transform = new AffineTransform();
-		transform.scale(x, y);
-		transform.translate((x - 1) * image.getWidth(null) / 2,
-				(y - 1) * image.getHeight(null) / 2);
-
-		Image newImage = gc.createCompatibleImage(image.getWidth(null),
-				image.getHeight(null), Transparency.BITMASK);
-
-		Graphics2D g = (Graphics2D) newImage.getGraphics();
-		g.drawImage(image, transform, null);
-		g.dispose();
-
-		return newImage;
-	}
-
-	public TileMap loadNextLevel() {
-		TileMap map = null;
-		while (map == null) {
-			currentLevel++;
-			try {
-				map = loadLevel("Levels/Level" + currentLevel + ".txt");
-			} catch (IOException ex) {
-				if (currentLevel == 1) {
-					// no maps to load!
-					return null;
-				}
-				currentLevel = 0;
-				map = null;
-			}
-		}
-		return map;
-	}
-
-	public TileMap reloadLevel() {
-		try {
-			return loadLevel("Levels/Level" + currentLevel + ".txt");
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			return null;
-		}
-	}
-
-	// TODO: Combined with the todo below
-	private TileMap loadLevel(String filename) throws IOException {
-		ArrayList<String> lines = readFileAndInitiateTileMap(filename);
-		addTilesAndSprites(lines);
-		addPlayerToMap();
-		return currentMap;
-	}
-
-	// TODO: Can I extract the width in an easy way so I don't have to initiate
-	// the TileMap here? Without having to loop it through it all again..
-	private ArrayList<String> readFileAndInitiateTileMap(String filename) throws IOException {
-		ArrayList<String> lines = new ArrayList<String>();
-		int width = 0;
-
-		BufferedReader reader = new BufferedReader(new FileReader(filename));
-		String line = reader.readLine();
-		do {
-			// add every line except for comments (#)
-			if (!line.startsWith("#")) {
-				lines.add(line);
-				width = Math.max(width, line.length());
-			}
-			line = reader.readLine();
-		} while (line != null);
-		reader.close();
-		currentMap = new TileMap(width, lines.size());
-		return lines;
-	}
-
-	private void addTilesAndSprites(ArrayList<String> lines) {
-		for (int y = 0; y < lines.size(); y++) {
-			String line = lines.get(y);
-			for (int x = 0; x < line.length(); x++) {
-				char ch = line.charAt(x);
-				if (ch == 'g') {
-					currentMap.setTile(x, y, (Image) tiles.get(0));
-				} else if (ch == 'b') {
-					addSprite(ammoSprite, x, y);
-				} else if (ch == 'c') {
-					addSprite(coinSprite, x, y);
-				} else if (ch == 'm') {
-					addSprite(goalSprite, x, y);
-				} else if (ch == '1') {
-					addSprite(flyingSprite, x, y);
-				} else if (ch == 'e') {
-					addSprite(blobSprite, x, y);
-				}
-			}
-		}
-	}
-
-	private void addPlayerToMap() {
-		Sprite player = (Sprite) playerSprite.clone();
-		player.setX(TileMapRenderer.tilesToPixels(DEFAULT_STARTING_X));
-		player.setY(DEFAULT_STARTING_Y);
-		currentMap.setPlayer(player);
-	}
-
-	private void addSprite(Sprite hostSprite, int tileX, int tileY) {
-		if (hostSprite != null) {
-			Sprite sprite = (Sprite) hostSprite.clone();
-			centerSpriteOnTile(sprite, tileX);
-			aligntBottomOfSpriteToTile(sprite, tileY);
-			currentMap.addSprite(sprite);
-		}
-	}
-
-	private void centerSpriteOnTile(Sprite sprite, int tileX) {
-		sprite.setX(TileMapRenderer.tilesToPixels(tileX)
-				+ (TileMapRenderer.tilesToPixels(1) - sprite.getWidth()) / 2);
-	}
-	
-	private void aligntBottomOfSpriteToTile(Sprite sprite, int tileY) {
-		sprite.setY(TileMapRenderer.tilesToPixels(tileY + 1)
-				- sprite.getHeight());
-	}
-}
+package moller.core;
+
+import java.awt.*;
+import java.io.*;
+import java.util.ArrayList;
+
+import moller.resource.ImageCache;
+import moller.resource.ImageLoader;
+import moller.resource.LevelFile;
+import moller.resource.StreamingTileMap;
+import moller.resource.TileMap;
+import moller.resource.TextureAtlas;
+import moller.resource.TileMapRenderer;
+import moller.sprites.AtlasRegion;
+import moller.sprites.Animation;
+import moller.sprites.Enemy;
+import moller.sprites.Item;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+import moller.sprites.SpriteRegistry;
+
+/**
+ * The ResourceManager class loads and manages tile Images and "host" Sprites
+ * used in the game.
+ */
+public class ResourceManager {
+
+	public static final int DEFAULT_STARTING_X = 3;
+	public static final int DEFAULT_STARTING_Y = 0;
+
+	// characters in level files that are tiles, in the order of the tile
+	// images tile_g, tile_h, ...
+	public static final String TILE_CHARS = "g";
+	// characters in level files that spawn a sprite
+	public static final String SPAWN_CHARS = "bcm1e";
+
+	private static final String[] CREATURE_IMAGES = { "player1.png", "player2.png",
+			"player3.png", "blob1.png", "blob2.png", "blob3.png" };
+	private static final String[] ITEM_IMAGES = { "goal1.png", "goal2.png",
+			"goal3.png", "ammo1.png", "ammo2.png", "ammo3.png", "ammo4.png",
+			"coin1.png", "coin2.png", "coin3.png" };
+	private static final String BULLET_IMAGE = "bullet1.png";
+	private static final String BACKGROUND_IMAGE = "background.png";
+
+	private ArrayList<Image> tiles;
+	private int currentLevel;
+	private GraphicsConfiguration gc;
+
+	// host sprites used for cloning, the ones spawned by level characters
+	// are in the registry
+	private Sprite playerSprite;
+	private SpriteRegistry spriteRegistry = new SpriteRegistry();
+
+	private Animation bulletRightAnimation;
+	private Animation bulletLeftAnimation;
+
+	// every animation made for the host sprites
+	private ArrayList<Animation> animations = new ArrayList<Animation>();
+	private TextureAtlas atlas;
+
+	private ImageCache imageCache;
+	private String startupReport;
+	
+	private TileMap currentMap;
+
+	private boolean streaming;
+	private long streamingMemoryBudget = StreamingTileMap.DEFAULT_MEMORY_BUDGET;
+	private boolean closingReplacedMaps = true;
+
+	/**
+	 * Creates a new ResourceManager with the specified GraphicsConfiguration.
+	 * The GraphicsConfiguration may be null when there is no screen.
+	 */
+	public ResourceManager(GraphicsConfiguration gc) {
+		this(gc, true);
+	}
+
+	/**
+	 * Creates a new ResourceManager that packs all images into a
+	 * TextureAtlas if useAtlas is true.
+	 */
+	public ResourceManager(GraphicsConfiguration gc, boolean useAtlas) {
+		this(gc, useAtlas, ImageCache.DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Creates a new ResourceManager whose image cache keeps at most
+	 * imageCacheBudget bytes of decoded images, see ImageCache.setBudget.
+	 */
+	public ResourceManager(GraphicsConfiguration gc, boolean useAtlas,
+			long imageCacheBudget) {
+		this.gc = gc;
+		long start = System.nanoTime();
+		imageCache = new ImageCache(gc);
+		imageCache.setBudget(imageCacheBudget);
+		ImageLoader loader = new ImageLoader(gc);
+		imageCache.setLoader(loader);
+		try {
+			prefetchImages();
+			loadTileImages();
+			loadCreatureSprites();
+			loadItemSprites();
+		} finally {
+			imageCache.setLoader(null);
+			loader.shutdown();
+		}
+		long spritesDone = System.nanoTime();
+		if (useAtlas) {
+			buildAtlas();
+		}
+		long end = System.nanoTime();
+		startupReport = createStartupReport(loader, start, spritesDone, end);
+	}
+
+	// starts decoding every image the constructor and the game need, and
+	// transforming the creature and bullet images once they are decoded
+	private void prefetchImages() {
+		for (char ch = 'g'; new File("Images/tile_" + ch + ".png").exists(); ch++) {
+			prefetch("tile_" + ch + ".png", ImageCache.ORIGINAL);
+		}
+		for (int i = 0; i < CREATURE_IMAGES.length; i++) {
+			prefetch(CREATURE_IMAGES[i], ImageCache.MIRRORED);
+			prefetch(CREATURE_IMAGES[i], ImageCache.FLIPPED);
+		}
+		for (int i = 0; i < ITEM_IMAGES.length; i++) {
+			prefetch(ITEM_IMAGES[i], ImageCache.ORIGINAL);
+		}
+		prefetch(BULLET_IMAGE, ImageCache.MIRRORED);
+		prefetch(BACKGROUND_IMAGE, ImageCache.ORIGINAL);
+	}
+
+	private void prefetch(String name, int transform) {
+		imageCache.prefetch("Images/" + name, transform);
+	}
+
+	// gets an image of the Images folder from the cache
+	private Image getImage(String name, int transform) {
+		return imageCache.get("Images/" + name, transform);
+	}
+
+	private String createStartupReport(ImageLoader loader, long start,
+			long spritesDone, long end) {
+		StringBuilder report = new StringBuilder();
+		report.append("decode: ").append(loader.getCount(ImageLoader.DECODE))
+				.append(" images, ")
+				.append(toMillis(loader.getBusyTime(ImageLoader.DECODE)))
+				.append(" ms of work, done after ")
+				.append(toMillis(loader.getFinishTime(ImageLoader.DECODE) - start))
+				.append(" ms\n");
+		report.append("transform: ").append(loader.getCount(ImageLoader.TRANSFORM))
+				.append(" images, ")
+				.append(toMillis(loader.getBusyTime(ImageLoader.TRANSFORM)))
+				.append(" ms of work, done after ")
+				.append(toMillis(loader.getFinishTime(ImageLoader.TRANSFORM) - start))
+				.append(" ms\n");
+		report.append("sprites: done after ").append(toMillis(spritesDone - start))
+				.append(" ms\n");
+		report.append("atlas: ").append(toMillis(end - spritesDone))
+				.append(" ms, done after ").append(toMillis(end - start))
+				.append(" ms\n");
+		report.append("total: ").append(toMillis(end - start)).append(" ms on ")
+				.append(loader.getThreadCount()).append(" threads\n");
+		report.append("image cache: ").append(imageCache.size()).append(" images, ")
+				.append(imageCache.getBytes() / 1024).append(" KB, ")
+				.append(imageCache.getHitCount()).append(" hits, ")
+				.append(imageCache.getMissCount()).append(" misses");
+		return report.toString();
+	}
+
+	private static long toMillis(long nanos) {
+		return Math.max(nanos, 0) / 1000000;
+	}
+
+	/**
+	 * Gets how long loading the images and building the host sprites took,
+	 * phase by phase, one phase per line.
+	 */
+	public String getStartupReport() {
+		return startupReport;
+	}
+
+	/**
+	 * Gets the atlas holding the images of the tiles and host sprites, or
+	 * null if no atlas is used.
+	 */
+	public TextureAtlas getAtlas() {
+		return atlas;
+	}
+
+	// packs the tiles and all scenes into an atlas, and makes them use it
+	private void buildAtlas() {
+		atlas = new TextureAtlas(gc, TextureAtlas.DEFAULT_PAGE_SIZE);
+		for (int i = 0; i < tiles.size(); i++) {
+			atlas.add(tiles.get(i));
+		}
+		for (int i = 0; i < animations.size(); i++) {
+			Animation animation = animations.get(i);
+			for (int j = 0; j < animation.getSceneCount(); j++) {
+				atlas.add(animation.getSceneImage(j));
+			}
+		}
+		atlas.pack();
+
+		for (int i = 0; i < tiles.size(); i++) {
+			AtlasRegion region = atlas.getRegion(tiles.get(i));
+			if (region != null) {
+				tiles.set(i, region.getImage());
+			}
+		}
+		for (int i = 0; i < animations.size(); i++) {
+			Animation animation = animations.get(i);
+			for (int j = 0; j < animation.getSceneCount(); j++) {
+				AtlasRegion region = atlas.getRegion(animation.getSceneImage(j));
+				if (region != null) {
+					animation.setSceneRegion(j, region);
+				}
+			}
+		}
+	}
+
+	private Animation createAnimation() {
+		Animation animation = new Animation();
+		animations.add(animation);
+		return animation;
+	}
+	
+	public void loadTileImages() {
+		tiles = new ArrayList<Image>();
+		char ch = 'g';
+		// keep looking for tile g,h,i,...
+		// makes it easier to add new tile images.
+		while (true) {
+			String name = "tile_" + ch + ".png";
+			File file = new File("Images/" + name);
+			if (!file.exists()) {
+				break;
+			}
+			tiles.add(getImage(name, ImageCache.ORIGINAL));
+			ch++;
+		}
+	}
+
+	public void loadCreatureSprites() {
+		Image[][] images = new Image[4][];
+		
+		images[0] = new Image[CREATURE_IMAGES.length];
+		images[1] = new Image[images[0].length];
+		images[2] = new Image[images[0].length];
+		images[3] = new Image[images[0].length];
+		for (int i = 0; i < images[0].length; i++) {
+			// left-facing images
+			images[0][i] = getImage(CREATURE_IMAGES[i], ImageCache.ORIGINAL);
+			// right-facing images
+			images[1][i] = getImage(CREATURE_IMAGES[i], ImageCache.MIRRORED);
+			// left-facing "dead" images
+			images[2][i] = getImage(CREATURE_IMAGES[i], ImageCache.FLIPPED);
+			// right-facing "dead" images
+			images[3][i] = images[2][i];
+		}
+
+		// create creature animations
+		Animation[] playerAnimation = new Animation[4];
+		Animation[] blobAnimation = new Animation[4];
+		for (int i = 0; i < 4; i++) {
+			playerAnimation[i] = createPlayerAnim(images[i][0], images[i][1],
+					images[i][2]);
+			blobAnimation[i] = createBlobAnim(images[i][3], images[i][4],
+					images[i][5]);
+		}
+		createCreatureSprites(playerAnimation, blobAnimation);
+	}
+	
+	private void createCreatureSprites(Animation[] playerAnimation, Animation[] blobAnimation) {
+		// the animations are left, right, left dead and right dead
+		playerSprite = new Player(playerAnimation[1], playerAnimation[0], playerAnimation[3],
+				playerAnimation[2]);
+		spriteRegistry.register('e', new Enemy.Blob(blobAnimation[1], blobAnimation[0],
+				blobAnimation[3], blobAnimation[2]));
+	}
+
+	private Animation createPlayerAnim(Image player1, Image player2,
+			Image player3) {
+		Animation anim = createAnimation();
+		anim.addScene(player1, 250);
+		anim.addScene(player2, 150);
+		anim.addScene(player1, 150);
+		anim.addScene(player2, 150);
+		anim.addScene(player3, 200);
+		anim.addScene(player2, 150);
+		return anim;
+	}
+
+	private Animation createBlobAnim(Image img1, Image img2, Image img3) {
+		Animation anim = createAnimation();
+		anim.addScene(img1, 50);
+		anim.addScene(img2, 50);
+		anim.addScene(img3, 50);
+		anim.addScene(img2, 50);
+		return anim;
+	}
+
+	private void loadItemSprites() {
+		loadGoalAnimations();
+		loadAmmoAnimation();
+		loadCoinAnimation();
+		loadBulletAnimations();
+	}
+
+	private void loadBulletAnimations() {
+		bulletRightAnimation = createAnimation();
+		bulletRightAnimation.addScene(getImage(BULLET_IMAGE, ImageCache.ORIGINAL), 100);
+		bulletLeftAnimation = createAnimation();
+		bulletLeftAnimation.addScene(getImage(BULLET_IMAGE, ImageCache.MIRRORED), 100);
+	}
+
+	/**
+	 * Gets the animation of a bullet flying left or right. The animation is
+	 * loaded once and shared by all bullets.
+	 */
+	public Animation getBulletAnimation(boolean left) {
+		return left ? bulletLeftAnimation : bulletRightAnimation;
+	}
+	
+	private void loadGoalAnimations() {
+		Animation anim = createAnimation();
+		anim.addScene(getImage("goal1.png", ImageCache.ORIGINAL), 150); // pic1
+		anim.addScene(getImage("goal2.png", ImageCache.ORIGINAL), 150); // pic2
+		anim.addScene(getImage("goal3.png", ImageCache.ORIGINAL), 150); // pic3
+		anim.addScene(getImage("goal2.png", ImageCache.ORIGINAL), 150); // pic2
+		spriteRegistry.register('m', new Item.Goal(anim));
+	}
+	
+	private void loadAmmoAnimation() {
+		Animation anim = createAnimation();
+		anim.addScene(getImage("ammo1.png", ImageCache.ORIGINAL), 100); // pic1
+		anim.addScene(getImage("ammo2.png", ImageCache.ORIGINAL), 100); // pic2
+		anim.addScene(getImage("ammo3.png", ImageCache.ORIGINAL), 100); // pic3
+		anim.addScene(getImage("ammo4.png", ImageCache.ORIGINAL), 100); // pic2
+		spriteRegistry.register('b', new Item.Ammo(anim));
+	}
+	
+	private void loadCoinAnimation() {
+		Animation anim = createAnimation();
+		anim.addScene(getImage("coin1.png", ImageCache.ORIGINAL), 150); // pic1
+		anim.addScene(getImage("coin2.png", ImageCache.ORIGINAL), 150); // pic2
+		anim.addScene(getImage("coin3.png", ImageCache.ORIGINAL), 150); // pic3
+		anim.addScene(getImage("coin2.png", ImageCache.ORIGINAL), 150); // pic2
+		spriteRegistry.register('c', new Item.Coin(anim));
+	}
+
+	/**
+	 * Loads an image from the Images folder, through the image cache.
+	 */
+	public Image loadImage(String name) {
+		return getImage(name, ImageCache.ORIGINAL);
+	}
+
+	/**
+	 * Gets the cache every image file is loaded through, for its budget and
+	 * counters.
+	 */
+	public ImageCache getImageCache() {
+		return imageCache;
+	}
+
+	public Image getMirrorImage(Image image) {
+		return getTransformedImage(image, -1, 1);
+	}
+
+	public Image getFlippedImage(Image image) {
+		return getTransformedImage(image, 1, -1);
+	}
+
+	private Image getTransformedImage(Image image, float x, float y) {
+		return ImageLoader.transform(image, x, y, gc);
+	}
+
+	public TileMap loadNextLevel() {
+		TileMap map = null;
+		while (map == null) {
+			currentLevel++;
+			try {
+				map = loadLevel("Levels/Level" + currentLevel + ".txt");
+			} catch (IOException ex) {
+				if (currentLevel == 1) {
+					// no maps to load!
+					return null;
+				}
+				currentLevel = 0;
+				map = null;
+			}
+		}
+		return map;
+	}
+
+	public TileMap reloadLevel() {
+		try {
+			return loadLevel("Levels/Level" + currentLevel + ".txt");
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return null;
+		}
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Chooses whether levels are loaded as a StreamingTileMap, which only
+	 * keeps the part of the level around the player in memory, instead of
+	 * being read completely up front.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Sets how many bytes of tiles a streamed level may hold in memory.
+	 */
+	public void setStreamingMemoryBudget(long bytes) {
+		streamingMemoryBudget = bytes;
+	}
+
+	/**
+	 * Sets how many bytes of decoded images the image cache may keep. The
+	 * cache forgets images right away if it keeps more.
+	 */
+	public void setImageCacheBudget(long bytes) {
+		imageCache.setBudget(bytes);
+	}
+
+	public long getImageCacheBudget() {
+		return imageCache.getBudget();
+	}
+
+	/**
+	 * Chooses whether loading a level closes the map of the level before.
+	 * A game still drawing the old map on another thread turns it off and
+	 * closes the map itself once it is no longer drawn.
+	 */
+	public void setClosingReplacedMaps(boolean closingReplacedMaps) {
+		this.closingReplacedMaps = closingReplacedMaps;
+	}
+
+	/**
+	 * Loads a level from a text file or a compiled file ending with
+	 * LevelFile.EXTENSION. A text level is loaded from its compiled file
+	 * instead when there is one that is not older than the text file.
+	 *
+	 * While streaming, text levels are streamed from the text file, but a
+	 * compiled file can not be streamed and is read completely.
+	 */
+	// TODO: Combined with the todo below
+	public TileMap loadLevel(String filename) throws IOException {
+		TileMap oldMap = currentMap;
+		File file = new File(filename);
+		boolean compiled = filename.endsWith(LevelFile.EXTENSION);
+		File compiledFile = compiled ? file : LevelFile.getCompiledFile(file);
+		if (streaming && !compiled) {
+			openStreamingMap(filename);
+		} else if (isUpToDate(compiledFile, file)) {
+			readCompiledMap(compiledFile);
+		} else {
+			ArrayList<String> lines = readFileAndInitiateTileMap(filename);
+			addTilesAndSprites(lines);
+		}
+		addPlayerToMap();
+		if (oldMap != null && closingReplacedMaps) {
+			oldMap.close();
+		}
+		return currentMap;
+	}
+
+	private boolean isUpToDate(File compiledFile, File textFile) {
+		if (compiledFile.equals(textFile)) {
+			return true;
+		}
+		return compiledFile.exists()
+				&& compiledFile.lastModified() >= textFile.lastModified();
+	}
+
+	private void readCompiledMap(File file) throws IOException {
+		Image[] tileImages = new Image[TILE_CHARS.length()];
+		for (int i = 0; i < tileImages.length; i++) {
+			tileImages[i] = tiles.get(i);
+		}
+		currentMap = LevelFile.read(file, TILE_CHARS, tileImages,
+				new StreamingTileMap.SpawnListener() {
+			public Sprite spawn(TileMap map, char ch, int tileX, int tileY) {
+				return addSprite(map, ch, tileX, tileY);
+			}
+		});
+	}
+
+	private void openStreamingMap(String filename) throws IOException {
+		StreamingTileMap map = new StreamingTileMap(new File(filename));
+		map.setMemoryBudget(streamingMemoryBudget);
+		map.mapCharToTile('g', tiles.get(0));
+		for (int i = 0; i < SPAWN_CHARS.length(); i++) {
+			map.mapCharToSpawn(SPAWN_CHARS.charAt(i));
+		}
+		map.setSpawnListener(new StreamingTileMap.SpawnListener() {
+			public Sprite spawn(TileMap map, char ch, int tileX, int tileY) {
+				return addSprite(map, ch, tileX, tileY);
+			}
+		});
+		currentMap = map;
+		map.setFocus(DEFAULT_STARTING_X);
+	}
+
+	// TODO: Can I extract the width in an easy way so I don't have to initiate
+	// the TileMap here? Without having to loop it through it all again..
+	private ArrayList<String> readFileAndInitiateTileMap(String filename) throws IOException {
+		ArrayList<String> lines = new ArrayList<String>();
+		int width = 0;
+
+		BufferedReader reader = new BufferedReader(new FileReader(filename));
+		String line = reader.readLine();
+		do {
+			// add every line except for comments (#)
+			if (!line.startsWith("#")) {
+				lines.add(line);
+				width = Math.max(width, line.length());
+			}
+			line = reader.readLine();
+		} while (line != null);
+		reader.close();
+		currentMap = new TileMap(width, lines.size());
+		return lines;
+	}
+
+	private void addTilesAndSprites(ArrayList<String> lines) {
+		for (int y = 0; y < lines.size(); y++) {
+			String line = lines.get(y);
+			for (int x = 0; x < line.length(); x++) {
+				char ch = line.charAt(x);
+				if (ch == 'g') {
+					currentMap.setTile(x, y, tiles.get(0));
+				} else {
+					addSprite(currentMap, ch, x, y);
+				}
+			}
+		}
+	}
+
+	private void addPlayerToMap() {
+		Sprite player = (Sprite) playerSprite.clone();
+		player.setX(TileMapRenderer.tilesToPixels(DEFAULT_STARTING_X));
+		player.setY(DEFAULT_STARTING_Y);
+		player.savePreviousPosition();
+		currentMap.setPlayer(player);
+	}
+
+	/**
+	 * Gets the registry of the sprites spawned by level characters.
+	 */
+	public SpriteRegistry getSpriteRegistry() {
+		return spriteRegistry;
+	}
+
+	// spawns the sprite of a level character, if it has one
+	private Sprite addSprite(TileMap map, char ch, int tileX, int tileY) {
+		Sprite sprite = spriteRegistry.create(ch);
+		if (sprite != null) {
+			centerSpriteOnTile(sprite, tileX);
+			aligntBottomOfSpriteToTile(sprite, tileY);
+			sprite.savePreviousPosition();
+			map.addSprite(sprite);
+		}
+		return sprite;
+	}
+
+	private void centerSpriteOnTile(Sprite sprite, int tileX) {
+		sprite.setX(TileMapRenderer.tilesToPixels(tileX)
+				+ (TileMapRenderer.tilesToPixels(1) - sprite.getWidth()) / 2);
+	}
+	
+	private void aligntBottomOfSpriteToTile(Sprite sprite, int tileY) {
+		sprite.setY(TileMapRenderer.tilesToPixels(tileY + 1)
+				- sprite.getHeight());
+	}
+}
@@ -0,0 +1,69 @@
+package moller.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TripleBuffer class hands objects from one writing thread to one
+ * reading thread without locks. The writer fills the back object and
+ * publishes it, the reader takes the latest published object as its front
+ * object. Neither ever waits for the other: the third object is the one in
+ * the middle, published but not yet taken. Publishing again before the
+ * reader took the middle object replaces it, so the reader always gets the
+ * latest one and skips the others.
+ *
+ * An object is only touched by one thread at a time, so the objects can be
+ * reused instead of allocated for every hand over.
+ */
+public class TripleBuffer<T> {
+
+	private static final int INDEX_MASK = 3;
+	// set while the middle object was published and not yet taken
+	private static final int FRESH = 4;
+
+	private Object[] objects;
+	private AtomicInteger middle = new AtomicInteger(1);
+	// only used by the writer
+	private int back = 0;
+	// only used by the reader
+	private int front = 2;
+
+	public TripleBuffer(T first, T second, T third) {
+		objects = new Object[] { first, second, third };
+	}
+
+	/**
+	 * Gets the object the writer may fill.
+	 */
+	@SuppressWarnings("unchecked")
+	public T getBack() {
+		return (T) objects[back];
+	}
+
+	/**
+	 * Hands the back object to the reader. The writer gets another object
+	 * to fill.
+	 */
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+	}
+
+	/**
+	 * Takes the latest published object as the front object, if one was
+	 * published since the last call. Returns true if so.
+	 */
+	public boolean update() {
+		if ((middle.get() & FRESH) == 0) {
+			return false;
+		}
+		front = middle.getAndSet(front) & INDEX_MASK;
+		return true;
+	}
+
+	/**
+	 * Gets the object the reader took last.
+	 */
+	@SuppressWarnings("unchecked")
+	public T getFront() {
+		return (T) objects[front];
+	}
+}
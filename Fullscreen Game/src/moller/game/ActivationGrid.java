@@ -0,0 +1,147 @@
+package moller.game;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.EntityStore;
+import moller.sprites.Sprite;
+
+/**
+ * The ActivationGrid class decides which sprites of a TileMap are updated.
+ * The sprites are kept in regions of REGION_WIDTH tile columns, by the column
+ * of their left side. Only the sprites of active regions are updated, so the
+ * cost of a tick depends on how much of the map is around the camera instead
+ * of on the length of the map. A sprite in a sleeping region keeps its state
+ * until its region wakes up again.
+ *
+ * Regions wake up when they come within the margin of the camera, but only
+ * go to sleep again when they are another region further away, so a camera
+ * moving back and forth over a region boundary does not wake and sleep the
+ * region every tick.
+ */
+public class ActivationGrid {
+
+	private static final int REGION_BITS = 4;
+	public static final int REGION_WIDTH = 1 << REGION_BITS;
+
+	private int regionCount;
+	private ArrayList<Sprite>[] regions;
+	private IdentityHashMap<Sprite, Integer> regionOfSprite;
+	// the active regions, from first to last, or none if last < first
+	private int firstActive;
+	private int lastActive;
+
+	public ActivationGrid(TileMap tileMap) {
+		rebuild(tileMap);
+	}
+
+	/**
+	 * Clears the grid and adds all sprites of the specified TileMap. All
+	 * regions sleep until activate is called.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void rebuild(TileMap tileMap) {
+		regionCount = Math.max((tileMap.getWidth() + REGION_WIDTH - 1) >> REGION_BITS, 1);
+		regions = new ArrayList[regionCount];
+		regionOfSprite = new IdentityHashMap<Sprite, Integer>();
+		firstActive = 0;
+		lastActive = -1;
+		EntityStore entities = tileMap.getEntities();
+		for (int i = 0; i < entities.size(); i++) {
+			add(entities.getSprite(i));
+		}
+	}
+
+	public void add(Sprite sprite) {
+		int region = getRegion(sprite);
+		addToRegion(sprite, region);
+		regionOfSprite.put(sprite, region);
+	}
+
+	public void remove(Sprite sprite) {
+		Integer region = regionOfSprite.remove(sprite);
+		if (region != null) {
+			removeFromRegion(sprite, region);
+		}
+	}
+
+	/**
+	 * Moves the sprite to another region if it has left its old one, or adds
+	 * it if it is not in the grid yet. Should be called every time a sprite
+	 * in the map has moved.
+	 */
+	public void update(Sprite sprite) {
+		Integer oldRegion = regionOfSprite.get(sprite);
+		if (oldRegion == null) {
+			add(sprite);
+			return;
+		}
+		int newRegion = getRegion(sprite);
+		if (newRegion != oldRegion) {
+			removeFromRegion(sprite, oldRegion);
+			addToRegion(sprite, newRegion);
+			regionOfSprite.put(sprite, newRegion);
+		}
+	}
+
+	public int size() {
+		return regionOfSprite.size();
+	}
+
+	/**
+	 * Wakes up the regions within margin tiles of the columns from
+	 * firstColumn to lastColumn, and puts the regions more than a region
+	 * further away to sleep.
+	 */
+	public void activate(int firstColumn, int lastColumn, int margin) {
+		int firstAwake = clamp((firstColumn - margin) >> REGION_BITS);
+		int lastAwake = clamp((lastColumn + margin) >> REGION_BITS);
+		if (lastActive < firstActive) {
+			firstActive = firstAwake;
+			lastActive = lastAwake;
+			return;
+		}
+		// stays between the regions that must be awake and the regions
+		// that may still be awake
+		firstActive = Math.min(Math.max(firstActive, clamp(firstAwake - 1)), firstAwake);
+		lastActive = Math.max(Math.min(lastActive, clamp(lastAwake + 1)), lastAwake);
+	}
+
+	/**
+	 * Adds the sprites of the active regions to the result list, region by
+	 * region.
+	 */
+	public void getActiveSprites(ArrayList<Sprite> result) {
+		for (int region = firstActive; region <= lastActive; region++) {
+			if (regions[region] != null && !regions[region].isEmpty()) {
+				result.addAll(regions[region]);
+			}
+		}
+	}
+
+	private void addToRegion(Sprite sprite, int region) {
+		if (regions[region] == null) {
+			regions[region] = new ArrayList<Sprite>(4);
+		}
+		regions[region].add(sprite);
+	}
+
+	// frees the list of a region once it is empty, so a long level only
+	// holds lists for the regions with sprites in them
+	private void removeFromRegion(Sprite sprite, int region) {
+		regions[region].remove(sprite);
+		if (regions[region].isEmpty()) {
+			regions[region] = null;
+		}
+	}
+
+	private int getRegion(Sprite sprite) {
+		return clamp(TileMapRenderer.pixelsToTiles(sprite.getX()) >> REGION_BITS);
+	}
+
+	private int clamp(int region) {
+		return Math.max(0, Math.min(region, regionCount - 1));
+	}
+}
@@ -0,0 +1,65 @@
+package moller.game;
+
+import java.util.ArrayList;
+
+import moller.sprites.Animation;
+import moller.sprites.Bullet;
+
+/**
+ * The BulletPool class keeps bullets that are done flying, so firing reuses
+ * them instead of creating new ones. Up to MAX_FREE_BULLETS are kept, the
+ * rest are left to the garbage collector.
+ */
+public class BulletPool {
+
+	private static final int MAX_FREE_BULLETS = 64;
+
+	private Animation rightAnimation;
+	private Animation leftAnimation;
+	private ArrayList<Bullet> free = new ArrayList<Bullet>();
+	private long createdCount;
+
+	public BulletPool(Animation rightAnimation, Animation leftAnimation) {
+		this.rightAnimation = rightAnimation;
+		this.leftAnimation = leftAnimation;
+	}
+
+	/**
+	 * Gets a bullet flying left or right from the specified position.
+	 */
+	public Bullet obtain(float x, float y, boolean left) {
+		Animation animation = left ? leftAnimation : rightAnimation;
+		float velocityX = left ? -Bullet.BULLET_SPEED : Bullet.BULLET_SPEED;
+		Bullet bullet;
+		if (free.isEmpty()) {
+			bullet = new Bullet.HandGunBullet(animation, x, y);
+			bullet.setVelocityX(velocityX);
+			bullet.savePreviousPosition();
+			createdCount++;
+		} else {
+			bullet = free.remove(free.size() - 1);
+			bullet.reset(animation, x, y, velocityX);
+		}
+		return bullet;
+	}
+
+	/**
+	 * Takes back a bullet that is no longer used.
+	 */
+	public void release(Bullet bullet) {
+		if (free.size() < MAX_FREE_BULLETS) {
+			free.add(bullet);
+		}
+	}
+
+	public int getFreeCount() {
+		return free.size();
+	}
+
+	/**
+	 * Gets how many bullets the pool has created so far.
+	 */
+	public long getCreatedCount() {
+		return createdCount;
+	}
+}
@@ -1,139 +1,248 @@
-package moller.game;
-
-import java.awt.Point;
-import java.util.Iterator;
-
-import moller.resource.TileMap;
-import moller.resource.TileMapRenderer;
-import moller.sprites.Bullet;
-import moller.sprites.Creature;
-import moller.sprites.Item;
-import moller.sprites.Player;
-import moller.sprites.Sprite;
-
-public class CollisionManager {
-	
-	private TileMap tileMap;
-	
-	public CollisionManager(TileMap tileMap) {
-		this.tileMap = tileMap;
-	}
-	
-	protected void setTileMap(TileMap tileMap) {
-		this.tileMap = tileMap;
-	}
-	
-	public void checkBulletCollision(Bullet bullet, boolean canKill) {
-		if (!bullet.isVisible()) {
-			return;
-		}
-		Sprite collisionSprite = getSpriteCollision(bullet);
-		if (collisionSprite instanceof Creature) {
-			Creature enemyCreature = (Creature) collisionSprite;
-			if (canKill) {
-				enemyCreature.setState(Creature.STATE_DYING);
-				bullet.setY(enemyCreature.getY() - bullet.getHeight());
-				bullet.setVisible(false);
-			} else {
-				bullet.setVisible(false);
-			}
-		}
-	}
-	
-	public Point getTileCollision(Sprite sprite, float newX, float newY) {
-		float fromX = Math.min(sprite.getX(), newX);
-		float fromY = Math.min(sprite.getY(), newY);
-		float toX = Math.max(sprite.getX(), newX);
-		float toY = Math.max(sprite.getY(), newY);
-
-		// get the tile locations
-		int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
-		int fromTileY = TileMapRenderer.pixelsToTiles(fromY);
-		int toTileX = TileMapRenderer
-				.pixelsToTiles(toX + sprite.getWidth() - 1);
-		int toTileY = TileMapRenderer.pixelsToTiles(toY + sprite.getHeight()
-				- 1);
-
-		return checkTilesForCollision(fromTileX, toTileX, fromTileY, toTileY);
-	}
-	
-	private Point checkTilesForCollision(int fromTileX, int toTileX, int fromTileY, int toTileY) {
-		for (int x = fromTileX; x <= toTileX; x++) {
-			for (int y = fromTileY; y <= toTileY; y++) {
-				if (x < 0 || x >= tileMap.getWidth() || tileMap.getTile(x, y) != null) {
-					return new Point(x, y);
-				}
-			}
-		}
-		return null;
-	}
-
-	public void checkPlayerCollision(Player player, boolean canKill) {
-		if (!player.isAlive()) {
-			return;
-		}
-
-		Sprite collisionSprite = getSpriteCollision(player);
-		if (collisionSprite instanceof Item) {
-			acquirePowerUp(player, (Item) collisionSprite);
-		} else if (collisionSprite instanceof Creature) {
-			Creature enemyCreature = (Creature) collisionSprite;
-			if (canKill) {
-				enemyCreature.setState(Creature.STATE_DYING);
-				player.setY(enemyCreature.getY() - player.getHeight());
-				player.jump(true);
-			} else {
-				player.setState(Creature.STATE_DYING);
-			}
-		}
-	}
-	
-	public Sprite getSpriteCollision(Sprite sprite) {
-		Iterator i = tileMap.getSprites();
-		while (i.hasNext()) {
-			Sprite otherSprite = (Sprite) i.next();
-			if (isCollision(sprite, otherSprite)) {
-				return otherSprite;
-			}
-		}
-		return null;
-	}
-
-	public boolean isCollision(Sprite sprite1, Sprite sprite2) {
-		if (sprite1 == sprite2)
-			return false;
-		return  isSpritesAlive(sprite1, sprite2) && spritesInteresects(sprite1, sprite2);
-	}
-	
-	private boolean isSpritesAlive(Sprite sprite1, Sprite sprite2) {
-		if (sprite1 instanceof Creature && !((Creature) sprite1).isAlive()) {
-			return false;
-		}
-		if (sprite2 instanceof Creature && !((Creature) sprite2).isAlive()) {
-			return false;
-		}
-		return true;
-	}
-	
-	private boolean spritesInteresects(Sprite sprite1, Sprite sprite2) {
-		int s1x = Math.round(sprite1.getX());
-		int s1y = Math.round(sprite1.getY());
-		int s2x = Math.round(sprite2.getX());
-		int s2y = Math.round(sprite2.getY());
-
-		return (s1x < s2x + sprite2.getWidth() && s2x < s1x + sprite1.getWidth()
-				&& s1y < s2y + sprite2.getHeight() && s2y < s1y + sprite1.getHeight());
-	}
-	
-	public void acquirePowerUp(Player player, Item powerUp) {
-		if (powerUp instanceof Item.Coin) {
-			player.setCoins(player.getCoins() + 1);
-		} else if (powerUp instanceof Item.Ammo) {
-			player.setAmmo(Player.WEAPON_PISTOL, 1);
-		} else if (powerUp instanceof Item.Goal) {
-			// advance to next map
-//TODO			tileMap = resourceManager.loadNextLevel();
-		}
-		tileMap.removeSprite(powerUp);
-	}
-}
+package moller.game;
+
+import java.util.ArrayList;
+
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.Bullet;
+import moller.sprites.Creature;
+import moller.sprites.EntityStore;
+import moller.sprites.Item;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+
+public class CollisionManager {
+	
+	private TileMap tileMap;
+	private SpatialGrid grid;
+	// reused by getSpriteCollision so queries do not allocate
+	private ArrayList<Sprite> candidates = new ArrayList<Sprite>();
+	
+	public CollisionManager(TileMap tileMap) {
+		this.tileMap = tileMap;
+		grid = new SpatialGrid(tileMap);
+	}
+	
+	protected void setTileMap(TileMap tileMap) {
+		this.tileMap = tileMap;
+		grid.rebuild(tileMap);
+	}
+
+	// Keeps the sprite in the right grid cell after it has moved.
+	void spriteMoved(Sprite sprite) {
+		grid.update(sprite);
+	}
+
+	// Must be called when a sprite is removed from the TileMap.
+	void spriteRemoved(Sprite sprite) {
+		grid.remove(sprite);
+	}
+	
+	public void checkBulletCollision(Bullet bullet, boolean canKill) {
+		if (!bullet.isVisible()) {
+			return;
+		}
+		Sprite collisionSprite = getSpriteCollision(bullet);
+		if (collisionSprite instanceof Creature) {
+			Creature enemyCreature = (Creature) collisionSprite;
+			if (canKill) {
+				enemyCreature.setState(Creature.STATE_DYING);
+				bullet.setY(enemyCreature.getY() - bullet.getHeight());
+				bullet.setVisible(false);
+			} else {
+				bullet.setVisible(false);
+			}
+		}
+	}
+	
+	/**
+	 * Checks the move of a sprite from where it is to the new position
+	 * against the solid tiles of the map, and the left and right side of the
+	 * map. The tiles are checked in the order the sprite reaches them, so
+	 * the first one hit is found however far the sprite moves. Returns false
+	 * if the move hits nothing, or true with the hit set to where the sprite
+	 * first touched a solid tile.
+	 */
+	public boolean getTileCollision(Sprite sprite, float newX, float newY, TileHit hit) {
+		float x = sprite.getX();
+		float y = sprite.getY();
+		int width = sprite.getWidth();
+		int height = sprite.getHeight();
+		float dx = newX - x;
+		float dy = newY - y;
+		int stepX = (dx > 0) ? 1 : (dx < 0) ? -1 : 0;
+		int stepY = (dy > 0) ? 1 : (dy < 0) ? -1 : 0;
+
+		// a sprite already inside a solid tile hits it right away
+		int firstTileX = firstTile(x);
+		int lastTileX = lastTile(x, width);
+		int firstTileY = firstTile(y);
+		int lastTileY = lastTile(y, height);
+		for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+			if (findSolidInColumn(tileX, firstTileY, lastTileY, hit)) {
+				hit.set(tileX, hit.tileY, 0, (stepX != 0) ? -stepX : 0,
+						(stepX != 0) ? 0 : -stepY);
+				return true;
+			}
+		}
+
+		// walks the columns and rows of tiles the front of the sprite
+		// enters, in the order it enters them
+		int tileX = (stepX > 0) ? lastTileX + 1 : firstTileX - 1;
+		int tileY = (stepY > 0) ? lastTileY + 1 : firstTileY - 1;
+		float timeX = (stepX > 0) ? (TileMapRenderer.tilesToPixels(tileX) - x - width) / dx
+				: (stepX < 0) ? (TileMapRenderer.tilesToPixels(tileX + 1) - x) / dx
+						: Float.POSITIVE_INFINITY;
+		float timeY = (stepY > 0) ? (TileMapRenderer.tilesToPixels(tileY) - y - height) / dy
+				: (stepY < 0) ? (TileMapRenderer.tilesToPixels(tileY + 1) - y) / dy
+						: Float.POSITIVE_INFINITY;
+		float timeStepX = TileMapRenderer.TILE_SIZE / Math.abs(dx);
+		float timeStepY = TileMapRenderer.TILE_SIZE / Math.abs(dy);
+		while (timeX <= 1 || timeY <= 1) {
+			if (timeX <= timeY) {
+				// the rows the sprite covers when it enters the column,
+				// counting a row it is just entering
+				float top = y + dy * timeX;
+				int fromTileY = (stepY < 0) ? lastTile(top, 0) : firstTile(top);
+				int toTileY = (stepY > 0) ? firstTile(top + height) : lastTile(top, height);
+				if (findSolidInColumn(tileX, fromTileY, toTileY, hit)) {
+					hit.set(tileX, hit.tileY, timeX, -stepX, 0);
+					return true;
+				}
+				tileX += stepX;
+				timeX += timeStepX;
+			} else {
+				float left = x + dx * timeY;
+				int fromTileX = (stepX < 0) ? lastTile(left, 0) : firstTile(left);
+				int toTileX = (stepX > 0) ? firstTile(left + width) : lastTile(left, width);
+				for (int column = fromTileX; column <= toTileX; column++) {
+					if (findSolidInColumn(column, tileY, tileY, hit)) {
+						hit.set(column, tileY, timeY, 0, -stepY);
+						return true;
+					}
+				}
+				tileY += stepY;
+				timeY += timeStepY;
+			}
+		}
+		return false;
+	}
+
+	// the tile holding the pixel position
+	private static int firstTile(float position) {
+		return (int) Math.floor(position / TileMapRenderer.TILE_SIZE);
+	}
+
+	// the last tile covered by something the size starting at the position
+	private static int lastTile(float position, int size) {
+		return (int) Math.ceil((position + size) / TileMapRenderer.TILE_SIZE) - 1;
+	}
+
+	// finds a solid tile in the rows of the column, setting the row of the
+	// hit; columns outside the map are solid
+	private boolean findSolidInColumn(int tileX, int fromTileY, int toTileY, TileHit hit) {
+		if (tileX < 0 || tileX >= tileMap.getWidth()) {
+			if (fromTileY > toTileY) {
+				return false;
+			}
+			hit.tileY = fromTileY;
+			return true;
+		}
+		int tileY = tileMap.findSolidInColumn(tileX, fromTileY, toTileY);
+		if (tileY < 0) {
+			return false;
+		}
+		hit.tileY = tileY;
+		return true;
+	}
+
+	public void checkPlayerCollision(Player player, boolean canKill) {
+		if (!player.isAlive()) {
+			return;
+		}
+
+		Sprite collisionSprite = getSpriteCollision(player);
+		if (collisionSprite instanceof Item) {
+			acquirePowerUp(player, (Item) collisionSprite);
+		} else if (collisionSprite instanceof Creature) {
+			Creature enemyCreature = (Creature) collisionSprite;
+			if (canKill) {
+				enemyCreature.setState(Creature.STATE_DYING);
+				player.setY(enemyCreature.getY() - player.getHeight());
+				player.jump(true);
+			} else {
+				player.setState(Creature.STATE_DYING);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the first live sprite of the map the sprite overlaps, or null if
+	 * there is none. The candidates from the grid are tested on the arrays of
+	 * the EntityStore.
+	 */
+	public Sprite getSpriteCollision(Sprite sprite) {
+		if (sprite instanceof Creature && !((Creature) sprite).isAlive()) {
+			return null;
+		}
+		int x = Math.round(sprite.getX());
+		int y = Math.round(sprite.getY());
+		int width = sprite.getWidth();
+		int height = sprite.getHeight();
+		candidates.clear();
+		grid.query(x, y, width, height, candidates);
+		EntityStore entities = tileMap.getEntities();
+		for (int i = 0; i < candidates.size(); i++) {
+			Sprite otherSprite = candidates.get(i);
+			int index = entities.indexOf(otherSprite);
+			if (index < 0) {
+				if (isCollision(sprite, otherSprite)) {
+					return otherSprite;
+				}
+			} else if (otherSprite != sprite
+					&& entities.intersects(index, x, y, width, height)) {
+				return otherSprite;
+			}
+		}
+		return null;
+	}
+
+	public boolean isCollision(Sprite sprite1, Sprite sprite2) {
+		if (sprite1 == sprite2)
+			return false;
+		return  isSpritesAlive(sprite1, sprite2) && spritesInteresects(sprite1, sprite2);
+	}
+	
+	private boolean isSpritesAlive(Sprite sprite1, Sprite sprite2) {
+		if (sprite1 instanceof Creature && !((Creature) sprite1).isAlive()) {
+			return false;
+		}
+		if (sprite2 instanceof Creature && !((Creature) sprite2).isAlive()) {
+			return false;
+		}
+		return true;
+	}
+	
+	private boolean spritesInteresects(Sprite sprite1, Sprite sprite2) {
+		int s1x = Math.round(sprite1.getX());
+		int s1y = Math.round(sprite1.getY());
+		int s2x = Math.round(sprite2.getX());
+		int s2y = Math.round(sprite2.getY());
+
+		return (s1x < s2x + sprite2.getWidth() && s2x < s1x + sprite1.getWidth()
+				&& s1y < s2y + sprite2.getHeight() && s2y < s1y + sprite1.getHeight());
+	}
+	
+	public void acquirePowerUp(Player player, Item powerUp) {
+		if (powerUp instanceof Item.Coin) {
+			player.setCoins(player.getCoins() + 1);
+		} else if (powerUp instanceof Item.Ammo) {
+			player.setAmmo(Player.WEAPON_PISTOL, 1);
+		} else if (powerUp instanceof Item.Goal) {
+			// advance to next map
+//TODO			tileMap = resourceManager.loadNextLevel();
+		}
+		tileMap.removeSprite(powerUp);
+		grid.remove(powerUp);
+	}
+}
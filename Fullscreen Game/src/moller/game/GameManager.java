@@ -1,199 +1,570 @@
-package moller.game;
-
-import java.awt.Graphics2D;
-import java.awt.Point;
-import java.awt.event.KeyEvent;
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import javax.swing.ImageIcon;
-
-import moller.core.Core;
-import moller.core.ResourceManager;
-import moller.input.GameAction;
-import moller.input.InputManager;
-import moller.resource.TileMap;
-import moller.resource.TileMapRenderer;
-import moller.sprites.Animation;
-import moller.sprites.Bullet;
-import moller.sprites.Creature;
-import moller.sprites.Item;
-import moller.sprites.Player;
-import moller.sprites.Sprite;
-
-/**
- * GameManager manages all parts of the game.
- */
-public class GameManager extends Core {
-
-	public static void main(String[] args) {
-		new GameManager().run();
-	}
-
-	protected TileMap tileMap;
-	private Player player;
-	private ResourceManager resourceManager;
-	private InputManager inputManager;
-	private TileMapRenderer tileMapRenderer;
-	private UpdateManager updateManager;
-
-	private GameAction moveLeft;
-	private GameAction moveRight;
-	private GameAction jump;
-	private GameAction exit;
-	private GameAction shoot;
-
-	private GameAction skill0;
-	private GameAction skill1;
-
-	private ArrayList<Bullet> bullets = new ArrayList<Bullet>();
-
-	public void init() {
-		super.init();
-		initGameActions();
-		initInput();
-		resourceManager = new ResourceManager(screenManager.getFullScreenWindow()
-				.getGraphicsConfiguration());
-		tileMap = resourceManager.loadNextLevel();
-		updateManager = new UpdateManager(tileMap);
-		tileMapRenderer = new TileMapRenderer();
-		tileMapRenderer.setTileMap(tileMap);
-		tileMapRenderer.setBackground(resourceManager.loadImage("background.png"));
-		tileMapRenderer.setScreenHeight(screenManager.getHeight());
-		tileMapRenderer.setScreenWidth(screenManager.getWidth());
-	}
-	
-	private void initGameActions() {
-		moveLeft = new GameAction("moveLeft");
-		moveRight = new GameAction("moveRight");
-		jump = new GameAction("jump", GameAction.DETECT_INITAL_PRESS_ONLY);
-		exit = new GameAction("exit", GameAction.DETECT_INITAL_PRESS_ONLY);
-		shoot = new GameAction("shoot", GameAction.DETECT_INITAL_PRESS_ONLY);
-		skill0 = new GameAction("Skill_0", GameAction.DETECT_INITAL_PRESS_ONLY);
-		skill1 = new GameAction("Skill_1", GameAction.DETECT_INITAL_PRESS_ONLY);
-	}
-
-	private void initInput() {
-		inputManager = new InputManager(screenManager.getFullScreenWindow());
-		inputManager.setCursor(InputManager.INVISIBLE_CURSOR);
-		inputManager.mapActionToKey(moveLeft, KeyEvent.VK_LEFT);
-		inputManager.mapActionToKey(moveRight, KeyEvent.VK_RIGHT);
-		inputManager.mapActionToKey(jump, KeyEvent.VK_UP);
-		inputManager.mapActionToKey(exit, KeyEvent.VK_ESCAPE);
-		inputManager.mapActionToKey(shoot, KeyEvent.VK_SPACE);
-		inputManager.mapActionToKey(skill0, KeyEvent.VK_0);
-		inputManager.mapActionToKey(skill1, KeyEvent.VK_1);
-
-	}
-
-	private void checkInput(long elapsedTime) {
-		if (exit.isPressed()) {
-			stop();
-		}
-		if (player.isAlive()) {
-			float velocityX = 0;
-			if (moveLeft.isPressed()) {
-				velocityX -= player.getMaxSpeed();
-				player.lookingLeft(true);
-			}
-			if (moveRight.isPressed()) {
-				velocityX += player.getMaxSpeed();
-				player.lookingLeft(false);
-			}
-			if (jump.isPressed()) {
-				player.jump(false);
-			}
-			if (shoot.isPressed()) {
-				fire();
-			}
-			if (skill0.isPressed()) {
-				player.setWeaponUsed(0);
-			}
-			if (skill1.isPressed()) {
-				player.setWeaponUsed(1);
-			}
-			player.setVelocityX(velocityX);
-		}
-	}
-
-	public void fire() {
-		if (player.getAmmo() > 0) {
-			player.fire();
-			bullets.add(createBullet());
-		}
-	}
-
-	public void draw(Graphics2D g) {
-		tileMapRenderer.draw(g);
-		drawInfoText(g);
-		drawBullets(g);
-	}
-	
-	private void drawInfoText(Graphics2D g) {
-		g.drawString("Ammo: " + player.getAmmo(), 2, 20);
-		g.drawString("Coins: " + player.getCoins(), screenManager.getWidth() - 100, 20);
-	}
-	
-	// TODO: Change bullets so they included in tileMapRenderer somehow. Change behaviour so it matches creature maybe?
-	private void drawBullets(Graphics2D g) {
-		// Gets the offsetX and offsetY for the bullets.
-		int mapWidth = TileMapRenderer.tilesToPixels(tileMap.getWidth());
-		int offsetY = screenManager.getHeight()
-				- TileMapRenderer.tilesToPixels(tileMap.getHeight());
-		int offsetX = screenManager.getWidth() / 2 - Math.round(player.getX()) - 64;
-		offsetX = Math.min(offsetX, 0);
-		offsetX = Math.max(offsetX, screenManager.getWidth() - mapWidth);
-
-		// Draws the bullets.
-		for (int x = 0; x < bullets.size(); x++) {
-			Bullet bullet = (Bullet) bullets.get(x);
-			if (bullet != null && bullet.isVisible()) {
-				g.drawImage(bullet.getImage(), Math.round(bullet.getX())
-						+ offsetX, Math.round(bullet.getY()) + offsetY, null);
-			}
-		}
-	}
-	
-	private Bullet createBullet() {
-		Animation animation = new Animation();
-		float velocityX;
-		if(player.lookingLeft()) {
-			animation.addScene(resourceManager.getMirrorImage(new ImageIcon("Images/bullet1.png").getImage()), 100);
-			velocityX = -Bullet.BULLET_SPEED;
-		} else {
-			animation.addScene(new ImageIcon("Images/bullet1.png").getImage(), 100);
-			velocityX = Bullet.BULLET_SPEED;
-		}
-		Bullet bullet = new Bullet.HandGunBullet(animation, player.getX(), player.getY());
-		bullet.setVelocityX(velocityX);
-		return bullet;
-	}
-	
-	public void update(long elapsedTime) {
-		player = (Player) tileMap.getPlayer();
-		if (player.getState() == Creature.STATE_DEAD) {
-			reloadLevel();
-			return;
-		}
-
-		checkInput(elapsedTime);
-		updateManager.update(elapsedTime, bullets);
-	}
-
-	private void reloadLevel() {
-		tileMap = resourceManager.reloadLevel();
-		tileMapRenderer.setTileMap(tileMap);
-		updateManager.setTileMap(tileMap);
-	}
-	
-	// TODO: Find a way to know when the CollisionManager have found player colliding with the Goal Sprite.
-	private void loadNextLevel() {
-		tileMap = resourceManager.loadNextLevel();
-		tileMapRenderer.setTileMap(tileMap);
-		updateManager.setTileMap(tileMap);
-	}
-	
-	public void stop() {
-		super.stop();
-	}
-}
+package moller.game;
+
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import moller.core.Core;
+import moller.core.FrameStats;
+import moller.core.FrameStatsOverlay;
+import moller.core.TripleBuffer;
+import moller.core.ResourceManager;
+import moller.input.GameAction;
+import moller.input.InputManager;
+import moller.input.InputRecorder;
+import moller.input.InputReplay;
+import moller.resource.ImageCache;
+import moller.resource.TextureAtlas;
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.resource.WorldSnapshot;
+import moller.sprites.Bullet;
+import moller.sprites.Creature;
+import moller.sprites.EntityStore;
+import moller.sprites.Item;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+
+/**
+ * GameManager manages all parts of the game.
+ */
+public class GameManager extends Core {
+
+	/**
+	 * Starts the game. Options:
+	 * 
+	 * -headless runs without a screen or input, for example on build servers
+	 * -render WIDTHxHEIGHT draws a headless game to an offscreen image
+	 * -unlimited runs a headless game as fast as possible
+	 * -ticks N stops after N ticks
+	 * -level FILE plays a level file instead of Levels/Level1.txt
+	 * -streaming streams the level from disk, see StreamingTileMap
+	 * -noatlas draws every image on its own instead of from a TextureAtlas
+	 * -imagecache KB keeps at most KB kilobytes of decoded images in the
+	 * image cache, see ImageCache.setBudget
+	 * -atlasinfo prints the size and fill ratio of the TextureAtlas
+	 * -startupreport prints how long each part of the startup took
+	 * -pipelined draws the frames on a render thread, see Core.setPipelined
+	 * -threads N updates the sprites on N threads, see UpdateManager
+	 * -activation N only updates the sprites within N tiles of the screen,
+	 * -1 for all sprites, see UpdateManager.setActivationMargin
+	 * -framestats shows the frame stats overlay from the start, F3 toggles it
+	 * -fps N holds the game to N frames per second, 0 for as many as
+	 * possible, see Core.setFrameRate
+	 * -incremental only draws the parts of the screen that changed, see
+	 * TileMapRenderer.setIncremental
+	 * -record FILE records the input to the file, see InputRecorder
+	 * -replay FILE plays recorded input instead of the keyboard, for as
+	 * many ticks as were recorded, and checks the world hash at the end
+	 * 
+	 * A headless game prints its ticks per second when it stops, and its
+	 * frame stats with -framestats.
+	 */
+	public static void main(String[] args) {
+		GameManager game = new GameManager();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-headless")) {
+				System.setProperty("java.awt.headless", "true");
+				game.setHeadless(true);
+			} else if (args[i].equals("-render")) {
+				String[] size = args[++i].split("x");
+				game.setRenderTarget(new BufferedImage(Integer.parseInt(size[0]),
+						Integer.parseInt(size[1]), BufferedImage.TYPE_INT_RGB));
+			} else if (args[i].equals("-unlimited")) {
+				game.setUnlimitedSpeed(true);
+			} else if (args[i].equals("-ticks")) {
+				game.setMaxTicks(Long.parseLong(args[++i]));
+			} else if (args[i].equals("-level")) {
+				game.levelFile = args[++i];
+			} else if (args[i].equals("-streaming")) {
+				game.streaming = true;
+			} else if (args[i].equals("-noatlas")) {
+				game.useAtlas = false;
+			} else if (args[i].equals("-imagecache")) {
+				game.imageCacheBudget = Long.parseLong(args[++i]) * 1024;
+			} else if (args[i].equals("-atlasinfo")) {
+				game.printAtlasInfo = true;
+			} else if (args[i].equals("-startupreport")) {
+				game.printStartupReport = true;
+			} else if (args[i].equals("-pipelined")) {
+				game.setPipelined(true);
+			} else if (args[i].equals("-threads")) {
+				game.updateThreads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-activation")) {
+				game.activationMargin = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-record")) {
+				game.recordFile = new File(args[++i]);
+			} else if (args[i].equals("-replay")) {
+				game.replayFile = new File(args[++i]);
+			} else if (args[i].equals("-framestats")) {
+				game.showFrameStats = true;
+			} else if (args[i].equals("-fps")) {
+				game.setFrameRate(Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-incremental")) {
+				game.setIncrementalDrawing(true);
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		game.run();
+		game.finishInput();
+		if (game.isHeadless()) {
+			System.out.println(game.getTickCount() + " ticks, "
+					+ Math.round(game.getTicksPerSecond()) + " ticks per second");
+			if (game.showFrameStats) {
+				System.out.print(game.getFrameStats());
+			}
+		}
+	}
+
+	protected TileMap tileMap;
+	private Player player;
+	private ResourceManager resourceManager;
+	private InputManager inputManager;
+	private TileMapRenderer tileMapRenderer;
+	private UpdateManager updateManager;
+
+	private GameAction moveLeft;
+	private GameAction moveRight;
+	private GameAction jump;
+	private GameAction exit;
+	private GameAction shoot;
+	private GameAction toggleFrameStats;
+
+	private GameAction skill0;
+	private GameAction skill1;
+
+	private ArrayList<Bullet> bullets = new ArrayList<Bullet>();
+	private BulletPool bulletPool;
+	// handed from the game thread to the render thread when pipelined
+	private TripleBuffer<WorldSnapshot> snapshots = new TripleBuffer<WorldSnapshot>(
+			new WorldSnapshot(), new WorldSnapshot(), new WorldSnapshot());
+	// maps replaced since the last snapshot was published, on the game thread
+	private ArrayList<TileMap> replacedMaps = new ArrayList<TileMap>();
+	// maps no snapshot published from now on holds, closed on the render
+	// thread once it stops drawing them
+	private ConcurrentLinkedQueue<TileMap> retiredMaps = new ConcurrentLinkedQueue<TileMap>();
+
+	private String levelFile;
+	private boolean streaming;
+	private boolean useAtlas = true;
+	private long imageCacheBudget = ImageCache.DEFAULT_BUDGET;
+	private boolean printAtlasInfo;
+	private boolean printStartupReport;
+	private boolean showFrameStats;
+	private int updateThreads = 1;
+	private int activationMargin = UpdateManager.DEFAULT_ACTIVATION_MARGIN;
+	private File recordFile;
+	private File replayFile;
+	private InputRecorder recorder;
+	private InputReplay replay;
+	private FrameStatsOverlay frameStatsOverlay;
+	private Rectangle overlayBounds = new Rectangle();
+
+	public void init() {
+		super.init();
+		initGameActions();
+		GraphicsConfiguration gc = null;
+		if (!isHeadless()) {
+			if (replayFile == null) {
+				initInput();
+			}
+			gc = screenManager.getFullScreenWindow().getGraphicsConfiguration();
+		}
+		initRecording();
+		resourceManager = new ResourceManager(gc, useAtlas, imageCacheBudget);
+		if (printAtlasInfo) {
+			printAtlasInfo(resourceManager.getAtlas());
+		}
+		resourceManager.setStreaming(streaming);
+		// the render thread may still draw a replaced map
+		resourceManager.setClosingReplacedMaps(!isPipelined());
+		bulletPool = new BulletPool(resourceManager.getBulletAnimation(false),
+				resourceManager.getBulletAnimation(true));
+		long levelStart = System.nanoTime();
+		tileMap = loadFirstLevel();
+		// a frame may be drawn before the first tick
+		player = (Player) tileMap.getPlayer();
+		if (printStartupReport) {
+			System.out.println(resourceManager.getStartupReport());
+			System.out.println("level: " + (System.nanoTime() - levelStart) / 1000000
+					+ " ms");
+		}
+		updateManager = new UpdateManager(tileMap);
+		updateManager.setFrameStats(getFrameStats());
+		updateManager.setScreenWidth(getScreenWidth());
+		updateManager.setActivationMargin(activationMargin);
+		if (updateThreads > 1) {
+			updateManager.setThreadCount(updateThreads);
+		}
+		frameStatsOverlay = new FrameStatsOverlay(getFrameStats());
+		tileMapRenderer = new TileMapRenderer();
+		tileMapRenderer.setTileMap(tileMap);
+		tileMapRenderer.setBackground(resourceManager.loadImage("background.png"));
+		tileMapRenderer.setScreenHeight(getScreenHeight());
+		tileMapRenderer.setScreenWidth(getScreenWidth());
+		tileMapRenderer.setIncremental(isIncrementalDrawing());
+	}
+
+	private void printAtlasInfo(TextureAtlas atlas) {
+		if (atlas == null) {
+			System.out.println("No texture atlas");
+			return;
+		}
+		System.out.print("Texture atlas: " + atlas.getRegionCount() + " images on "
+				+ atlas.getPageCount() + " pages of");
+		for (int i = 0; i < atlas.getPageCount(); i++) {
+			System.out.print(" " + atlas.getPage(i).getWidth() + "x"
+					+ atlas.getPage(i).getHeight());
+		}
+		System.out.println(", " + Math.round(atlas.getFillRatio() * 100) + "% filled");
+	}
+
+	private TileMap loadFirstLevel() {
+		if (levelFile == null) {
+			return resourceManager.loadNextLevel();
+		}
+		try {
+			return resourceManager.loadLevel(levelFile);
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Could not load " + levelFile, ex);
+		}
+	}
+	
+	private void initGameActions() {
+		moveLeft = new GameAction("moveLeft");
+		moveRight = new GameAction("moveRight");
+		jump = new GameAction("jump", GameAction.DETECT_INITAL_PRESS_ONLY);
+		exit = new GameAction("exit", GameAction.DETECT_INITAL_PRESS_ONLY);
+		shoot = new GameAction("shoot", GameAction.DETECT_INITAL_PRESS_ONLY);
+		toggleFrameStats = new GameAction("frameStats",
+				GameAction.DETECT_INITAL_PRESS_ONLY);
+		skill0 = new GameAction("Skill_0", GameAction.DETECT_INITAL_PRESS_ONLY);
+		skill1 = new GameAction("Skill_1", GameAction.DETECT_INITAL_PRESS_ONLY);
+	}
+
+	private GameAction[] getGameActions() {
+		return new GameAction[] { moveLeft, moveRight, jump, exit, shoot,
+				toggleFrameStats, skill0, skill1 };
+	}
+
+	private void initRecording() {
+		if (replayFile != null) {
+			try {
+				replay = new InputReplay(replayFile, getGameActions());
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("Could not load " + replayFile, ex);
+			}
+			setMaxTicks(replay.getEndTick());
+		}
+		if (recordFile != null) {
+			recorder = new InputRecorder(getGameActions());
+		}
+	}
+
+	/**
+	 * Saves the recorded input, or tells if the replayed game ended like
+	 * the recorded one.
+	 */
+	private void finishInput() {
+		if (tileMap == null) {
+			return;
+		}
+		long hash = getWorldHash();
+		if (recorder != null) {
+			try {
+				recorder.finish(recordFile, getTickCount(), hash);
+				System.out.println("Recorded " + recorder.getEventCount() + " events in "
+						+ getTickCount() + " ticks to " + recordFile);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+		if (replay != null) {
+			boolean same = (hash == replay.getWorldHash());
+			System.out.println("Replayed " + replay.getEventCount() + " events in "
+					+ getTickCount() + " ticks, world hash " + Long.toHexString(hash)
+					+ (same ? " as recorded" : " but recorded "
+							+ Long.toHexString(replay.getWorldHash())));
+		}
+	}
+
+	/**
+	 * Gets a hash of the player, the sprites and the bullets, to check that
+	 * two runs of the game ended the same.
+	 */
+	public long getWorldHash() {
+		long hash = tileMap.getEntities().stateHash();
+		Player player = (Player) tileMap.getPlayer();
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getX()));
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getY()));
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getVelocityX()));
+		hash = EntityStore.mix(hash, Float.floatToIntBits(player.getVelocityY()));
+		hash = EntityStore.mix(hash, player.getState());
+		hash = EntityStore.mix(hash, player.getCoins());
+		hash = EntityStore.mix(hash, player.getAmmo());
+		hash = EntityStore.mix(hash, bullets.size());
+		for (int i = 0; i < bullets.size(); i++) {
+			hash = EntityStore.mix(hash, Float.floatToIntBits(bullets.get(i).getX()));
+			hash = EntityStore.mix(hash, Float.floatToIntBits(bullets.get(i).getY()));
+		}
+		return hash;
+	}
+
+	private void initInput() {
+		inputManager = new InputManager(screenManager.getFullScreenWindow());
+		inputManager.setCursor(InputManager.INVISIBLE_CURSOR);
+		inputManager.mapActionToKey(moveLeft, KeyEvent.VK_LEFT);
+		inputManager.mapActionToKey(moveRight, KeyEvent.VK_RIGHT);
+		inputManager.mapActionToKey(jump, KeyEvent.VK_UP);
+		inputManager.mapActionToKey(exit, KeyEvent.VK_ESCAPE);
+		inputManager.mapActionToKey(shoot, KeyEvent.VK_SPACE);
+		inputManager.mapActionToKey(toggleFrameStats, KeyEvent.VK_F3);
+		inputManager.mapActionToKey(skill0, KeyEvent.VK_0);
+		inputManager.mapActionToKey(skill1, KeyEvent.VK_1);
+
+	}
+
+	private void checkInput(long elapsedTime) {
+		if (exit.isPressed()) {
+			stop();
+		}
+		if (toggleFrameStats.isPressed()) {
+			showFrameStats = !showFrameStats;
+		}
+		if (player.isAlive()) {
+			float velocityX = 0;
+			if (moveLeft.isPressed()) {
+				velocityX -= player.getMaxSpeed();
+				player.lookingLeft(true);
+			}
+			if (moveRight.isPressed()) {
+				velocityX += player.getMaxSpeed();
+				player.lookingLeft(false);
+			}
+			if (jump.isPressed()) {
+				player.jump(false);
+			}
+			if (shoot.isPressed()) {
+				fire();
+			}
+			if (skill0.isPressed()) {
+				player.setWeaponUsed(0);
+			}
+			if (skill1.isPressed()) {
+				player.setWeaponUsed(1);
+			}
+			player.setVelocityX(velocityX);
+		}
+	}
+
+	public void fire() {
+		if (player.getAmmo() > 0) {
+			player.fire();
+			bullets.add(bulletPool.obtain(player.getX(), player.getY(),
+					player.lookingLeft()));
+		}
+	}
+
+	public void draw(Graphics2D g) {
+		boolean incremental = tileMapRenderer.isIncremental();
+		if (incremental) {
+			if (!isFrameKept()) {
+				tileMapRenderer.invalidate();
+			}
+			if (showFrameStats) {
+				frameStatsOverlay.getBounds(g, getScreenWidth(), overlayBounds);
+				tileMapRenderer.markDirty(overlayBounds.x, overlayBounds.y,
+						overlayBounds.width, overlayBounds.height);
+			}
+		}
+		if (isPipelined()) {
+			drawSnapshot(g);
+		} else {
+			tileMapRenderer.setInterpolation(getInterpolation());
+			if (incremental) {
+				markInfoText(g, player.getAmmo(), player.getCoins());
+				markBullets();
+			}
+			tileMapRenderer.draw(g);
+			drawInfoText(g, player.getAmmo(), player.getCoins());
+			drawBullets(g);
+		}
+		if (showFrameStats) {
+			frameStatsOverlay.draw(g, getScreenWidth());
+		}
+	}
+
+	/**
+	 * Hands a snapshot of the game to the render thread when pipelined.
+	 */
+	protected void publish() {
+		snapshots.getBack().capture(tileMap, bullets, getScreenWidth());
+		snapshots.publish();
+		if (!replacedMaps.isEmpty()) {
+			retiredMaps.addAll(replacedMaps);
+			replacedMaps.clear();
+		}
+	}
+
+	// draws the latest snapshot a tick late, interpolating by the time
+	// passed since it was captured
+	private void drawSnapshot(Graphics2D g) {
+		snapshots.update();
+		WorldSnapshot snapshot = snapshots.getFront();
+		closeRetiredMaps(snapshot.getTileMap());
+		float interpolation = (System.nanoTime() - snapshot.getTime())
+				/ (TICK_TIME * 1000000f);
+		interpolation = Math.max(0, Math.min(interpolation, 1));
+		if (tileMapRenderer.isIncremental()) {
+			markInfoText(g, snapshot.getAmmo(), snapshot.getCoins());
+		}
+		tileMapRenderer.draw(g, snapshot, interpolation);
+		drawInfoText(g, snapshot.getAmmo(), snapshot.getCoins());
+	}
+	
+	// snapshots only get newer, so a retired map is never drawn again
+	// once the render thread has moved on to another map
+	private void closeRetiredMaps(TileMap drawnMap) {
+		Iterator<TileMap> i = retiredMaps.iterator();
+		while (i.hasNext()) {
+			TileMap map = i.next();
+			if (map != drawnMap) {
+				map.close();
+				i.remove();
+			}
+		}
+	}
+	
+	private void drawInfoText(Graphics2D g, int ammo, int coins) {
+		g.drawString("Ammo: " + ammo, 2, 20);
+		g.drawString("Coins: " + coins, getScreenWidth() - 100, 20);
+	}
+
+	// tells the renderer where drawInfoText draws, with a pixel to spare
+	// for antialiasing
+	private void markInfoText(Graphics2D g, int ammo, int coins) {
+		FontMetrics metrics = g.getFontMetrics();
+		int y = 20 - metrics.getAscent() - 1;
+		int height = metrics.getHeight() + 2;
+		tileMapRenderer.markDirty(1, y, metrics.stringWidth("Ammo: " + ammo) + 2, height);
+		tileMapRenderer.markDirty(getScreenWidth() - 101, y, metrics.stringWidth("Coins: "
+				+ coins) + 2, height);
+	}
+
+	// tells the renderer where drawBullets draws
+	private void markBullets() {
+		tileMapRenderer.setupDrawingVariables(player);
+		int offsetX = tileMapRenderer.getOffsetX();
+		int offsetY = tileMapRenderer.getOffsetY();
+		float alpha = getInterpolation();
+		for (int i = 0; i < bullets.size(); i++) {
+			Bullet bullet = bullets.get(i);
+			if (bullet.isVisible()) {
+				tileMapRenderer.markDirty(Math.round(bullet.getInterpolatedX(alpha))
+						+ offsetX, Math.round(bullet.getInterpolatedY(alpha)) + offsetY,
+						bullet.getWidth(), bullet.getHeight());
+			}
+		}
+	}
+	
+	// TODO: Change bullets so they included in tileMapRenderer somehow. Change behaviour so it matches creature maybe?
+	private void drawBullets(Graphics2D g) {
+		// Uses the same offsetX and offsetY as the tiles and sprites.
+		int offsetX = tileMapRenderer.getOffsetX();
+		int offsetY = tileMapRenderer.getOffsetY();
+		float alpha = getInterpolation();
+
+		// Draws the bullets.
+		for (int x = 0; x < bullets.size(); x++) {
+			Bullet bullet = (Bullet) bullets.get(x);
+			if (bullet != null && bullet.isVisible()) {
+				bullet.draw(g, Math.round(bullet.getInterpolatedX(alpha)) + offsetX,
+						Math.round(bullet.getInterpolatedY(alpha)) + offsetY);
+			}
+		}
+	}
+	
+	/**
+	 * Gives bullets that have hit something or flown a screen away from the
+	 * player back to the pool.
+	 */
+	private void retireBullets() {
+		float maxDistance = getScreenWidth();
+		int i = 0;
+		while (i < bullets.size()) {
+			Bullet bullet = bullets.get(i);
+			if (bullet.isVisible()
+					&& Math.abs(bullet.getX() - player.getX()) <= maxDistance) {
+				i++;
+				continue;
+			}
+			// the last bullet is moved to i, so i is not advanced
+			int last = bullets.size() - 1;
+			bullets.set(i, bullets.get(last));
+			bullets.remove(last);
+			bulletPool.release(bullet);
+		}
+	}
+
+	public void update(long elapsedTime) {
+		long inputStart = System.nanoTime();
+		if (replay != null) {
+			replay.apply(getTickCount());
+		} else if (inputManager != null) {
+			if (recorder != null) {
+				recorder.setTick(getTickCount());
+			}
+			inputManager.processEvents();
+		}
+		player = (Player) tileMap.getPlayer();
+		if (player.getState() == Creature.STATE_DEAD) {
+			reloadLevel();
+			return;
+		}
+
+		checkInput(elapsedTime);
+		getFrameStats().recordSince(FrameStats.INPUT, inputStart);
+		updateManager.update(elapsedTime, bullets);
+		retireBullets();
+	}
+
+	private void reloadLevel() {
+		TileMap oldMap = tileMap;
+		tileMap = resourceManager.reloadLevel();
+		setRendererTileMap(oldMap);
+		updateManager.setTileMap(tileMap);
+	}
+
+	// a pipelined renderer takes the map from the next snapshot instead,
+	// and the old map is closed once the renderer has let go of it
+	private void setRendererTileMap(TileMap oldMap) {
+		if (!isPipelined()) {
+			tileMapRenderer.setTileMap(tileMap);
+		} else if (oldMap != tileMap) {
+			replacedMaps.add(oldMap);
+		}
+	}
+	
+	// TODO: Find a way to know when the CollisionManager have found player colliding with the Goal Sprite.
+	private void loadNextLevel() {
+		TileMap oldMap = tileMap;
+		tileMap = resourceManager.loadNextLevel();
+		setRendererTileMap(oldMap);
+		updateManager.setTileMap(tileMap);
+	}
+	
+	public void stop() {
+		super.stop();
+	}
+}
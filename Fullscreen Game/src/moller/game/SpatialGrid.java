@@ -0,0 +1,171 @@
+package moller.game;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.EntityStore;
+import moller.sprites.Sprite;
+
+/**
+ * The SpatialGrid class is a uniform grid with one cell per tile of a TileMap.
+ * Every sprite is stored in the cell holding its top left corner, so a query
+ * only has to look at the cells around the queried area instead of at every
+ * sprite in the map.
+ * 
+ * The cells are allocated in blocks of BLOCK_WIDTH columns the first time a
+ * sprite is added to the block, and freed again when the last sprite leaves
+ * the block, so long levels with few sprites stay small.
+ */
+public class SpatialGrid {
+
+	private static final int BLOCK_BITS = 6;
+	private static final int BLOCK_WIDTH = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_WIDTH - 1;
+
+	private int width;
+	private int height;
+	private ArrayList<Sprite>[][] blocks;
+	// the number of sprites in each block
+	private int[] blockSizes;
+	private IdentityHashMap<Sprite, Integer> cellOfSprite;
+	// the widest and highest sprite in the grid, in tiles
+	private int maxSpanX;
+	private int maxSpanY;
+
+	public SpatialGrid(TileMap tileMap) {
+		rebuild(tileMap);
+	}
+
+	/**
+	 * Clears the grid and adds all sprites of the specified TileMap.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void rebuild(TileMap tileMap) {
+		width = Math.max(tileMap.getWidth(), 1);
+		height = Math.max(tileMap.getHeight(), 1);
+		blocks = new ArrayList[(width + BLOCK_MASK) >> BLOCK_BITS][];
+		blockSizes = new int[blocks.length];
+		cellOfSprite = new IdentityHashMap<Sprite, Integer>();
+		maxSpanX = 1;
+		maxSpanY = 1;
+		EntityStore entities = tileMap.getEntities();
+		for (int i = 0; i < entities.size(); i++) {
+			add(entities.getSprite(i));
+		}
+	}
+
+	public void add(Sprite sprite) {
+		maxSpanX = Math.max(maxSpanX, spanInTiles(sprite.getWidth()));
+		maxSpanY = Math.max(maxSpanY, spanInTiles(sprite.getHeight()));
+		int cell = getCell(sprite);
+		addToCell(sprite, cell);
+		cellOfSprite.put(sprite, cell);
+	}
+
+	public void remove(Sprite sprite) {
+		Integer cell = cellOfSprite.remove(sprite);
+		if (cell != null) {
+			removeFromCell(sprite, cell);
+		}
+	}
+
+	/**
+	 * Moves the sprite to another cell if it has left its old one, or adds
+	 * it if it is not in the grid yet. Should be called every time a sprite
+	 * in the map has moved.
+	 */
+	public void update(Sprite sprite) {
+		Integer oldCell = cellOfSprite.get(sprite);
+		if (oldCell == null) {
+			add(sprite);
+			return;
+		}
+		int newCell = getCell(sprite);
+		if (newCell != oldCell) {
+			removeFromCell(sprite, oldCell);
+			addToCell(sprite, newCell);
+			cellOfSprite.put(sprite, newCell);
+		}
+	}
+
+	public int size() {
+		return cellOfSprite.size();
+	}
+
+	/**
+	 * Adds every sprite that may overlap the specified pixel area to the
+	 * result list. The sprites still have to be tested for an actual
+	 * intersection.
+	 */
+	public void query(int x, int y, int width, int height, ArrayList<Sprite> result) {
+		int fromX = clampX(TileMapRenderer.pixelsToTiles(x) - maxSpanX);
+		int fromY = clampY(TileMapRenderer.pixelsToTiles(y) - maxSpanY);
+		int toX = clampX(TileMapRenderer.pixelsToTiles(x + width - 1));
+		int toY = clampY(TileMapRenderer.pixelsToTiles(y + height - 1));
+
+		for (int cellX = fromX; cellX <= toX; cellX++) {
+			ArrayList<Sprite>[] block = blocks[cellX >> BLOCK_BITS];
+			if (block == null) {
+				// skip the rest of the empty block
+				cellX |= BLOCK_MASK;
+				continue;
+			}
+			int column = (cellX & BLOCK_MASK) * this.height;
+			for (int cellY = fromY; cellY <= toY; cellY++) {
+				ArrayList<Sprite> cell = block[column + cellY];
+				if (cell != null && !cell.isEmpty()) {
+					result.addAll(cell);
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void addToCell(Sprite sprite, int cell) {
+		int cellX = cell / height;
+		ArrayList<Sprite>[] block = blocks[cellX >> BLOCK_BITS];
+		if (block == null) {
+			block = new ArrayList[BLOCK_WIDTH * height];
+			blocks[cellX >> BLOCK_BITS] = block;
+		}
+		int i = (cellX & BLOCK_MASK) * height + cell % height;
+		if (block[i] == null) {
+			block[i] = new ArrayList<Sprite>(4);
+		}
+		block[i].add(sprite);
+		blockSizes[cellX >> BLOCK_BITS]++;
+	}
+
+	private void removeFromCell(Sprite sprite, int cell) {
+		int block = (cell / height) >> BLOCK_BITS;
+		getCell(cell).remove(sprite);
+		if (--blockSizes[block] == 0) {
+			blocks[block] = null;
+		}
+	}
+
+	private ArrayList<Sprite> getCell(int cell) {
+		int cellX = cell / height;
+		return blocks[cellX >> BLOCK_BITS][(cellX & BLOCK_MASK) * height + cell % height];
+	}
+
+	private int getCell(Sprite sprite) {
+		int cellX = clampX(TileMapRenderer.pixelsToTiles(sprite.getX()));
+		int cellY = clampY(TileMapRenderer.pixelsToTiles(sprite.getY()));
+		return cellX * height + cellY;
+	}
+
+	private int spanInTiles(int pixels) {
+		return TileMapRenderer.pixelsToTiles(pixels + TileMapRenderer.TILE_SIZE - 1);
+	}
+
+	private int clampX(int cellX) {
+		return Math.max(0, Math.min(cellX, width - 1));
+	}
+
+	private int clampY(int cellY) {
+		return Math.max(0, Math.min(cellY, height - 1));
+	}
+}
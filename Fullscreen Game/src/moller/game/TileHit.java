@@ -0,0 +1,58 @@
+package moller.game;
+
+/**
+ * The TileHit class holds where a sprite moving through a TileMap first hit
+ * a solid tile, see CollisionManager.getTileCollision. It is meant to be
+ * reused for every move, so checking moves does not allocate.
+ *
+ * A sprite already overlapping a solid tile hits it at time 0, on the side
+ * facing its move. Both normals are 0 if it did not move at all.
+ */
+public class TileHit {
+
+	int tileX;
+	int tileY;
+	float time;
+	int normalX;
+	int normalY;
+
+	void set(int tileX, int tileY, float time, int normalX, int normalY) {
+		this.tileX = tileX;
+		this.tileY = tileY;
+		this.time = time;
+		this.normalX = normalX;
+		this.normalY = normalY;
+	}
+
+	public int getTileX() {
+		return tileX;
+	}
+
+	public int getTileY() {
+		return tileY;
+	}
+
+	/**
+	 * Gets how far along the move the sprite touched the tile, from 0 at the
+	 * start to 1 at the end.
+	 */
+	public float getTime() {
+		return time;
+	}
+
+	/**
+	 * Gets the x of the normal of the tile side that was hit: -1 for its left
+	 * side, 1 for its right side and 0 if the top or bottom was hit.
+	 */
+	public int getNormalX() {
+		return normalX;
+	}
+
+	/**
+	 * Gets the y of the normal of the tile side that was hit: -1 for its top,
+	 * 1 for its bottom and 0 if the left or right side was hit.
+	 */
+	public int getNormalY() {
+		return normalY;
+	}
+}
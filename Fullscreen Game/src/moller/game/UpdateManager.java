@@ -1,134 +1,477 @@
-package moller.game;
-
-import java.awt.Point;
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import moller.resource.TileMap;
-import moller.resource.TileMapRenderer;
-import moller.sprites.Bullet;
-import moller.sprites.Creature;
-import moller.sprites.Player;
-import moller.sprites.Sprite;
-
-public class UpdateManager {
-	
-
-	public static final float GRAVITY = 0.002f;
-
-	private TileMap tileMap;
-	private CollisionManager collisionManager;
-
-	public UpdateManager(TileMap tileMap) {
-		this.tileMap = tileMap;
-		collisionManager = new CollisionManager(tileMap);
-	}
-
-	public TileMap getTileMap() {
-		return tileMap;
-	}
-
-	public void setTileMap(TileMap tileMap) {
-		this.tileMap = tileMap;
-		collisionManager.setTileMap(tileMap);
-	}
-
-	public void update(long elapsedTime, ArrayList<Bullet> bullets) {
-		updatePlayer(elapsedTime);
-		updateBullets(elapsedTime, bullets);
-		updateSprites(elapsedTime);
-	}
-	
-	private void updatePlayer(long elapsedTime) {
-		Player player = (Player) tileMap.getPlayer();
-		updateCreature(player, elapsedTime);
-		player.update(elapsedTime);
-	}
-
-	private void updateBullets(long elapsedTime, ArrayList<Bullet> bullets) {
-		for (int i = 0; i < bullets.size(); i++) {
-			Bullet bullet = (Bullet) bullets.get(i);
-
-			changeSpritePosition(bullet, elapsedTime);
-			boolean canKill = (bullet.isVisible());
-			collisionManager.checkBulletCollision(bullet, canKill);
-		}
-	}
-
-	private void updateSprites(long elapsedTime) {
-		Iterator i = tileMap.getSprites();
-		while (i.hasNext()) {
-			Sprite sprite = (Sprite) i.next();
-			if (sprite instanceof Creature) {
-				Creature creature = (Creature) sprite;
-				if (creature.getState() == Creature.STATE_DEAD) {
-					i.remove();
-				} else {
-					updateCreature(creature, elapsedTime);
-				}
-			}
-			sprite.update(elapsedTime);
-		}
-	}
-
-	private void updateCreature(Creature creature, long elapsedTime) {
-		if (!creature.isFlying()) {
-			creature.setVelocityY(creature.getVelocityY() + GRAVITY
-					* elapsedTime);
-		}
-		float oldY = creature.getY();
-		changeSpritePosition(creature, elapsedTime);
-		if (creature instanceof Player) {
-			boolean canKill = (oldY < creature.getY());
-			collisionManager.checkPlayerCollision((Player) creature, canKill);
-		}
-	}
-	
-	private void changeSpritePosition(Sprite sprite, long elapsedTime) {
-		changeSpriteXPosition(sprite, elapsedTime);
-		changeSpriteYPosition(sprite, elapsedTime);
-	}
-	
-	private void changeSpriteXPosition(Sprite sprite, long elapsedTime) {
-		float dx = sprite.getVelocityX();
-		float oldX = sprite.getX();
-		float newX = oldX + dx * elapsedTime;
-		Point tile = collisionManager.getTileCollision(sprite, newX, sprite.getY());
-		if (tile == null) {
-			sprite.setX(newX);
-		} else {
-			if (dx > 0) {
-				sprite.setX(TileMapRenderer.tilesToPixels(tile.x)
-						- sprite.getWidth());
-			} else if (dx < 0) {
-				sprite.setX(TileMapRenderer.tilesToPixels(tile.x + 1));
-			}
-			if(sprite instanceof Creature)
-				((Creature)sprite).collideHorizontal();
-			if(sprite instanceof Bullet)
-				((Bullet)sprite).setVisible(false);
-		}
-	}
-	
-	private void changeSpriteYPosition(Sprite sprite, long elapsedTime) {
-		float dy = sprite.getVelocityY();
-		float oldY = sprite.getY();
-		float newY = oldY + dy * elapsedTime;
-		Point tile = collisionManager.getTileCollision(sprite, sprite.getX(), newY);
-		if (tile == null) {
-			sprite.setY(newY);
-		} else {
-			// line up with the tile boundary
-			if (dy > 0) {
-				sprite.setY(TileMapRenderer.tilesToPixels(tile.y)
-						- sprite.getHeight());
-			} else if (dy < 0) {
-				sprite.setY(TileMapRenderer.tilesToPixels(tile.y + 1));
-			}
-			if(sprite instanceof Creature)
-				((Creature)sprite).collideVertical();
-			if(sprite instanceof Bullet)
-				((Bullet)sprite).setVisible(false);
-		}
-	}
-}
+package moller.game;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import moller.core.FrameStats;
+import moller.resource.TileMap;
+import moller.resource.TileMapRenderer;
+import moller.sprites.Bullet;
+import moller.sprites.Creature;
+import moller.sprites.EntityStore;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+
+/**
+ * UpdateManager moves the player, the bullets and the sprites of the map one
+ * tick at a time. Only the sprites within the activation margin of the
+ * screen are moved, see ActivationGrid, so far away creatures sleep.
+ *
+ * With more than one thread the sprites are updated in parallel, in batches
+ * of the active entities ordered by column, so each thread works on its own
+ * stretch of the map. A sprite update only changes the sprite itself, so the
+ * batches do not depend on each other. Moving the sprites in the SpatialGrid
+ * is the only change seen by other sprites, and is done after all batches,
+ * in EntityStore order, in serial ticks too. A parallel tick therefore ends
+ * in exactly the same state as a serial one.
+ */
+public class UpdateManager {
+	
+
+	public static final float GRAVITY = 0.002f;
+
+	// fewer sprites than this per thread are not worth handing out
+	public static final int MIN_BATCH_SIZE = 256;
+
+	// tiles beyond the sides of the screen sprites are updated in
+	public static final int DEFAULT_ACTIVATION_MARGIN = 16;
+	// updates every sprite, however far from the screen
+	public static final int ACTIVATE_ALL = -1;
+
+	private TileMap tileMap;
+	private CollisionManager collisionManager;
+	private FrameStats frameStats;
+	// nanoseconds spent on collision checks this tick
+	private long collisionTime;
+	// reused for the tile collisions checked on the calling thread
+	private TileHit tileHit = new TileHit();
+
+	private ActivationGrid activationGrid;
+	private int activationMargin = DEFAULT_ACTIVATION_MARGIN;
+	// the indices of the entities updated this tick, ordered by column
+	private int[] activeIndices = new int[64];
+	// the same indices in ascending order, for moving them in the grids
+	private int[] sortedIndices = new int[64];
+	private long[] columnKeys = new long[64];
+	private int activeCount;
+	private ArrayList<Sprite> activeSprites = new ArrayList<Sprite>();
+	private TileMap.SpriteListener spriteListener = new TileMap.SpriteListener() {
+		public void spriteAdded(TileMap map, Sprite sprite) {
+			// the player may run into it before it is first updated
+			collisionManager.spriteMoved(sprite);
+			if (activationMargin != ACTIVATE_ALL) {
+				activationGrid.add(sprite);
+			}
+		}
+
+		public void spriteRemoved(TileMap map, Sprite sprite) {
+			activationGrid.remove(sprite);
+			collisionManager.spriteRemoved(sprite);
+		}
+	};
+
+	// creatures are woken up when they come on a screen this wide
+	private int screenWidth;
+	// the x offset of the screen this tick, see TileMapRenderer.getOffsetX
+	private int offsetX;
+
+	private int threadCount = 1;
+	private ExecutorService executor;
+	private ArrayList<Batch> batches = new ArrayList<Batch>();
+	private ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+	public UpdateManager(TileMap tileMap) {
+		this.tileMap = tileMap;
+		collisionManager = new CollisionManager(tileMap);
+		activationGrid = new ActivationGrid(tileMap);
+		tileMap.setSpriteListener(spriteListener);
+	}
+
+	public TileMap getTileMap() {
+		return tileMap;
+	}
+
+	public void setTileMap(TileMap tileMap) {
+		this.tileMap.setSpriteListener(null);
+		this.tileMap = tileMap;
+		collisionManager.setTileMap(tileMap);
+		activationGrid.rebuild(tileMap);
+		tileMap.setSpriteListener(spriteListener);
+	}
+
+	/**
+	 * Sets the stats to record the UPDATE and COLLISION phases in, or null
+	 * to not time them.
+	 */
+	public void setFrameStats(FrameStats frameStats) {
+		this.frameStats = frameStats;
+	}
+
+	/**
+	 * Sets the width of the screen creatures wake up on, or 0 to not wake
+	 * them up.
+	 */
+	public void setScreenWidth(int screenWidth) {
+		this.screenWidth = screenWidth;
+	}
+
+	public int getActivationMargin() {
+		return activationMargin;
+	}
+
+	/**
+	 * Sets how many tiles beyond the sides of the screen sprites are
+	 * updated, or ACTIVATE_ALL to update every sprite of the map, which
+	 * also stops keeping the ActivationGrid up to date.
+	 */
+	public void setActivationMargin(int activationMargin) {
+		if (activationMargin < 0 && activationMargin != ACTIVATE_ALL) {
+			throw new IllegalArgumentException("activationMargin " + activationMargin);
+		}
+		if (this.activationMargin == ACTIVATE_ALL && activationMargin != ACTIVATE_ALL) {
+			activationGrid.rebuild(tileMap);
+		}
+		this.activationMargin = activationMargin;
+	}
+
+	/**
+	 * Gets the number of sprites updated in the last tick.
+	 */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets how many threads update the sprites, counting the thread calling
+	 * update. 1, the default, updates them on the calling thread only.
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount " + threadCount);
+		}
+		shutdown();
+		this.threadCount = threadCount;
+		batches.clear();
+		for (int i = 0; i < threadCount; i++) {
+			batches.add(new Batch());
+		}
+		if (threadCount > 1) {
+			executor = Executors.newFixedThreadPool(threadCount - 1, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Update");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the update threads. The sprites are updated on the calling
+	 * thread until setThreadCount is called again.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		threadCount = 1;
+	}
+
+	public void update(long elapsedTime, ArrayList<Bullet> bullets) {
+		long start = (frameStats != null) ? System.nanoTime() : 0;
+		collisionTime = 0;
+		Sprite player = tileMap.getPlayer();
+		tileMap.setFocus(TileMapRenderer.pixelsToTiles(player.getX()));
+		updatePlayer(elapsedTime);
+		offsetX = TileMapRenderer.getOffsetX(player.getX(), screenWidth,
+				TileMapRenderer.tilesToPixels(tileMap.getWidth()));
+		updateBullets(elapsedTime, bullets);
+		updateSprites(elapsedTime);
+		if (frameStats != null) {
+			frameStats.recordSince(FrameStats.UPDATE, start);
+			frameStats.record(FrameStats.COLLISION, collisionTime);
+		}
+	}
+	
+	private void updatePlayer(long elapsedTime) {
+		Player player = (Player) tileMap.getPlayer();
+		player.savePreviousPosition();
+		updateCreature(player, elapsedTime, tileHit);
+		player.update(elapsedTime);
+	}
+
+	private void updateBullets(long elapsedTime, ArrayList<Bullet> bullets) {
+		for (int i = 0; i < bullets.size(); i++) {
+			Bullet bullet = (Bullet) bullets.get(i);
+			bullet.savePreviousPosition();
+
+			changeSpritePosition(bullet, elapsedTime, tileHit);
+			boolean canKill = (bullet.isVisible());
+			long start = (frameStats != null) ? System.nanoTime() : 0;
+			collisionManager.checkBulletCollision(bullet, canKill);
+			if (frameStats != null) {
+				collisionTime += System.nanoTime() - start;
+			}
+		}
+	}
+
+	private void updateSprites(long elapsedTime) {
+		EntityStore entities = tileMap.getEntities();
+		if (activationMargin == ACTIVATE_ALL) {
+			findAllSprites(entities);
+		} else {
+			findActiveSprites(entities);
+		}
+		int batchCount = Math.min(threadCount, activeCount / MIN_BATCH_SIZE);
+		if (batchCount > 1) {
+			if (activationMargin == ACTIVATE_ALL) {
+				sortByColumn(entities);
+			}
+			updateSpritesInParallel(elapsedTime, batchCount);
+		} else {
+			updateSprites(entities, 0, activeCount, elapsedTime, tileHit);
+		}
+		for (int i = 0; i < activeCount; i++) {
+			Sprite sprite = entities.getSprite(sortedIndices[i]);
+			collisionManager.spriteMoved(sprite);
+			if (activationMargin != ACTIVATE_ALL) {
+				activationGrid.update(sprite);
+			}
+		}
+	}
+
+	/**
+	 * Removes the dead sprites and puts the indices of all others in
+	 * activeIndices and sortedIndices, in ascending order.
+	 */
+	private void findAllSprites(EntityStore entities) {
+		int i = 0;
+		while (i < entities.size()) {
+			if (entities.getState(i) == Creature.STATE_DEAD) {
+				// the last entity is moved to i, so i is not advanced
+				Sprite sprite = entities.getSprite(i);
+				entities.removeAt(i);
+				collisionManager.spriteRemoved(sprite);
+			} else {
+				i++;
+			}
+		}
+		activeCount = entities.size();
+		ensureCapacity(activeCount);
+		for (i = 0; i < activeCount; i++) {
+			activeIndices[i] = i;
+			sortedIndices[i] = i;
+		}
+	}
+
+	/**
+	 * Removes the dead sprites among the active ones and puts the indices of
+	 * the others in activeIndices, region by region, and in sortedIndices, in
+	 * ascending order. Removing before any update leaves the entities in the
+	 * same order whether they are updated serially or in parallel.
+	 */
+	private void findActiveSprites(EntityStore entities) {
+		int firstColumn = TileMapRenderer.pixelsToTiles(-offsetX);
+		int lastColumn = TileMapRenderer.pixelsToTiles(-offsetX
+				+ Math.max(screenWidth, 1) - 1);
+		activationGrid.activate(firstColumn, lastColumn, activationMargin);
+		activeSprites.clear();
+		activationGrid.getActiveSprites(activeSprites);
+		for (int i = 0; i < activeSprites.size(); i++) {
+			Sprite sprite = activeSprites.get(i);
+			int index = entities.indexOf(sprite);
+			if (index >= 0 && entities.getState(index) == Creature.STATE_DEAD) {
+				entities.removeAt(index);
+				collisionManager.spriteRemoved(sprite);
+				index = -1;
+			}
+			if (index < 0) {
+				// dead, or removed from the map since the last tick
+				activationGrid.remove(sprite);
+			}
+		}
+
+		ensureCapacity(activeSprites.size());
+		activeCount = 0;
+		for (int i = 0; i < activeSprites.size(); i++) {
+			int index = entities.indexOf(activeSprites.get(i));
+			if (index >= 0) {
+				activeIndices[activeCount++] = index;
+			}
+		}
+		System.arraycopy(activeIndices, 0, sortedIndices, 0, activeCount);
+		Arrays.sort(sortedIndices, 0, activeCount);
+	}
+
+	// orders activeIndices by the column of the entities, when they are
+	// not taken region by region from the ActivationGrid
+	private void sortByColumn(EntityStore entities) {
+		for (int i = 0; i < activeCount; i++) {
+			int index = activeIndices[i];
+			long column = TileMapRenderer.pixelsToTiles(entities.getX(index));
+			// the column is the high half, so the keys sort by column first
+			columnKeys[i] = (column << 32) | index;
+		}
+		Arrays.sort(columnKeys, 0, activeCount);
+		for (int i = 0; i < activeCount; i++) {
+			activeIndices[i] = (int) columnKeys[i];
+		}
+	}
+
+	private void ensureCapacity(int count) {
+		if (activeIndices.length < count) {
+			int capacity = Math.max(count, activeIndices.length * 2);
+			activeIndices = new int[capacity];
+			sortedIndices = new int[capacity];
+			columnKeys = new long[capacity];
+		}
+	}
+
+	private void updateSpritesInParallel(long elapsedTime, int batchCount) {
+		EntityStore entities = tileMap.getEntities();
+		futures.clear();
+		for (int b = 0; b < batchCount; b++) {
+			Batch batch = batches.get(b);
+			batch.entities = entities;
+			batch.start = (int) ((long) activeCount * b / batchCount);
+			batch.end = (int) ((long) activeCount * (b + 1) / batchCount);
+			batch.elapsedTime = elapsedTime;
+			if (b > 0) {
+				futures.add(executor.submit(batch));
+			}
+		}
+		RuntimeException failure = null;
+		try {
+			batches.get(0).call();
+		} catch (RuntimeException ex) {
+			failure = ex;
+		}
+		// waits for every batch, even after one failed, so no thread is
+		// still changing sprites when this returns
+		for (int f = 0; f < futures.size(); f++) {
+			try {
+				futures.get(f).get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				failure = new IllegalStateException("interrupted while updating", ex);
+			} catch (ExecutionException ex) {
+				failure = new IllegalStateException("could not update sprites", ex
+						.getCause());
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	// updates the active entities from start to end - 1, mostly in loops
+	// over the arrays of the EntityStore; only changes the entities
+	// themselves, so it may run on any thread
+	private void updateSprites(EntityStore entities, int start, int end,
+			long elapsedTime, TileHit hit) {
+		entities.savePreviousPositions(activeIndices, start, end);
+		entities.applyGravity(activeIndices, start, end, GRAVITY * elapsedTime);
+		for (int i = start; i < end; i++) {
+			int index = activeIndices[i];
+			if (entities.isCreature(index)) {
+				changeSpritePosition(entities.getSprite(index), elapsedTime, hit);
+			}
+		}
+		entities.advance(activeIndices, start, end, elapsedTime);
+		// wake up the creatures on screen
+		entities.wakeUp(activeIndices, start, end, offsetX, screenWidth);
+	}
+
+	private void updateCreature(Creature creature, long elapsedTime, TileHit hit) {
+		if (!creature.isFlying()) {
+			creature.setVelocityY(creature.getVelocityY() + GRAVITY
+					* elapsedTime);
+		}
+		float oldY = creature.getY();
+		changeSpritePosition(creature, elapsedTime, hit);
+		if (creature instanceof Player) {
+			boolean canKill = (oldY < creature.getY());
+			long start = (frameStats != null) ? System.nanoTime() : 0;
+			collisionManager.checkPlayerCollision((Player) creature, canKill);
+			if (frameStats != null) {
+				collisionTime += System.nanoTime() - start;
+			}
+		}
+	}
+	
+	private void changeSpritePosition(Sprite sprite, long elapsedTime, TileHit hit) {
+		changeSpriteXPosition(sprite, elapsedTime, hit);
+		changeSpriteYPosition(sprite, elapsedTime, hit);
+	}
+	
+	private void changeSpriteXPosition(Sprite sprite, long elapsedTime, TileHit hit) {
+		float dx = sprite.getVelocityX();
+		float oldX = sprite.getX();
+		float newX = oldX + dx * elapsedTime;
+		if (!collisionManager.getTileCollision(sprite, newX, sprite.getY(), hit)) {
+			sprite.setX(newX);
+		} else {
+			// line up with the side of the tile that was hit
+			if (hit.getNormalX() < 0) {
+				sprite.setX(TileMapRenderer.tilesToPixels(hit.getTileX())
+						- sprite.getWidth());
+			} else if (hit.getNormalX() > 0) {
+				sprite.setX(TileMapRenderer.tilesToPixels(hit.getTileX() + 1));
+			}
+			if(sprite instanceof Creature)
+				((Creature)sprite).collideHorizontal();
+			if(sprite instanceof Bullet)
+				((Bullet)sprite).setVisible(false);
+		}
+	}
+	
+	private void changeSpriteYPosition(Sprite sprite, long elapsedTime, TileHit hit) {
+		float dy = sprite.getVelocityY();
+		float oldY = sprite.getY();
+		float newY = oldY + dy * elapsedTime;
+		if (!collisionManager.getTileCollision(sprite, sprite.getX(), newY, hit)) {
+			sprite.setY(newY);
+		} else {
+			// line up with the tile boundary
+			if (hit.getNormalY() < 0) {
+				sprite.setY(TileMapRenderer.tilesToPixels(hit.getTileY())
+						- sprite.getHeight());
+			} else if (hit.getNormalY() > 0) {
+				sprite.setY(TileMapRenderer.tilesToPixels(hit.getTileY() + 1));
+			}
+			if(sprite instanceof Creature)
+				((Creature)sprite).collideVertical();
+			if(sprite instanceof Bullet)
+				((Bullet)sprite).setVisible(false);
+		}
+	}
+
+	/**
+	 * Updates the active entities from start to end - 1.
+	 */
+	private class Batch implements Callable<Void> {
+
+		EntityStore entities;
+		int start;
+		int end;
+		long elapsedTime;
+		// each batch checks its tile collisions with its own hit
+		TileHit hit = new TileHit();
+
+		public Void call() {
+			updateSprites(entities, start, end, elapsedTime, hit);
+			return null;
+		}
+	}
+}
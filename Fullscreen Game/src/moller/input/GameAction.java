@@ -1,89 +1,134 @@
-package moller.input;
-
-/********************************************************************************************************************************************************************************************
- * GameAction.java
- * 
- * The GameAction class is an abstract to a user-initiated action, like jumping
- * or moving. GameActions can be mapped to keys or the mouse with the
- * InputManager
- * 
- * Made By: Emil Mller Email: emilmol@kth.se
- *******************************************************************************************************************************************************************************************/
-
-public class GameAction {
-
-	// The isPressed() method returns true as long as the key is held down.
-	public static final int DEFAULT = 0;
-
-	// The isPressed() method returns true only after the key is first pressed,
-	// and not again until the key is released and pressed again
-	public static final int DETECT_INITAL_PRESS_ONLY = 1;
-
-	private static final int STATE_RELEASED = 0;
-	private static final int STATE_PRESSED = 1;
-	private static final int STATE_WAITING_FOR_RELEASE = 2;
-
-	private String name;
-	private int behavior;
-	private int amount;
-	private int state;
-
-	public GameAction(String name) {
-		this(name, DEFAULT);
-	}
-
-	public GameAction(String name, int behavior) {
-		this.name = name;
-		this.behavior = behavior;
-		reset();
-	}
-
-	public String getName() {
-		return name;
-	}
-
-	public void reset() {
-		state = STATE_RELEASED;
-		amount = 0;
-	}
-
-	public synchronized void tap() {
-		press();
-		release();
-	}
-
-	public synchronized void press() {
-		press(1);
-	}
-
-	public synchronized void press(int amount) {
-		if (state != STATE_WAITING_FOR_RELEASE) {
-			this.amount += amount;
-			state = STATE_PRESSED;
-		}
-
-	}
-
-	public synchronized void release() {
-		state = STATE_RELEASED;
-	}
-
-	public synchronized boolean isPressed() {
-		return (getAmount() != 0);
-	}
-
-	// For keys, this is the number of times the key was pressed once it was
-	// last checked. For mouse movement, this is the distance moved
-	public synchronized int getAmount() {
-		int retVal = amount;
-		if (retVal != 0) {
-			if (state == STATE_RELEASED) {
-				amount = 0;
-			} else if (behavior == DETECT_INITAL_PRESS_ONLY) {
-				state = STATE_WAITING_FOR_RELEASE;
-				amount = 0;
-			}
-		}
-		return retVal;
-	}
-}
+package moller.input;
+
+/********************************************************************************************************************************************************************************************
+ * GameAction.java
+ * 
+ * The GameAction class is an abstract to a user-initiated action, like jumping
+ * or moving. GameActions can be mapped to keys or the mouse with the
+ * InputManager
+ * 
+ * A GameAction is only used on the thread running the game. InputManager
+ * hands it the input of the AWT event thread through an InputEventRing.
+ * 
+ * Made By: Emil Möller Email: emilmol@kth.se
+ *******************************************************************************************************************************************************************************************/
+
+public class GameAction {
+
+	// The isPressed() method returns true as long as the key is held down.
+	public static final int DEFAULT = 0;
+
+	// The isPressed() method returns true only after the key is first pressed,
+	// and not again until the key is released and pressed again
+	public static final int DETECT_INITAL_PRESS_ONLY = 1;
+
+	private static final int STATE_RELEASED = 0;
+	private static final int STATE_PRESSED = 1;
+	private static final int STATE_WAITING_FOR_RELEASE = 2;
+
+	/**
+	 * Gets told about every press, release and reset of the action, for
+	 * example to record the input of a game.
+	 */
+	public interface Listener {
+		void pressed(GameAction action, int amount);
+
+		void released(GameAction action);
+
+		void reset(GameAction action);
+	}
+
+	private String name;
+	private int behavior;
+	private int amount;
+	private int state;
+	private long pressTime;
+	private Listener listener;
+
+	public GameAction(String name) {
+		this(name, DEFAULT);
+	}
+
+	public GameAction(String name, int behavior) {
+		this.name = name;
+		this.behavior = behavior;
+		reset();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void reset() {
+		state = STATE_RELEASED;
+		amount = 0;
+		if (listener != null) {
+			listener.reset(this);
+		}
+	}
+
+	public void tap() {
+		press();
+		release();
+	}
+
+	public void press() {
+		press(1);
+	}
+
+	public void press(int amount) {
+		press(amount, System.nanoTime());
+	}
+
+	/**
+	 * Presses the action as of the System.nanoTime() the input was made at.
+	 */
+	public void press(int amount, long time) {
+		pressTime = time;
+		if (state != STATE_WAITING_FOR_RELEASE) {
+			this.amount += amount;
+			state = STATE_PRESSED;
+		}
+		if (listener != null) {
+			listener.pressed(this, amount);
+		}
+	}
+
+	public void release() {
+		state = STATE_RELEASED;
+		if (listener != null) {
+			listener.released(this);
+		}
+	}
+
+	/**
+	 * Gets the System.nanoTime() the action was last pressed at, for
+	 * example to tell how long input waited for the game.
+	 */
+	public long getPressTime() {
+		return pressTime;
+	}
+
+	public boolean isPressed() {
+		return (getAmount() != 0);
+	}
+
+	// For keys, this is the number of times the key was pressed once it was
+	// last checked. For mouse movement, this is the distance moved
+	public int getAmount() {
+		int retVal = amount;
+		if (retVal != 0) {
+			if (state == STATE_RELEASED) {
+				amount = 0;
+			} else if (behavior == DETECT_INITAL_PRESS_ONLY) {
+				state = STATE_WAITING_FOR_RELEASE;
+				amount = 0;
+			}
+		}
+		return retVal;
+	}
+}
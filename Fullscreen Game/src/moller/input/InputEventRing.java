@@ -0,0 +1,125 @@
+package moller.input;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The InputEventRing class carries presses and releases of GameActions from
+ * one thread to another without locks, for example from the AWT event
+ * thread to the thread running the game. Only one thread may offer events
+ * and only one thread may take them.
+ *
+ * The ring has a fixed capacity. An event offered while the ring is full is
+ * dropped and counted instead of waiting for the game, which would stall
+ * the event thread.
+ */
+public class InputEventRing {
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final int PRESS = 0;
+	private static final int RELEASE = 1;
+
+	private GameAction[] actions;
+	private int[] types;
+	private int[] amounts;
+	private long[] times;
+	private int mask;
+
+	// the number of events offered and taken so far; each is only written
+	// by its own thread
+	private AtomicLong tail = new AtomicLong();
+	private AtomicLong head = new AtomicLong();
+
+	// only used by the thread offering events
+	private long knownHead;
+	private volatile long droppedCount;
+
+	public InputEventRing() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a ring holding the capacity, rounded up to a power of two.
+	 */
+	public InputEventRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		actions = new GameAction[size];
+		types = new int[size];
+		amounts = new int[size];
+		times = new long[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Offers a press of the action by the amount, made at the
+	 * System.nanoTime(). Returns false if the ring is full.
+	 */
+	public boolean offerPress(GameAction action, int amount, long time) {
+		return offer(action, PRESS, amount, time);
+	}
+
+	/**
+	 * Offers a release of the action, made at the System.nanoTime().
+	 * Returns false if the ring is full.
+	 */
+	public boolean offerRelease(GameAction action, long time) {
+		return offer(action, RELEASE, 0, time);
+	}
+
+	/**
+	 * Makes the presses and releases offered so far on their actions, in the
+	 * order they were offered. Returns the number of events.
+	 */
+	public int drain() {
+		long first = head.get();
+		long last = tail.get();
+		for (long i = first; i < last; i++) {
+			int slot = (int) i & mask;
+			if (types[slot] == PRESS) {
+				actions[slot].press(amounts[slot], times[slot]);
+			} else {
+				actions[slot].release();
+			}
+		}
+		// frees the slots for the offering thread
+		head.lazySet(last);
+		return (int) (last - first);
+	}
+
+	/**
+	 * Gets the number of events waiting to be drained.
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Gets the number of events dropped because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	private boolean offer(GameAction action, int type, int amount, long time) {
+		long next = tail.get();
+		if (next - knownHead > mask) {
+			knownHead = head.get();
+			if (next - knownHead > mask) {
+				droppedCount++;
+				return false;
+			}
+		}
+		int slot = (int) next & mask;
+		actions[slot] = action;
+		types[slot] = type;
+		amounts[slot] = amount;
+		times[slot] = time;
+		// makes the event visible to the draining thread
+		tail.lazySet(next + 1);
+		return true;
+	}
+}
@@ -0,0 +1,149 @@
+package moller.input;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The InputRecorder class logs every press, release and reset of a set of
+ * GameActions with the number of the tick it was made in, so InputReplay can
+ * play the same game again. The log is kept in memory and written when the
+ * recording is finished, ending with the last tick and a hash of the world
+ * to check the replay against.
+ *
+ * The file starts with MAGIC, VERSION and the names of the actions. Every
+ * event is a type byte, the ticks since the last event, the action and, for
+ * presses, the amount, with the numbers as variable length integers. The
+ * END event holds the ticks to the end and the world hash instead.
+ *
+ * The recorder must be used on the thread running the game, with the
+ * input made on the actions at the start of a tick, as
+ * InputManager.processEvents does. The replay is then exact.
+ */
+public class InputRecorder implements GameAction.Listener {
+
+	static final int MAGIC = 0x4d494e50;
+	static final int VERSION = 1;
+
+	static final int PRESS = 0;
+	static final int RELEASE = 1;
+	static final int RESET = 2;
+	static final int END = 3;
+
+	private GameAction[] actions;
+	private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(bytes);
+	private long tick;
+	private long lastTick;
+	private int eventCount;
+	private boolean finished;
+
+	/**
+	 * Starts recording the actions.
+	 */
+	public InputRecorder(GameAction[] actions) {
+		this.actions = actions.clone();
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			writeNumber(actions.length);
+			for (int i = 0; i < actions.length; i++) {
+				out.writeUTF(actions[i].getName());
+			}
+		} catch (IOException ex) {
+			// can not happen writing to memory
+			throw new IllegalStateException(ex);
+		}
+		for (int i = 0; i < actions.length; i++) {
+			actions[i].setListener(this);
+		}
+	}
+
+	/**
+	 * Sets the number of the tick about to start. Events from now on are
+	 * recorded for that tick.
+	 */
+	public void setTick(long tick) {
+		this.tick = tick;
+	}
+
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	public void pressed(GameAction action, int amount) {
+		write(PRESS, action);
+		writeNumber(amount);
+	}
+
+	public void released(GameAction action) {
+		write(RELEASE, action);
+	}
+
+	public void reset(GameAction action) {
+		write(RESET, action);
+	}
+
+	/**
+	 * Stops recording and writes the log to the file. The game ended after
+	 * endTick ticks with the world hash.
+	 */
+	public void finish(File file, long endTick, long worldHash) throws IOException {
+		for (int i = 0; i < actions.length; i++) {
+			actions[i].setListener(null);
+		}
+		if (!finished) {
+			finished = true;
+			out.writeByte(END);
+			writeNumber(endTick - lastTick);
+			out.writeLong(worldHash);
+		}
+		OutputStream output = new FileOutputStream(file);
+		try {
+			bytes.writeTo(output);
+		} finally {
+			output.close();
+		}
+	}
+
+	private void write(int type, GameAction action) {
+		if (finished) {
+			return;
+		}
+		long eventTick = Math.max(tick, lastTick);
+		try {
+			out.writeByte(type);
+			writeNumber(eventTick - lastTick);
+			writeNumber(indexOf(action));
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		lastTick = eventTick;
+		eventCount++;
+	}
+
+	private int indexOf(GameAction action) {
+		for (int i = 0; i < actions.length; i++) {
+			if (actions[i] == action) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("not recording " + action.getName());
+	}
+
+	// 7 bits per byte, the high bit set on all but the last byte
+	private void writeNumber(long value) {
+		try {
+			while ((value & ~0x7fL) != 0) {
+				out.writeByte((int) (value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte((int) value);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
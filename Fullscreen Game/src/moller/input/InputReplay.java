@@ -0,0 +1,148 @@
+package moller.input;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The InputReplay class plays a log written by InputRecorder back through
+ * the GameActions, without a window or keyboard. The actions are matched
+ * by name. The game calls apply before each tick reads the actions, and
+ * should stop after getEndTick() ticks, when it can compare its world hash
+ * with getWorldHash().
+ */
+public class InputReplay {
+
+	private GameAction[] actions;
+	private int eventCount;
+	private long[] ticks = new long[64];
+	private int[] types = new int[64];
+	private GameAction[] eventActions = new GameAction[64];
+	private int[] amounts = new int[64];
+	private int next;
+	private long endTick;
+	private long worldHash;
+
+	/**
+	 * Reads a log recorded from actions with the same names as the given
+	 * actions.
+	 */
+	public InputReplay(File file, GameAction[] actions) throws IOException {
+		this.actions = actions.clone();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			read(in);
+		} catch (EOFException ex) {
+			throw new IOException(file + " ends too early", ex);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the number of ticks the recorded game ran.
+	 */
+	public long getEndTick() {
+		return endTick;
+	}
+
+	/**
+	 * Gets the world hash the recorded game ended with.
+	 */
+	public long getWorldHash() {
+		return worldHash;
+	}
+
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Makes the presses, releases and resets recorded for the tick, and any
+	 * earlier ones not made yet.
+	 */
+	public void apply(long tick) {
+		while (next < eventCount && ticks[next] <= tick) {
+			GameAction action = eventActions[next];
+			switch (types[next]) {
+			case InputRecorder.PRESS:
+				action.press(amounts[next]);
+				break;
+			case InputRecorder.RELEASE:
+				action.release();
+				break;
+			default:
+				action.reset();
+			}
+			next++;
+		}
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != InputRecorder.MAGIC) {
+			throw new IOException("not an input recording");
+		}
+		int version = in.readUnsignedByte();
+		if (version != InputRecorder.VERSION) {
+			throw new IOException("unknown input recording version " + version);
+		}
+		GameAction[] recorded = new GameAction[(int) readNumber(in)];
+		for (int i = 0; i < recorded.length; i++) {
+			recorded[i] = findAction(in.readUTF());
+		}
+
+		long tick = 0;
+		while (true) {
+			int type = in.readUnsignedByte();
+			tick += readNumber(in);
+			if (type == InputRecorder.END) {
+				endTick = tick;
+				worldHash = in.readLong();
+				return;
+			}
+			if (type > InputRecorder.END) {
+				throw new IOException("unknown input event " + type);
+			}
+			if (eventCount == ticks.length) {
+				int capacity = eventCount * 2;
+				ticks = Arrays.copyOf(ticks, capacity);
+				types = Arrays.copyOf(types, capacity);
+				eventActions = Arrays.copyOf(eventActions, capacity);
+				amounts = Arrays.copyOf(amounts, capacity);
+			}
+			ticks[eventCount] = tick;
+			types[eventCount] = type;
+			eventActions[eventCount] = recorded[(int) readNumber(in)];
+			if (type == InputRecorder.PRESS) {
+				amounts[eventCount] = (int) readNumber(in);
+			}
+			eventCount++;
+		}
+	}
+
+	private GameAction findAction(String name) throws IOException {
+		for (int i = 0; i < actions.length; i++) {
+			if (actions[i].getName().equals(name)) {
+				return actions[i];
+			}
+		}
+		throw new IOException("no action " + name + " to replay");
+	}
+
+	private static long readNumber(DataInputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
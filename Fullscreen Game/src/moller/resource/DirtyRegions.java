@@ -0,0 +1,130 @@
+package moller.resource;
+
+import java.awt.Rectangle;
+
+/**
+ * The DirtyRegions class collects the rectangles of a screen that have to be
+ * drawn again. Rectangles are cut to the screen, and a rectangle touching
+ * one already collected is merged with it, so the regions never overlap
+ * and every pixel is drawn at most once. When there are more than
+ * MAX_REGIONS regions, they are merged into one rectangle around them all.
+ */
+public class DirtyRegions {
+
+	public static final int MAX_REGIONS = 16;
+
+	private int screenWidth, screenHeight;
+	private int count;
+	// the regions, each from x1, y1 up to but not including x2, y2
+	private int[] x1 = new int[MAX_REGIONS + 1];
+	private int[] y1 = new int[MAX_REGIONS + 1];
+	private int[] x2 = new int[MAX_REGIONS + 1];
+	private int[] y2 = new int[MAX_REGIONS + 1];
+
+	public void setScreenSize(int screenWidth, int screenHeight) {
+		this.screenWidth = screenWidth;
+		this.screenHeight = screenHeight;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Adds a rectangle of the screen.
+	 */
+	public void add(int x, int y, int width, int height) {
+		int left = Math.max(x, 0);
+		int top = Math.max(y, 0);
+		int right = Math.min(x + width, screenWidth);
+		int bottom = Math.min(y + height, screenHeight);
+		if (left >= right || top >= bottom) {
+			return;
+		}
+		// a merged rectangle may touch regions the added one did not, so
+		// keep merging until it touches none
+		int i = 0;
+		while (i < count) {
+			if (left <= x2[i] && right >= x1[i] && top <= y2[i] && bottom >= y1[i]) {
+				left = Math.min(left, x1[i]);
+				top = Math.min(top, y1[i]);
+				right = Math.max(right, x2[i]);
+				bottom = Math.max(bottom, y2[i]);
+				remove(i);
+				i = 0;
+			} else {
+				i++;
+			}
+		}
+		x1[count] = left;
+		y1[count] = top;
+		x2[count] = right;
+		y2[count] = bottom;
+		count++;
+		if (count > MAX_REGIONS) {
+			mergeAll();
+		}
+	}
+
+	/**
+	 * Adds the regions of another DirtyRegions.
+	 */
+	public void add(DirtyRegions regions) {
+		for (int i = 0; i < regions.count; i++) {
+			add(regions.x1[i], regions.y1[i], regions.x2[i] - regions.x1[i],
+					regions.y2[i] - regions.y1[i]);
+		}
+	}
+
+	/**
+	 * Gets the number of pixels covered by the regions.
+	 */
+	public int getArea() {
+		int area = 0;
+		for (int i = 0; i < count; i++) {
+			area += (x2[i] - x1[i]) * (y2[i] - y1[i]);
+		}
+		return area;
+	}
+
+	/**
+	 * Copies the region into the rectangle and returns it.
+	 */
+	public Rectangle getRegion(int i, Rectangle region) {
+		region.setBounds(x1[i], y1[i], x2[i] - x1[i], y2[i] - y1[i]);
+		return region;
+	}
+
+	/**
+	 * Returns true if the rectangle overlaps the region.
+	 */
+	public boolean intersects(int i, int x, int y, int width, int height) {
+		return x < x2[i] && x + width > x1[i] && y < y2[i] && y + height > y1[i];
+	}
+
+	private void remove(int i) {
+		count--;
+		x1[i] = x1[count];
+		y1[i] = y1[count];
+		x2[i] = x2[count];
+		y2[i] = y2[count];
+	}
+
+	private void mergeAll() {
+		for (int i = 1; i < count; i++) {
+			x1[0] = Math.min(x1[0], x1[i]);
+			y1[0] = Math.min(y1[0], y1[i]);
+			x2[0] = Math.max(x2[0], x2[i]);
+			y2[0] = Math.max(y2[0], y2[i]);
+		}
+		count = 1;
+	}
+}
@@ -0,0 +1,227 @@
+package moller.resource;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The ImageCache class loads every image file once, plain or transformed,
+ * and hands out the same Image for the same request. The cache counts the
+ * bytes of the decoded images it refers to and forgets the least recently
+ * used images once it refers to more than its budget. A forgotten image is
+ * loaded again the next time it is asked for.
+ *
+ * The budget only limits what the cache itself keeps alive, not how much
+ * memory images take: an image handed out stays in memory as long as an
+ * Animation, a TileMap or anything else still refers to it, whether the
+ * cache has forgotten it or not.
+ *
+ * While an ImageLoader is set, images are loaded on its threads. Otherwise
+ * they are loaded on the first thread asking for them, outside the lock of
+ * the cache, so other threads can use the cache meanwhile. Threads asking
+ * for an image already being loaded wait for it instead of loading it again.
+ */
+public class ImageCache {
+
+	public static final int ORIGINAL = 0;
+	public static final int MIRRORED = 1;
+	public static final int FLIPPED = 2;
+
+	public static final long DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+	private GraphicsConfiguration gc;
+	private ImageLoader loader;
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long budget = DEFAULT_BUDGET;
+	private long bytes;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * Creates a cache of images compatible with the GraphicsConfiguration,
+	 * which may be null when there is no screen.
+	 */
+	public ImageCache(GraphicsConfiguration gc) {
+		this.gc = gc;
+	}
+
+	/**
+	 * Sets the loader to load images on, or null to load them on the thread
+	 * asking for them.
+	 */
+	public synchronized void setLoader(ImageLoader loader) {
+		this.loader = loader;
+	}
+
+	/**
+	 * Gets the image file, mirrored or flipped if asked for, loading it if
+	 * it is not in the cache.
+	 */
+	public Image get(String filename, int transform) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key(filename, transform));
+			if (entry != null) {
+				hitCount++;
+			} else {
+				entry = load(filename, transform);
+			}
+		}
+		entry.run();
+		Image image = ImageLoader.get(entry.image);
+		synchronized (this) {
+			if (entry.bytes < 0) {
+				entry.bytes = getBytes(image);
+				bytes += entry.bytes;
+				evict(entry);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Starts loading the image file on the loader if it is not in the cache,
+	 * so a later get does not have to wait as long. Without a loader, the
+	 * image is loaded by the next get.
+	 */
+	public synchronized void prefetch(String filename, int transform) {
+		if (!entries.containsKey(key(filename, transform))) {
+			load(filename, transform);
+		}
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets how many bytes of decoded images the cache may refer to. See the
+	 * class comment for why this is not a limit on memory.
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict(null);
+	}
+
+	/**
+	 * Gets the bytes of decoded images the cache refers to. Images still
+	 * loading are not counted.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	// adds the entry of an image not in the cache, which is loaded on the
+	// loader or by the first thread calling run on it
+	private Entry load(final String filename, final int transform) {
+		missCount++;
+		Entry entry;
+		if (transform == ORIGINAL) {
+			if (loader != null) {
+				entry = new Entry(loader.load(new File(filename)));
+			} else {
+				entry = new Entry(new FutureTask<Image>(new Callable<Image>() {
+					public Image call() {
+						return ImageLoader.decode(new File(filename), gc);
+					}
+				}));
+			}
+		} else {
+			final float x = (transform == MIRRORED) ? -1 : 1;
+			final float y = (transform == FLIPPED) ? -1 : 1;
+			Entry existing = entries.get(key(filename, ORIGINAL));
+			final Entry original = (existing != null) ? existing : load(filename,
+					ORIGINAL);
+			if (loader != null) {
+				entry = new Entry(loader.transform(original.image, x, y));
+			} else {
+				entry = new Entry(new FutureTask<Image>(new Callable<Image>() {
+					public Image call() {
+						original.run();
+						return ImageLoader.transform(ImageLoader.get(original.image), x,
+								y, gc);
+					}
+				}));
+			}
+		}
+		entries.put(key(filename, transform), entry);
+		return entry;
+	}
+
+	// forgets the least recently used images until the budget is kept,
+	// except the one just used and the ones still loading
+	private void evict(Entry keep) {
+		Iterator<Entry> i = entries.values().iterator();
+		while (bytes > budget && i.hasNext()) {
+			Entry entry = i.next();
+			if (entry != keep && entry.bytes >= 0) {
+				i.remove();
+				bytes -= entry.bytes;
+				evictionCount++;
+			}
+		}
+	}
+
+	private static String key(String filename, int transform) {
+		return transform + filename;
+	}
+
+	private static long getBytes(Image image) {
+		long pixels = (long) image.getWidth(null) * image.getHeight(null);
+		return Math.max(pixels, 0) * 4;
+	}
+
+	private static class Entry {
+
+		Future<Image> image;
+		// loads the image when there is no loader, see run
+		FutureTask<Image> task;
+		// -1 until the image is loaded
+		long bytes = -1;
+
+		public Entry(Future<Image> image) {
+			this.image = image;
+		}
+
+		public Entry(FutureTask<Image> task) {
+			this.image = task;
+			this.task = task;
+		}
+
+		// loads the image on the calling thread if it is not loaded by a
+		// loader; does nothing if it is loaded or another thread is loading it
+		void run() {
+			if (task != null) {
+				task.run();
+			}
+		}
+	}
+}
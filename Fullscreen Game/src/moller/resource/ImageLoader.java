@@ -0,0 +1,264 @@
+package moller.resource;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+ * The ImageLoader class decodes images with ImageIO on a pool of threads.
+ * An image can be mirrored or flipped as soon as it is decoded, by a task
+ * that only starts once the decoding is done, so no thread waits for
+ * another.
+ *
+ * The loader counts the images of each kind of task, the time spent on
+ * them and when the last one finished, for startup reports.
+ */
+public class ImageLoader {
+
+	public static final int DECODE = 0;
+	public static final int TRANSFORM = 1;
+
+	private GraphicsConfiguration gc;
+	private ExecutorService executor;
+	private int threadCount;
+
+	// by kind of task
+	private int[] counts = new int[2];
+	private long[] busyTimes = new long[2];
+	private long[] finishTimes = new long[2];
+
+	/**
+	 * Creates a loader with one thread per processor. The images are made
+	 * compatible with the GraphicsConfiguration, which may be null when
+	 * there is no screen.
+	 */
+	public ImageLoader(GraphicsConfiguration gc) {
+		this(gc, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ImageLoader(GraphicsConfiguration gc, int threadCount) {
+		this.gc = gc;
+		this.threadCount = threadCount;
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Image loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Starts decoding the image file.
+	 */
+	public Future<Image> load(final File file) {
+		Task task = new Task(DECODE, new Callable<Image>() {
+			public Image call() {
+				return decode(file, gc);
+			}
+		});
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Starts scaling an image by x and y once it is loaded, see
+	 * transform(Image, float, float, GraphicsConfiguration).
+	 */
+	public Future<Image> transform(Future<Image> source, final float x, final float y) {
+		final Task sourceTask = (Task) source;
+		Task task = new Task(TRANSFORM, new Callable<Image>() {
+			public Image call() throws Exception {
+				return ImageLoader.transform(sourceTask.get(), x, y, gc);
+			}
+		});
+		sourceTask.runAfter(task);
+		return task;
+	}
+
+	/**
+	 * Stops the threads once the started tasks are done.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public synchronized int getCount(int kind) {
+		return counts[kind];
+	}
+
+	/**
+	 * Gets the nanoseconds all threads spent on tasks of the kind.
+	 */
+	public synchronized long getBusyTime(int kind) {
+		return busyTimes[kind];
+	}
+
+	/**
+	 * Gets the System.nanoTime() at which the last task of the kind
+	 * finished.
+	 */
+	public synchronized long getFinishTime(int kind) {
+		return finishTimes[kind];
+	}
+
+	/**
+	 * Gets the image of a task, waiting for it if needed.
+	 */
+	public static Image get(Future<Image> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while loading an image", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("could not load an image", ex.getCause());
+		}
+	}
+
+	/**
+	 * Decodes an image file into a compatible image. A file that can not be
+	 * decoded gives the broken image of ImageIcon, which is never drawn.
+	 */
+	public static Image decode(File file, GraphicsConfiguration gc) {
+		BufferedImage decoded;
+		try {
+			decoded = ImageIO.read(file);
+		} catch (IOException ex) {
+			decoded = null;
+		}
+		if (decoded == null) {
+			return new ImageIcon(file.getPath()).getImage();
+		}
+		if (decoded.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+			decoded = grayToRGB(decoded);
+		}
+		int transparency = decoded.getColorModel().getTransparency();
+		BufferedImage image = createImage(decoded.getWidth(), decoded.getHeight(),
+				transparency, gc);
+		Graphics2D g = image.createGraphics();
+		g.drawImage(decoded, 0, 0, null);
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Makes a copy of an image scaled by x and y around its center, for
+	 * example by -1 and 1 to mirror it.
+	 */
+	public static Image transform(Image image, float x, float y,
+			GraphicsConfiguration gc) {
+		AffineTransform transform = new AffineTransform();
+		transform.scale(x, y);
+		transform.translate((x - 1) * image.getWidth(null) / 2,
+				(y - 1) * image.getHeight(null) / 2);
+
+		Image newImage = createImage(image.getWidth(null), image.getHeight(null),
+				Transparency.BITMASK, gc);
+		Graphics2D g = (Graphics2D) newImage.getGraphics();
+		g.drawImage(image, transform, null);
+		g.dispose();
+
+		return newImage;
+	}
+
+	// ImageIO decodes gray images as linear gray, which drawing turns much
+	// lighter. The gray values are taken as they are instead, like the
+	// toolkit does.
+	private static BufferedImage grayToRGB(BufferedImage gray) {
+		Raster raster = gray.getRaster();
+		boolean alpha = raster.getNumBands() > 1;
+		int max = (1 << gray.getColorModel().getComponentSize(0)) - 1;
+		BufferedImage rgb = new BufferedImage(gray.getWidth(), gray.getHeight(),
+				alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < gray.getHeight(); y++) {
+			for (int x = 0; x < gray.getWidth(); x++) {
+				int value = raster.getSample(x, y, 0) * 255 / max;
+				int a = alpha ? raster.getSample(x, y, 1) * 255 / max : 255;
+				rgb.setRGB(x, y, (a << 24) | (value << 16) | (value << 8) | value);
+			}
+		}
+		return rgb;
+	}
+
+	private static BufferedImage createImage(int width, int height,
+			int transparency, GraphicsConfiguration gc) {
+		if (gc != null) {
+			return gc.createCompatibleImage(width, height, transparency);
+		}
+		// no screen to be compatible with
+		return new BufferedImage(width, height,
+				(transparency == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB
+						: BufferedImage.TYPE_INT_ARGB);
+	}
+
+	private synchronized void finished(int kind, long start) {
+		long now = System.nanoTime();
+		counts[kind]++;
+		busyTimes[kind] += now - start;
+		finishTimes[kind] = Math.max(finishTimes[kind], now);
+	}
+
+	/**
+	 * A task that times itself and starts the tasks waiting for it when it
+	 * is done.
+	 */
+	private class Task extends FutureTask<Image> {
+
+		private int kind;
+		private ArrayList<Task> dependents = new ArrayList<Task>();
+		private boolean finished;
+
+		public Task(int kind, Callable<Image> callable) {
+			super(callable);
+			this.kind = kind;
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			super.run();
+			finished(kind, start);
+		}
+
+		void runAfter(Task task) {
+			synchronized (this) {
+				if (!finished) {
+					dependents.add(task);
+					return;
+				}
+			}
+			executor.execute(task);
+		}
+
+		protected void done() {
+			synchronized (this) {
+				finished = true;
+			}
+			for (int i = 0; i < dependents.size(); i++) {
+				executor.execute(dependents.get(i));
+			}
+		}
+	}
+}
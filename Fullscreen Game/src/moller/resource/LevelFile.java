@@ -0,0 +1,303 @@
+package moller.resource;
+
+import java.awt.Image;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The LevelFile class reads and writes compiled levels. A compiled level
+ * holds the same map as a text level, but it can be copied straight into a
+ * TileMap instead of being parsed character by character.
+ *
+ * All numbers are big-endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * short  flags, FLAG_RLE if the tiles are run-length encoded
+ * int    width
+ * int    height
+ * byte   number of tile characters, then one byte per character.
+ *        Tile index i + 1 is the tile of character i.
+ * int    number of spawns, then per spawn: int x, short y, byte character
+ * int    number of tile bytes, then the tiles row by row
+ * </pre>
+ *
+ * Plain tiles are one byte per tile. Run-length encoded tiles write a
+ * non-empty tile as its index and a run of empty tiles as a 0 byte followed
+ * by the length of the run, 7 bits per byte with the high bit set on all
+ * bytes but the last.
+ */
+public class LevelFile {
+
+	public static final String EXTENSION = ".lvl";
+	public static final int MAGIC = 0x46474c56; // "FGLV"
+	public static final int VERSION = 1;
+	public static final int FLAG_RLE = 1;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int SPAWN_SIZE = 7;
+
+	/**
+	 * Gets the compiled file belonging to a text level, for example
+	 * Levels/Level1.lvl for Levels/Level1.txt.
+	 */
+	public static File getCompiledFile(File textFile) {
+		String name = textFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(textFile.getParentFile(), name + EXTENSION);
+	}
+
+	/**
+	 * Memory-maps a compiled level and fills a new TileMap with it. Tile
+	 * image i is the image of tile character i, the tile characters stored
+	 * in the file are looked up in them, so a file compiled with the tile
+	 * characters in another order still gets the right images. The
+	 * SpawnListener is told about every spawn.
+	 */
+	public static TileMap read(File file, String tileChars, Image[] tileImages,
+			StreamingTileMap.SpawnListener spawnListener) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = input.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size());
+			return read(buffer, tileChars, tileImages, spawnListener, file);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static TileMap read(ByteBuffer buffer, String tileChars,
+			Image[] tileImages, StreamingTileMap.SpawnListener spawnListener,
+			File file)
+			throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+			throw new IOException(file + " is not a compiled level");
+		}
+		int version = buffer.getShort();
+		if (version != VERSION) {
+			throw new IOException(file + " has version " + version
+					+ ", expected " + VERSION);
+		}
+		int flags = buffer.getShort();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+		if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+			throw new IOException(file + " has a " + width + "x" + height + " map");
+		}
+
+		require(buffer, 1, file);
+		int tileCount = buffer.get() & 0xff;
+		require(buffer, tileCount + 4, file);
+		// the image of every tile index in the file
+		Image[] fileImages = new Image[tileCount];
+		for (int i = 0; i < tileCount; i++) {
+			char ch = (char) (buffer.get() & 0xff);
+			int tile = tileChars.indexOf(ch);
+			if (tile < 0 || tile >= tileImages.length) {
+				throw new IOException(file + " uses tile character '" + ch
+						+ "', which has no tile image");
+			}
+			for (int j = 0; j < i; j++) {
+				if (fileImages[j] == tileImages[tile]) {
+					throw new IOException(file + " lists tile character '" + ch
+							+ "' twice");
+				}
+			}
+			fileImages[i] = tileImages[tile];
+		}
+		// the empty tile and the tiles of the characters
+		int paletteSize = tileCount + 1;
+
+		int spawnCount = buffer.getInt();
+		int spawnStart = buffer.position();
+		if (spawnCount < 0) {
+			throw new IOException(file + " has " + spawnCount + " spawns");
+		}
+		require(buffer, (long) spawnCount * SPAWN_SIZE + 4, file);
+		buffer.position(spawnStart + spawnCount * SPAWN_SIZE);
+
+		int tileBytes = buffer.getInt();
+		if (tileBytes < 0) {
+			throw new IOException(file + " has " + tileBytes + " tile bytes");
+		}
+		require(buffer, tileBytes, file);
+		boolean runLengthEncoded = (flags & FLAG_RLE) != 0;
+		if (runLengthEncoded) {
+			// checked before the map is allocated, a broken size must
+			// not run out of memory
+			int tileStart = buffer.position();
+			decodeRuns(buffer, tileBytes, null, width * height, paletteSize, file);
+			buffer.position(tileStart);
+		} else if (tileBytes != width * height) {
+			throw new IOException(file + " has " + tileBytes + " tiles, expected "
+					+ width * height);
+		}
+
+		// the tiles are copied as they are, so the palette gets the same
+		// indices as the file
+		TileMap map = new TileMap(width, height);
+		for (int i = 0; i < tileCount; i++) {
+			map.getPaletteIndex(fileImages[i]);
+		}
+		byte[] tiles = map.getTileArray();
+		if (runLengthEncoded) {
+			decodeRuns(buffer, tileBytes, tiles, tiles.length, paletteSize, file);
+		} else {
+			buffer.get(tiles);
+			for (int i = 0; i < tiles.length; i++) {
+				checkTile(tiles[i], paletteSize, file);
+			}
+		}
+		map.tilesFilled();
+
+		if (spawnListener != null) {
+			buffer.position(spawnStart);
+			for (int i = 0; i < spawnCount; i++) {
+				int x = buffer.getInt();
+				int y = buffer.getShort() & 0xffff;
+				char ch = (char) (buffer.get() & 0xff);
+				if (x < 0 || x >= width || y >= height) {
+					throw new IOException(file + " has a spawn at " + x + ", " + y
+							+ " outside the map");
+				}
+				spawnListener.spawn(map, ch, x, y);
+			}
+		}
+		return map;
+	}
+
+	// decodes count tiles into the array, or only checks that they decode
+	// if it is null
+	private static void decodeRuns(ByteBuffer buffer, int length, byte[] tiles,
+			int count, int paletteSize, File file) throws IOException {
+		int end = buffer.position() + length;
+		int i = 0;
+		while (buffer.position() < end) {
+			byte tile = buffer.get();
+			if (tile != 0) {
+				if (i == count) {
+					throw new IOException(file + " has more than " + count + " tiles");
+				}
+				checkTile(tile, paletteSize, file);
+				if (tiles != null) {
+					tiles[i] = tile;
+				}
+				i++;
+			} else {
+				int run = readLength(buffer, end, file);
+				if (run > count - i) {
+					throw new IOException(file + " has more than " + count + " tiles");
+				}
+				// the array starts out empty, so runs are skipped
+				i += run;
+			}
+		}
+		if (i != count) {
+			throw new IOException(file + " has " + i + " tiles, expected " + count);
+		}
+	}
+
+	private static void require(ByteBuffer buffer, long bytes, File file)
+			throws IOException {
+		if (buffer.remaining() < bytes) {
+			throw new IOException(file + " ends after " + buffer.limit()
+					+ " bytes, expected at least " + (buffer.position() + bytes));
+		}
+	}
+
+	private static void checkTile(byte tile, int paletteSize, File file)
+			throws IOException {
+		if ((tile & 0xff) >= paletteSize) {
+			throw new IOException(file + " uses tile " + (tile & 0xff) + ", but only "
+					+ (paletteSize - 1) + " are loaded");
+		}
+	}
+
+	/**
+	 * Writes a compiled level. The tiles hold the tile index of every
+	 * position row by row, the spawns hold x, y and character of every
+	 * sprite.
+	 */
+	public static void write(DataOutputStream out, int width, int height,
+			String tileChars, byte[] tiles, int[] spawns, int spawnCount,
+			boolean runLengthEncode) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(runLengthEncode ? FLAG_RLE : 0);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeByte(tileChars.length());
+		for (int i = 0; i < tileChars.length(); i++) {
+			out.writeByte(tileChars.charAt(i));
+		}
+		out.writeInt(spawnCount);
+		for (int i = 0; i < spawnCount; i++) {
+			out.writeInt(spawns[i * 3]);
+			out.writeShort(spawns[i * 3 + 1]);
+			out.writeByte(spawns[i * 3 + 2]);
+		}
+		byte[] data = runLengthEncode ? encodeRuns(tiles) : tiles;
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static byte[] encodeRuns(byte[] tiles) {
+		byte[] data = new byte[Math.max(tiles.length, 16)];
+		int length = 0;
+		int i = 0;
+		while (i < tiles.length) {
+			if (data.length - length < 8) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			if (tiles[i] != 0) {
+				data[length++] = tiles[i++];
+				continue;
+			}
+			int run = 0;
+			while (i < tiles.length && tiles[i] == 0) {
+				run++;
+				i++;
+			}
+			data[length++] = 0;
+			while (run >= 0x80) {
+				data[length++] = (byte) ((run & 0x7f) | 0x80);
+				run >>>= 7;
+			}
+			data[length++] = (byte) run;
+		}
+		return Arrays.copyOf(data, length);
+	}
+
+	// reads a run length ending before the end position
+	private static int readLength(ByteBuffer buffer, int end, File file)
+			throws IOException {
+		int length = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (buffer.position() == end || shift > 28) {
+				throw new IOException(file + " has a broken run at byte "
+						+ buffer.position());
+			}
+			b = buffer.get();
+			length |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (length < 0) {
+			throw new IOException(file + " has a broken run at byte "
+					+ buffer.position());
+		}
+		return length;
+	}
+}
@@ -0,0 +1,489 @@
+package moller.resource;
+
+import java.awt.Image;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import moller.sprites.Creature;
+import moller.sprites.Sprite;
+
+/**
+ * The StreamingTileMap class is a TileMap that reads its tiles from a level
+ * file on demand instead of holding the whole level in memory. The level is
+ * split into chunks of CHUNK_WIDTH columns. Chunks around the focus column
+ * are loaded on a background thread, and the least recently used chunks are
+ * dropped once the loaded chunks use more than the memory budget.
+ *
+ * Reading a tile of a chunk that is not loaded loads it right away, so the
+ * map looks like any other TileMap to the code using it. Only
+ * getLoadedTileIndex never loads, for drawing on another thread than the one
+ * calling setFocus. Tiles changed with setTile are lost when their chunk is
+ * dropped.
+ *
+ * Sprites are spawned through the SpawnListener every time their chunk is
+ * loaded, and removed from the map again when the chunk is dropped, so the
+ * sprites in the map are only those around the focus. A sprite that is no
+ * longer in the map or no longer alive when its chunk is dropped has been
+ * killed or collected, and is not spawned again. The map remembers these
+ * in one bit for every character of the level up to the last one removed,
+ * so no memory is used per chunk visited.
+ */
+public class StreamingTileMap extends TileMap {
+
+	public static final int CHUNK_BITS = 6;
+	public static final int CHUNK_WIDTH = 1 << CHUNK_BITS;
+	public static final long DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+
+	// chunks on each side of the focus that are loaded ahead of time
+	private static final int PREFETCH_CHUNKS = 2;
+
+	/**
+	 * Gets told about every sprite character in the level, on the thread
+	 * calling setFocus. Returns the Sprite it added to the map, or null if
+	 * it added none.
+	 */
+	public interface SpawnListener {
+		Sprite spawn(TileMap map, char ch, int tileX, int tileY);
+	}
+
+	private File file;
+	private RandomAccessFile input;
+	private long[] lineOffsets;
+	private int[] lineLengths;
+	private int[] firstCharOfChunk;
+
+	private byte[] tileOfChar = new byte[128];
+	private boolean[] spawnOfChar = new boolean[128];
+	private SpawnListener spawnListener;
+
+	// read by every thread, written when a chunk is loaded or dropped
+	private AtomicReferenceArray<Chunk> chunks;
+	// chunks loaded but not yet seen by setFocus
+	private ConcurrentLinkedQueue<Chunk> loaded = new ConcurrentLinkedQueue<Chunk>();
+
+	// only used by the thread calling setFocus
+	private LinkedHashMap<Integer, Chunk> resident = new LinkedHashMap<Integer, Chunk>(
+			16, 0.75f, true);
+	private HashSet<Integer> requested = new HashSet<Integer>();
+	// the spawns killed or collected, by character number, see LevelIndex
+	private BitSet removedSpawns = new BitSet();
+	private int maxResidentChunks;
+	private int focusChunk;
+	private long loadCount;
+
+	private ExecutorService loader;
+
+	/**
+	 * Opens a level file. The file is read once to find where the lines
+	 * start, the tiles are read when they are needed.
+	 */
+	public StreamingTileMap(File file) throws IOException {
+		this(file, LevelIndex.scan(file));
+	}
+
+	private StreamingTileMap(File file, LevelIndex index) throws IOException {
+		super(index.width, index.lineOffsets.length, false);
+		this.file = file;
+		lineOffsets = index.lineOffsets;
+		lineLengths = index.lineLengths;
+		firstCharOfChunk = index.firstCharOfChunk;
+		input = new RandomAccessFile(file, "r");
+		chunks = new AtomicReferenceArray<Chunk>((getWidth() + CHUNK_WIDTH - 1)
+				>> CHUNK_BITS);
+		setMemoryBudget(DEFAULT_MEMORY_BUDGET);
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "TileMap chunk loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Makes the character stand for the tile Image in the level file.
+	 */
+	public void mapCharToTile(char ch, Image tile) {
+		tileOfChar[ch] = (byte) getPaletteIndex(tile);
+	}
+
+	/**
+	 * Makes the SpawnListener get told about the character in the level file.
+	 */
+	public void mapCharToSpawn(char ch) {
+		spawnOfChar[ch] = true;
+	}
+
+	public void setSpawnListener(SpawnListener spawnListener) {
+		this.spawnListener = spawnListener;
+	}
+
+	/**
+	 * Sets how many bytes of tiles may be loaded at once. At least the
+	 * chunks around the focus are always kept.
+	 */
+	public void setMemoryBudget(long bytes) {
+		long chunkBytes = (long) CHUNK_WIDTH * getHeight();
+		maxResidentChunks = (int) Math.max(bytes / Math.max(chunkBytes, 1),
+				2 * PREFETCH_CHUNKS + 1);
+	}
+
+	public int getMaxResidentChunks() {
+		return maxResidentChunks;
+	}
+
+	public int getResidentChunkCount() {
+		return resident.size();
+	}
+
+	/**
+	 * Gets how many chunks have been read from the file so far.
+	 */
+	public synchronized long getLoadCount() {
+		return loadCount;
+	}
+
+	/**
+	 * Loads the chunk at the focus, starts loading the chunks around it,
+	 * spawns the sprites of newly loaded chunks and drops chunks over the
+	 * memory budget together with their sprites.
+	 */
+	public void setFocus(int tileX) {
+		focusChunk = Math.max(0, Math.min(tileX >> CHUNK_BITS, chunks.length() - 1));
+		getChunk(focusChunk);
+		for (int c = focusChunk - PREFETCH_CHUNKS; c <= focusChunk + PREFETCH_CHUNKS; c++) {
+			if (c < 0 || c >= chunks.length()) {
+				continue;
+			}
+			if (chunks.get(c) != null) {
+				// mark as recently used
+				resident.get(c);
+			} else if (requested.add(c)) {
+				loader.execute(new LoadTask(c));
+			}
+		}
+		takeLoadedChunks();
+		dropChunks();
+	}
+
+	public int getTileIndex(int x, int y) {
+		if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight()) {
+			return EMPTY_TILE;
+		}
+		Chunk chunk = getChunk(x >> CHUNK_BITS);
+		return chunk.tiles[y * CHUNK_WIDTH + (x & (CHUNK_WIDTH - 1))] & 0xff;
+	}
+
+	public int getLoadedTileIndex(int x, int y) {
+		if (x < 0 || x >= getWidth() || y < 0 || y >= getHeight()) {
+			return EMPTY_TILE;
+		}
+		Chunk chunk = chunks.get(x >> CHUNK_BITS);
+		if (chunk == null) {
+			return NOT_LOADED;
+		}
+		return chunk.tiles[y * CHUNK_WIDTH + (x & (CHUNK_WIDTH - 1))] & 0xff;
+	}
+
+	/**
+	 * Loads the chunks of the columns right away and marks them as recently
+	 * used. Must be called on the thread calling setFocus.
+	 */
+	public void loadColumns(int firstX, int lastX) {
+		int first = Math.max(firstX, 0) >> CHUNK_BITS;
+		int last = Math.min(lastX, getWidth() - 1) >> CHUNK_BITS;
+		for (int c = first; c <= last; c++) {
+			getChunk(c);
+			resident.get(c);
+		}
+	}
+
+	public void setTileIndex(int x, int y, int index) {
+		checkPaletteIndex(index);
+		Chunk chunk = getChunk(x >> CHUNK_BITS);
+		chunk.tiles[y * CHUNK_WIDTH + (x & (CHUNK_WIDTH - 1))] = (byte) index;
+		tileChanged();
+	}
+
+	public void close() {
+		loader.shutdownNow();
+		try {
+			synchronized (input) {
+				input.close();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private Chunk getChunk(int c) {
+		Chunk chunk = chunks.get(c);
+		if (chunk == null) {
+			chunk = install(readChunk(c));
+		}
+		return chunk;
+	}
+
+	// makes the chunk visible to all threads, unless another thread was first
+	private Chunk install(Chunk chunk) {
+		if (chunks.compareAndSet(chunk.number, null, chunk)) {
+			loaded.add(chunk);
+			return chunk;
+		}
+		Chunk other = chunks.get(chunk.number);
+		return (other != null) ? other : chunk;
+	}
+
+	private void takeLoadedChunks() {
+		Chunk chunk;
+		while ((chunk = loaded.poll()) != null) {
+			resident.put(chunk.number, chunk);
+			requested.remove(chunk.number);
+			spawnSprites(chunk);
+		}
+	}
+
+	private void spawnSprites(Chunk chunk) {
+		if (spawnListener == null || chunk.spawnCount == 0) {
+			return;
+		}
+		chunk.sprites = new Sprite[chunk.spawnCount];
+		for (int i = 0; i < chunk.spawnCount; i++) {
+			if (removedSpawns.get(chunk.spawnNumbers[i])) {
+				continue;
+			}
+			int spawn = chunk.spawns[i];
+			// packed as x offset, y and character, see readChunk
+			int x = (chunk.number << CHUNK_BITS) + (spawn >>> 24);
+			int y = (spawn >>> 8) & 0xffff;
+			chunk.sprites[i] = spawnListener.spawn(this, (char) (spawn & 0xff), x, y);
+		}
+	}
+
+	// removes the sprites of a dropped chunk from the map, remembering the
+	// ones that are gone for good
+	private void despawnSprites(Chunk chunk) {
+		if (chunk.sprites == null) {
+			return;
+		}
+		for (int i = 0; i < chunk.spawnCount; i++) {
+			Sprite sprite = chunk.sprites[i];
+			if (sprite == null) {
+				continue;
+			}
+			boolean inMap = getEntities().indexOf(sprite) >= 0;
+			if (!inMap || (sprite instanceof Creature && !((Creature) sprite).isAlive())) {
+				removedSpawns.set(chunk.spawnNumbers[i]);
+			}
+			if (inMap) {
+				removeSprite(sprite);
+			}
+		}
+		chunk.sprites = null;
+	}
+
+	private void dropChunks() {
+		Iterator<Integer> i = resident.keySet().iterator();
+		while (resident.size() > maxResidentChunks && i.hasNext()) {
+			int c = i.next();
+			if (Math.abs(c - focusChunk) > PREFETCH_CHUNKS) {
+				Chunk chunk = chunks.get(c);
+				i.remove();
+				chunks.set(c, null);
+				despawnSprites(chunk);
+			}
+		}
+	}
+
+	private Chunk readChunk(int c) {
+		int startX = c << CHUNK_BITS;
+		Chunk chunk = new Chunk(c, getHeight());
+		byte[] line = new byte[CHUNK_WIDTH];
+		// numbered like LevelIndex counts them
+		int charNumber = firstCharOfChunk[c];
+		try {
+			for (int y = 0; y < getHeight(); y++) {
+				int length = Math.min(CHUNK_WIDTH, lineLengths[y] - startX);
+				if (length <= 0) {
+					continue;
+				}
+				synchronized (input) {
+					input.seek(lineOffsets[y] + startX);
+					input.readFully(line, 0, length);
+				}
+				int row = y * CHUNK_WIDTH;
+				for (int x = 0; x < length; x++) {
+					int ch = line[x] & 0x7f;
+					chunk.tiles[row + x] = tileOfChar[ch];
+					if (spawnOfChar[ch]) {
+						chunk.addSpawn((x << 24) | (y << 8) | ch, charNumber);
+					}
+					if (line[x] != ' ') {
+						charNumber++;
+					}
+				}
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		synchronized (this) {
+			loadCount++;
+		}
+		return chunk;
+	}
+
+	private class LoadTask implements Runnable {
+
+		private int number;
+
+		public LoadTask(int number) {
+			this.number = number;
+		}
+
+		public void run() {
+			if (chunks.get(number) == null) {
+				install(readChunk(number));
+			}
+		}
+	}
+
+	private static class Chunk {
+
+		int number;
+		byte[] tiles;
+		int[] spawns;
+		// the character number of each spawn, see LevelIndex
+		int[] spawnNumbers;
+		int spawnCount;
+		// the sprites spawned from the spawns while the chunk is resident,
+		// only used by the thread calling setFocus
+		Sprite[] sprites;
+
+		public Chunk(int number, int height) {
+			this.number = number;
+			tiles = new byte[CHUNK_WIDTH * height];
+		}
+
+		void addSpawn(int spawn, int number) {
+			if (spawns == null) {
+				spawns = new int[4];
+				spawnNumbers = new int[4];
+			} else if (spawnCount == spawns.length) {
+				spawns = Arrays.copyOf(spawns, spawnCount * 2);
+				spawnNumbers = Arrays.copyOf(spawnNumbers, spawnCount * 2);
+			}
+			spawns[spawnCount] = spawn;
+			spawnNumbers[spawnCount++] = number;
+		}
+	}
+
+	/**
+	 * Where each line of a level file starts and how long it is. Lines
+	 * starting with '#' are comments and are left out.
+	 *
+	 * The characters of the level other than spaces are numbered chunk by
+	 * chunk, and row by row within a chunk, so every tile and spawn has a
+	 * number without the chunks being read.
+	 */
+	private static class LevelIndex {
+
+		int width;
+		long[] lineOffsets = new long[16];
+		int[] lineLengths = new int[16];
+		// the characters in each chunk while scanning, then the number of
+		// the first character of each chunk
+		int[] firstCharOfChunk = new int[16];
+
+		static LevelIndex scan(File file) throws IOException {
+			LevelIndex index = new LevelIndex();
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+			try {
+				int count = 0;
+				long offset = 0;
+				long lineStart = 0;
+				int length = 0;
+				boolean comment = false;
+				int b;
+				while ((b = in.read()) != -1) {
+					if (b == '\n') {
+						if (!comment) {
+							count = index.add(count, lineStart, length);
+						}
+						lineStart = offset + 1;
+						length = 0;
+						comment = false;
+					} else if (b != '\r') {
+						if (length == 0 && b == '#') {
+							comment = true;
+						}
+						if (!comment && b != ' ') {
+							index.countChar(length >> CHUNK_BITS);
+						}
+						length++;
+					}
+					offset++;
+				}
+				if (length > 0 && !comment) {
+					count = index.add(count, lineStart, length);
+				}
+				index.lineOffsets = Arrays.copyOf(index.lineOffsets, count);
+				index.lineLengths = Arrays.copyOf(index.lineLengths, count);
+				index.numberChars();
+			} finally {
+				in.close();
+			}
+			return index;
+		}
+
+		private int add(int count, long offset, int length) {
+			if (count == lineOffsets.length) {
+				lineOffsets = Arrays.copyOf(lineOffsets, count * 2);
+				lineLengths = Arrays.copyOf(lineLengths, count * 2);
+			}
+			lineOffsets[count] = offset;
+			lineLengths[count] = length;
+			width = Math.max(width, length);
+			return count + 1;
+		}
+
+		private void countChar(int chunk) {
+			if (chunk >= firstCharOfChunk.length) {
+				firstCharOfChunk = Arrays.copyOf(firstCharOfChunk, Math.max(chunk + 1,
+						firstCharOfChunk.length * 2));
+			}
+			firstCharOfChunk[chunk]++;
+		}
+
+		// turns the counts of the chunks into the numbers of their first
+		// characters
+		private void numberChars() {
+			int chunkCount = (width + CHUNK_WIDTH - 1) >> CHUNK_BITS;
+			int[] counts = Arrays.copyOf(firstCharOfChunk, chunkCount);
+			int number = 0;
+			for (int c = 0; c < chunkCount; c++) {
+				int count = counts[c];
+				counts[c] = number;
+				number += count;
+			}
+			firstCharOfChunk = counts;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package moller.resource;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+import moller.sprites.AtlasRegion;
+
+/**
+ * The TextureAtlas class packs many small images into a few large pages.
+ * Images are added first and packed all at once, tallest first, in rows
+ * from the top left of a page. A new page is started when a page is full.
+ * 
+ * After packing, getRegion gives the rectangle of a page holding an added
+ * image.
+ */
+public class TextureAtlas {
+
+	public static final int DEFAULT_PAGE_SIZE = 1024;
+
+	private GraphicsConfiguration gc;
+	private int pageSize;
+	private ArrayList<Image> images = new ArrayList<Image>();
+	private IdentityHashMap<Image, AtlasRegion> regions = new IdentityHashMap<Image, AtlasRegion>();
+	private ArrayList<BufferedImage> pages = new ArrayList<BufferedImage>();
+	private long usedPixels;
+
+	/**
+	 * Creates an atlas with square pages of the specified size. The pages are
+	 * compatible with the GraphicsConfiguration, which may be null when there
+	 * is no screen.
+	 */
+	public TextureAtlas(GraphicsConfiguration gc, int pageSize) {
+		this.gc = gc;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Adds an image to pack. Images that are added twice, not loaded or
+	 * larger than a page are left out.
+	 */
+	public void add(Image image) {
+		int width = image.getWidth(null);
+		int height = image.getHeight(null);
+		if (width <= 0 || height <= 0 || width > pageSize || height > pageSize
+				|| regions.containsKey(image)) {
+			return;
+		}
+		regions.put(image, null);
+		images.add(image);
+	}
+
+	/**
+	 * Packs the added images into pages.
+	 */
+	public void pack() {
+		Collections.sort(images, new Comparator<Image>() {
+			public int compare(Image image1, Image image2) {
+				return image2.getHeight(null) - image1.getHeight(null);
+			}
+		});
+
+		// find the places first, so the pages can be cut to the space used
+		int[] pageOfImage = new int[images.size()];
+		int[] xOfImage = new int[images.size()];
+		int[] yOfImage = new int[images.size()];
+		ArrayList<Integer> pageWidths = new ArrayList<Integer>();
+		ArrayList<Integer> pageHeights = new ArrayList<Integer>();
+		int page = 0, x = 0, y = 0, rowHeight = 0, pageWidth = 0;
+		for (int i = 0; i < images.size(); i++) {
+			Image image = images.get(i);
+			int width = image.getWidth(null);
+			int height = image.getHeight(null);
+			if (x + width > pageSize) {
+				// next row
+				x = 0;
+				y += rowHeight;
+				rowHeight = 0;
+			}
+			if (y + height > pageSize) {
+				pageWidths.add(pageWidth);
+				pageHeights.add(y);
+				page++;
+				x = 0;
+				y = 0;
+				rowHeight = 0;
+				pageWidth = 0;
+			}
+			pageOfImage[i] = page;
+			xOfImage[i] = x;
+			yOfImage[i] = y;
+			x += width;
+			pageWidth = Math.max(pageWidth, x);
+			rowHeight = Math.max(rowHeight, height);
+			usedPixels += (long) width * height;
+		}
+		pageWidths.add(pageWidth);
+		pageHeights.add(y + rowHeight);
+
+		Graphics2D[] graphics = new Graphics2D[pageHeights.size()];
+		for (int i = 0; i < graphics.length; i++) {
+			BufferedImage pageImage = createPage(Math.max(pageWidths.get(i), 1),
+					Math.max(pageHeights.get(i), 1));
+			pages.add(pageImage);
+			graphics[i] = pageImage.createGraphics();
+		}
+		for (int i = 0; i < images.size(); i++) {
+			Image image = images.get(i);
+			graphics[pageOfImage[i]].drawImage(image, xOfImage[i], yOfImage[i], null);
+			regions.put(image, new AtlasRegion(pages.get(pageOfImage[i]), xOfImage[i],
+					yOfImage[i], image.getWidth(null), image.getHeight(null)));
+		}
+		for (int i = 0; i < graphics.length; i++) {
+			graphics[i].dispose();
+		}
+		images.clear();
+	}
+
+	/**
+	 * Gets the region holding a packed image, or null if the image is not in
+	 * the atlas.
+	 */
+	public AtlasRegion getRegion(Image image) {
+		return regions.get(image);
+	}
+
+	public int getRegionCount() {
+		return regions.size();
+	}
+
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	public BufferedImage getPage(int i) {
+		return pages.get(i);
+	}
+
+	/**
+	 * Gets how much of the pages is covered by images, from 0 to 1.
+	 */
+	public float getFillRatio() {
+		long pagePixels = 0;
+		for (int i = 0; i < pages.size(); i++) {
+			pagePixels += (long) pages.get(i).getWidth() * pages.get(i).getHeight();
+		}
+		return (pagePixels == 0) ? 0 : (float) usedPixels / pagePixels;
+	}
+
+	private BufferedImage createPage(int width, int height) {
+		if (gc != null) {
+			return gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+		}
+		// no screen to be compatible with
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+}
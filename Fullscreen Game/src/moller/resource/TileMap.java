@@ -1,72 +1,382 @@
-package moller.resource;
-import java.awt.Image;
-import java.util.ArrayList;
-import java.util.Iterator;
-
-import moller.sprites.Sprite;
-
-/**
-    The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image.
-*/
-public class TileMap {
-
-    private Image[][] tiles;
-    private ArrayList sprites;
-    private Sprite player;
-
-    public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new ArrayList();
-    }
-    
-    public int getWidth() {
-        return tiles.length;
-    }
-
-
-    public int getHeight() {
-        return tiles[0].length;
-    }
-
-    /**
-        Gets the tile at the specified location. Returns null if
-        no tile is at the location or if the location is out of
-        bounds.
-    */
-    public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight()) {
-            return null;
-        }
-        else {
-            return tiles[x][y];
-        }
-    }
-
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
-    }
-
-    public Sprite getPlayer() {
-        return player;
-    }
-
-    public void setPlayer(Sprite player) {
-        this.player = player;
-    }
-
-    public void addSprite(Sprite sprite) {
-        sprites.add(sprite);
-    }
-
-    public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
-    }
-
-    public Iterator getSprites() {
-        return sprites.iterator();
-    }
-
-}
+package moller.resource;
+import java.awt.Image;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import moller.sprites.EntityStore;
+import moller.sprites.Sprite;
+
+/**
+    The TileMap class contains the data for a tile-based
+    map, including Sprites. Each tile is stored as a one byte
+    index into a palette holding every tile Image once, in one
+    row-major array. Index 0 is the empty tile. The Sprites
+    are kept in an EntityStore.
+
+    Which tiles are solid is also kept in a bitset, one long
+    for every 64 rows of a column, so collision checks can
+    test a whole run of tiles in a column with a mask.
+*/
+public class TileMap {
+
+    public static final int EMPTY_TILE = 0;
+    // returned by getLoadedTileIndex for tiles not in memory
+    public static final int NOT_LOADED = -1;
+
+    // index 0 is the empty tile, so there is room for 255 tile images
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private int width;
+    private int height;
+    private byte[] tiles;
+    // bit y & 63 of word x * wordsPerColumn + (y >> 6) is set if
+    // the tile at x, y is solid
+    private long[] solid;
+    private int wordsPerColumn;
+    private Image[] palette;
+    private int paletteSize;
+    private int tileVersion;
+    private EntityStore sprites;
+    private Sprite player;
+    private SpriteListener spriteListener;
+
+    /**
+        Gets told about every Sprite added to or removed from the
+        map, for example by a StreamingTileMap spawning the Sprites
+        of a chunk and removing them when the chunk is dropped.
+    */
+    public interface SpriteListener {
+        void spriteAdded(TileMap map, Sprite sprite);
+        void spriteRemoved(TileMap map, Sprite sprite);
+    }
+
+    public TileMap(int width, int height) {
+        this(width, height, true);
+    }
+
+    /**
+        Creates a TileMap that only allocates its tile array if
+        allocateTiles is true. Subclasses not allocating it must
+        override getTileIndex and setTileIndex.
+    */
+    protected TileMap(int width, int height, boolean allocateTiles) {
+        this.width = width;
+        this.height = height;
+        if (allocateTiles) {
+            tiles = new byte[width * height];
+            wordsPerColumn = (height + 63) >> 6;
+            solid = new long[width * wordsPerColumn];
+        }
+        palette = new Image[8];
+        paletteSize = 1;
+        sprites = new EntityStore();
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+        Gets the palette index of the tile at the specified
+        location. Returns EMPTY_TILE if no tile is at the location
+        or if the location is out of bounds.
+    */
+    public int getTileIndex(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return EMPTY_TILE;
+        }
+        return tiles[y * width + x] & 0xff;
+    }
+
+    /**
+        Gets the palette index of the tile like getTileIndex, but
+        returns NOT_LOADED instead of loading the tile first when
+        it is not in memory, so a thread drawing the map never
+        waits for a file. Maps keeping all tiles in memory return
+        the same as getTileIndex.
+    */
+    public int getLoadedTileIndex(int x, int y) {
+        return getTileIndex(x, y);
+    }
+
+    /**
+        Makes sure the tiles of the columns from firstX to lastX
+        are in memory, for example before a snapshot of them is
+        drawn on another thread. Called by the thread updating
+        the map. Maps keeping all tiles in memory ignore it.
+    */
+    public void loadColumns(int firstX, int lastX) {
+        // do nothing
+    }
+
+    /**
+        Checks if a Sprite can not pass through the tile at the
+        specified location. Locations out of bounds are not solid.
+    */
+    public boolean isSolid(int x, int y) {
+        if (solid == null) {
+            return getTileIndex(x, y) != EMPTY_TILE;
+        }
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return false;
+        }
+        return (solid[x * wordsPerColumn + (y >> 6)] & (1L << y)) != 0;
+    }
+
+    /**
+        Finds the first solid tile from row fromY down to row
+        toY of column x. Returns its row, or -1 if there is no
+        solid tile in the rows or the column is out of bounds.
+    */
+    public int findSolidInColumn(int x, int fromY, int toY) {
+        if (x < 0 || x >= width) {
+            return -1;
+        }
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, height - 1);
+        if (solid == null) {
+            return findTileInColumn(x, fromY, toY);
+        }
+        int column = x * wordsPerColumn;
+        for (int word = fromY >> 6; word <= toY >> 6; word++) {
+            long bits = solid[column + word] & rowMask(word, fromY, toY);
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    // findSolidInColumn for maps without a tile array
+    private int findTileInColumn(int x, int fromY, int toY) {
+        for (int y = fromY; y <= toY; y++) {
+            if (getTileIndex(x, y) != EMPTY_TILE) {
+                return y;
+            }
+        }
+        return -1;
+    }
+
+    /**
+        Finds the first solid tile at or below the location, for
+        example the ground under a Sprite. Returns its row, or -1
+        if there is none.
+    */
+    public int findSolidBelow(int x, int y) {
+        return findSolidInColumn(x, y, height - 1);
+    }
+
+    /**
+        Counts the solid tiles from fromX, fromY to toX, toY,
+        both included. Tiles out of bounds are not counted.
+    */
+    public int countSolid(int fromX, int fromY, int toX, int toY) {
+        fromX = Math.max(fromX, 0);
+        toX = Math.min(toX, width - 1);
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, height - 1);
+        int count = 0;
+        for (int x = fromX; x <= toX; x++) {
+            if (solid == null) {
+                for (int y = fromY; y <= toY; y++) {
+                    if (getTileIndex(x, y) != EMPTY_TILE) {
+                        count++;
+                    }
+                }
+                continue;
+            }
+            int column = x * wordsPerColumn;
+            for (int word = fromY >> 6; word <= toY >> 6; word++) {
+                count += Long.bitCount(solid[column + word]
+                    & rowMask(word, fromY, toY));
+            }
+        }
+        return count;
+    }
+
+    // the bits of the word for the rows from fromY to toY
+    private static long rowMask(int word, int fromY, int toY) {
+        long mask = (word == fromY >> 6) ? -1L << fromY : -1L;
+        return (word == toY >> 6) ? mask & (-1L >>> ~toY) : mask;
+    }
+
+    /**
+        Gets the Image of a palette index, or null for EMPTY_TILE.
+    */
+    public Image getTileImage(int index) {
+        return palette[index];
+    }
+
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    /**
+        Gets the tile at the specified location. Returns null if
+        no tile is at the location or if the location is out of
+        bounds.
+    */
+    public Image getTile(int x, int y) {
+        return palette[getTileIndex(x, y)];
+    }
+
+    /**
+        Sets the tile at the specified location. The Image is
+        added to the palette the first time it is used.
+    */
+    public void setTile(int x, int y, Image tile) {
+        setTileIndex(x, y, getPaletteIndex(tile));
+    }
+
+    public void setTileIndex(int x, int y, int index) {
+        checkPaletteIndex(index);
+        tiles[y * width + x] = (byte) index;
+        long bit = 1L << y;
+        if (index != EMPTY_TILE) {
+            solid[x * wordsPerColumn + (y >> 6)] |= bit;
+        } else {
+            solid[x * wordsPerColumn + (y >> 6)] &= ~bit;
+        }
+        tileChanged();
+    }
+
+    /**
+        Gets a number that changes every time a tile is set, so
+        anything drawn from the tiles knows when it is out of date.
+    */
+    public int getTileVersion() {
+        return tileVersion;
+    }
+
+    // must be called by subclasses that set tiles themselves
+    protected void tileChanged() {
+        tileVersion++;
+    }
+
+    // the row-major tile array, for loaders filling it in bulk,
+    // who must call tilesFilled afterwards
+    byte[] getTileArray() {
+        return tiles;
+    }
+
+    // sets the solid bits of all tiles from the tile array
+    void tilesFilled() {
+        Arrays.fill(solid, 0);
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            long bit = 1L << y;
+            for (int x = 0; x < width; x++) {
+                if (tiles[row + x] != EMPTY_TILE) {
+                    solid[x * wordsPerColumn + (y >> 6)] |= bit;
+                }
+            }
+        }
+        tileChanged();
+    }
+
+    protected void checkPaletteIndex(int index) {
+        if (index < 0 || index >= paletteSize) {
+            throw new IllegalArgumentException("no tile " + index + " in the palette");
+        }
+    }
+
+    /**
+        Gets the palette index of the Image, adding it to the
+        palette if it is not there yet.
+    */
+    public int getPaletteIndex(Image tile) {
+        if (tile == null) {
+            return EMPTY_TILE;
+        }
+        for (int i = 1; i < paletteSize; i++) {
+            if (palette[i] == tile) {
+                return i;
+            }
+        }
+        if (paletteSize == MAX_PALETTE_SIZE) {
+            throw new IllegalStateException("more than "
+                + (MAX_PALETTE_SIZE - 1) + " tile images in one map");
+        }
+        if (paletteSize == palette.length) {
+            palette = Arrays.copyOf(palette, palette.length * 2);
+        }
+        palette[paletteSize] = tile;
+        return paletteSize++;
+    }
+
+    /**
+        Tells the map which tile column the camera is centered on.
+        Called once per update. Maps that keep all tiles in memory
+        ignore it.
+    */
+    public void setFocus(int tileX) {
+        // do nothing
+    }
+
+    /**
+        Releases files and threads used by the map. The map can
+        not be used afterwards.
+    */
+    public void close() {
+        // do nothing
+    }
+
+    public Sprite getPlayer() {
+        return player;
+    }
+
+    public void setPlayer(Sprite player) {
+        this.player = player;
+    }
+
+    /**
+        Sets the listener told about Sprites added or removed from
+        now on, or null for none. A map has only one listener, so
+        the old listener must be removed by setting null before
+        another one is set, for example when a second UpdateManager
+        is created for a map that already has one.
+    */
+    public void setSpriteListener(SpriteListener spriteListener) {
+        if (spriteListener != null && this.spriteListener != null
+            && spriteListener != this.spriteListener) {
+            throw new IllegalStateException(
+                "the map already has a sprite listener");
+        }
+        this.spriteListener = spriteListener;
+    }
+
+    /**
+        Adds a Sprite and returns its handle in the EntityStore.
+    */
+    public int addSprite(Sprite sprite) {
+        int handle = sprites.add(sprite);
+        if (spriteListener != null) {
+            spriteListener.spriteAdded(this, sprite);
+        }
+        return handle;
+    }
+
+    public void removeSprite(Sprite sprite) {
+        if (sprites.remove(sprite) && spriteListener != null) {
+            spriteListener.spriteRemoved(this, sprite);
+        }
+    }
+
+    public Iterator<Sprite> getSprites() {
+        return sprites.iterator();
+    }
+
+    /**
+        Gets the EntityStore holding the Sprites, for loops that
+        go over all Sprites by index.
+    */
+    public EntityStore getEntities() {
+        return sprites;
+    }
+
+}
@@ -1,149 +1,599 @@
-package moller.resource;
-
-import java.awt.*;
-import java.util.Iterator;
-
-import moller.sprites.Creature;
-import moller.sprites.Sprite;
-
-/**
- * The TileMapRenderer class draws a TileMap on the screen. It draws all tiles,
- * sprites, and an optional background image centered around the position of the
- * player.
- * 
- * If the width of background image is smaller the width of the tile map, the
- * background image will appear to move slowly, creating a parallax background
- * effect.
- * 
- * Three static methods are provided to convert pixels to tile positions,
- * and vice-versa.
- */
-public class TileMapRenderer {
-
-	public static final int TILE_SIZE = 64;
-	public static final int TILE_SIZE_BITS = 6;
-
-	private Image background;
-	private int screenWidth, screenHeight, mapWidth;
-	private int offsetX, offsetY;
-	private TileMap tileMap;
-
-	public static int pixelsToTiles(float pixels) {
-		return pixelsToTiles(Math.round(pixels));
-	}
-
-	public static int pixelsToTiles(int pixels) {
-		return (int) Math.floor(pixels / TILE_SIZE);
-	}
-
-	public static int tilesToPixels(int numTiles) {
-		return numTiles * TILE_SIZE;
-	}
-
-	public void setBackground(Image background) {
-		this.background = background;
-	}
-
-	public int getScreenWidth() {
-		return screenWidth;
-	}
-
-	public void setScreenWidth(int screenWidth) {
-		this.screenWidth = screenWidth;
-	}
-
-	public int getScreenHeight() {
-		return screenHeight;
-	}
-
-	public void setScreenHeight(int screenHeight) {
-		this.screenHeight = screenHeight;
-	}
-
-	public TileMap getTileMap() {
-		return tileMap;
-	}
-
-	public void setTileMap(TileMap tileMap) {
-		this.tileMap = tileMap;
-		mapWidth = tilesToPixels(tileMap.getWidth());
-	}
-	
-	public void draw(Graphics2D g) {
-		Sprite player = tileMap.getPlayer();
-		setupDrawingVariables(player);
-		drawBackground(g);
-		drawVisibleTiles(g);
-		drawPlayer(g, player);
-		drawSprites(g);
-	}
-
-	public void setupDrawingVariables(Sprite player) {
-		calculateOffsetX(player);
-		calculateOffsetY();
-	}
-	
-	private void calculateOffsetX(Sprite player) {
-		offsetX = screenWidth / 2 - Math.round(player.getX()) - TILE_SIZE;
-		offsetX = Math.min(offsetX, 0);
-		offsetX = Math.max(offsetX, screenWidth - mapWidth);
-	}
-
-	private void calculateOffsetY() {
-		offsetY = screenHeight - tilesToPixels(tileMap.getHeight());
-	}
-	
-	// Draws a parallax background image and fills it with black if needed.
-	private void drawBackground(Graphics2D g) {
-		if (background == null || screenHeight > background.getHeight(null)) {
-			g.setColor(Color.black);
-			g.fillRect(0, 0, screenWidth, screenHeight);
-		}
-		if (background != null) {
-			int x = offsetX * (screenWidth - background.getWidth(null))
-					/ (screenWidth - mapWidth);
-			int y = screenHeight - background.getHeight(null);
-
-			g.drawImage(background, x, y, null);
-		}
-	}
-	
-	private void drawVisibleTiles(Graphics2D g) {
-		int firstTileX = pixelsToTiles(-offsetX);
-		int lastTileX = firstTileX + pixelsToTiles(screenWidth) + 1;
-		for (int y = 0; y < tileMap.getHeight(); y++) {
-			for (int x = firstTileX; x <= lastTileX; x++) {
-				Image image = tileMap.getTile(x, y);
-				if (image != null) {
-					g.drawImage(image, tilesToPixels(x) + offsetX,
-							tilesToPixels(y) + offsetY, null);
-				}
-			}
-		}
-	}
-	
-	private void drawPlayer(Graphics2D g, Sprite player) {
-		g.drawImage(player.getImage(), Math.round(player.getX()) + offsetX,
-				Math.round(player.getY()) + offsetY, null);
-	}
-
-	private void drawSprites(Graphics2D g) {
-		Iterator i = tileMap.getSprites();
-		while (i.hasNext()) {
-			Sprite sprite = (Sprite) i.next();
-			int x = Math.round(sprite.getX()) + offsetX;
-			int y = Math.round(sprite.getY()) + offsetY;
-			g.drawImage(sprite.getImage(), x, y, null);
-
-			// wake up the creature when it's on screen
-			if (sprite instanceof Creature && x >= 0 && x < screenWidth) {
-				((Creature) sprite).wakeUp();
-			}
-		}
-	}
-	
-	private void drawBullets(Graphics2D g) {
-		
-	}
-
-}
+package moller.resource;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import moller.sprites.Animation;
+import moller.sprites.EntityStore;
+import moller.sprites.Sprite;
+
+/**
+ * The TileMapRenderer class draws a TileMap on the screen. It draws all tiles,
+ * sprites, and an optional background image centered around the position of the
+ * player.
+ * 
+ * If the width of background image is smaller the width of the tile map, the
+ * background image will appear to move slowly, creating a parallax background
+ * effect.
+ * 
+ * Three static methods are provided to convert pixels to tile positions,
+ * and vice-versa.
+ * 
+ * The tiles are drawn once into images of CHUNK_TILES by CHUNK_TILES tiles
+ * when they come into view, so a frame only draws a few chunk images instead
+ * of every visible tile. Chunks far behind the camera are thrown away, and
+ * all chunks are drawn again when a tile of the map changes.
+ * 
+ * A snapshot is drawn from the map size it was captured with and only from
+ * the tiles already in memory, since the map is updated on another thread
+ * meanwhile. Chunks with tiles not in memory yet are left out of the frame
+ * and drawn once the tiles are there.
+ * 
+ * In incremental mode the renderer expects each frame to start out holding
+ * the frame before it. It only repaints the regions of the screen sprites
+ * and anything marked with markDirty() covered in the last frame or cover
+ * in this one, and only repaints all of the screen when the map has
+ * scrolled, a tile has changed or invalidate() was called.
+ */
+public class TileMapRenderer {
+
+	public static final int TILE_SIZE = 64;
+	public static final int TILE_SIZE_BITS = 6;
+
+	public static final int CHUNK_TILES = 16;
+	private static final int CHUNK_BITS = 4;
+	private static final int CHUNK_SIZE = CHUNK_TILES * TILE_SIZE;
+	// chunk columns kept on each side of the screen
+	private static final int CHUNK_MARGIN = 1;
+
+	private Image background;
+	private int screenWidth, screenHeight, mapWidth;
+	private int offsetX, offsetY;
+	private float interpolation = 1;
+	private TileMap tileMap;
+	// true while drawing a snapshot, see getTileIndex
+	private boolean drawingSnapshot;
+
+	private boolean chunkCacheEnabled = true;
+	// chunk images by chunkX * chunkRows + chunkY
+	private HashMap<Integer, Chunk> chunks = new HashMap<Integer, Chunk>();
+	private int chunkRows;
+	private int chunkTileVersion;
+	private GraphicsConfiguration chunkConfiguration;
+	private long chunksBuilt;
+
+	// repaints more than this part of the screen are made full redraws
+	private static final float MAX_DIRTY_FRACTION = 0.5f;
+
+	private boolean incremental;
+	private boolean redrawAll = true;
+	private int lastOffsetX, lastOffsetY, lastTileVersion;
+	// what is drawn on top of the map this frame and what was last frame
+	private DirtyRegions drawn = new DirtyRegions();
+	private DirtyRegions lastDrawn = new DirtyRegions();
+	private DirtyRegions repaint = new DirtyRegions();
+	private Rectangle region = new Rectangle();
+	private long repaintedPixels;
+	// the sprites on the screen this frame in drawing order, when incremental
+	private int spriteCount;
+	private Animation[] spriteAnimations = new Animation[64];
+	private int[] spriteScenes = new int[64];
+	private int[] spriteX = new int[64];
+	private int[] spriteY = new int[64];
+	private int[] spriteWidth = new int[64];
+	private int[] spriteHeight = new int[64];
+
+	public static int pixelsToTiles(float pixels) {
+		return pixelsToTiles(Math.round(pixels));
+	}
+
+	public static int pixelsToTiles(int pixels) {
+		return (int) Math.floor(pixels / TILE_SIZE);
+	}
+
+	public static int tilesToPixels(int numTiles) {
+		return numTiles * TILE_SIZE;
+	}
+
+	public void setBackground(Image background) {
+		this.background = background;
+	}
+
+	public int getScreenWidth() {
+		return screenWidth;
+	}
+
+	public void setScreenWidth(int screenWidth) {
+		this.screenWidth = screenWidth;
+		setDirtyScreenSize();
+	}
+
+	public int getScreenHeight() {
+		return screenHeight;
+	}
+
+	public void setScreenHeight(int screenHeight) {
+		this.screenHeight = screenHeight;
+		setDirtyScreenSize();
+	}
+
+	public int getOffsetX() {
+		return offsetX;
+	}
+
+	public int getOffsetY() {
+		return offsetY;
+	}
+
+	/**
+	 * Sets how far between the previous and the current tick sprites are
+	 * drawn, see Core.getInterpolation().
+	 */
+	public void setInterpolation(float interpolation) {
+		this.interpolation = interpolation;
+	}
+
+	public TileMap getTileMap() {
+		return tileMap;
+	}
+
+	public void setTileMap(TileMap tileMap) {
+		this.tileMap = tileMap;
+		mapWidth = tilesToPixels(tileMap.getWidth());
+		chunkRows = (tileMap.getHeight() + CHUNK_TILES - 1) >> CHUNK_BITS;
+		flushChunks();
+	}
+
+	public boolean isChunkCacheEnabled() {
+		return chunkCacheEnabled;
+	}
+
+	/**
+	 * Chooses whether the tiles are drawn through the chunk images or one by
+	 * one every frame.
+	 */
+	public void setChunkCacheEnabled(boolean chunkCacheEnabled) {
+		this.chunkCacheEnabled = chunkCacheEnabled;
+		flushChunks();
+	}
+
+	public int getCachedChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * Gets how many chunk images have been drawn so far.
+	 */
+	public long getChunksBuilt() {
+		return chunksBuilt;
+	}
+
+	/**
+	 * Throws away all chunk images, so they are drawn again from the tiles.
+	 */
+	public void flushChunks() {
+		Iterator<Chunk> i = chunks.values().iterator();
+		while (i.hasNext()) {
+			i.next().flush();
+		}
+		chunks.clear();
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Chooses whether only the parts of the screen that changed are drawn
+	 * again, see the class comment. Each frame must start out holding the
+	 * frame drawn before it, or invalidate() must be called.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		drawn.clear();
+		lastDrawn.clear();
+		invalidate();
+	}
+
+	/**
+	 * Makes an incremental renderer draw all of the screen in the next
+	 * frame, for example because the frame does not hold the last one.
+	 */
+	public void invalidate() {
+		redrawAll = true;
+	}
+
+	/**
+	 * Tells an incremental renderer something is drawn on top of the map at
+	 * the rectangle of the screen this frame, such as text, so the map is
+	 * repainted under it in this and the next frame. Must be called before
+	 * draw().
+	 */
+	public void markDirty(int x, int y, int width, int height) {
+		if (incremental) {
+			drawn.add(x, y, width, height);
+		}
+	}
+
+	/**
+	 * Gets how many pixels of the screen the last frame repainted.
+	 */
+	public long getRepaintedPixels() {
+		return repaintedPixels;
+	}
+	
+	public void draw(Graphics2D g) {
+		Sprite player = tileMap.getPlayer();
+		setupDrawingVariables(player);
+		if (incremental) {
+			spriteCount = 0;
+			addSprite(player, Math.round(player.getInterpolatedX(interpolation))
+					+ offsetX, Math.round(player.getInterpolatedY(interpolation)) + offsetY);
+			EntityStore entities = tileMap.getEntities();
+			for (int i = 0; i < entities.size(); i++) {
+				int x = Math.round(entities.getInterpolatedX(i, interpolation)) + offsetX;
+				if (x >= screenWidth || x + entities.getWidth(i) <= 0) {
+					continue;
+				}
+				addSprite(entities.getSprite(i), x, Math.round(entities
+						.getInterpolatedY(i, interpolation)) + offsetY);
+			}
+			drawIncremental(g);
+			return;
+		}
+		drawMap(g);
+		drawPlayer(g, player);
+		drawSprites(g);
+	}
+
+	/**
+	 * Draws a snapshot of a TileMap instead of the TileMap itself, with the
+	 * sprites the interpolation between their previous and current
+	 * positions. Switches to the TileMap of the snapshot if needed.
+	 */
+	public void draw(Graphics2D g, WorldSnapshot snapshot, float interpolation) {
+		if (snapshot.tileMap != tileMap) {
+			setTileMap(snapshot.tileMap);
+		}
+		// the player comes first in a snapshot
+		float playerX = snapshot.previousX[0] + (snapshot.x[0] - snapshot.previousX[0])
+				* interpolation;
+		offsetX = getOffsetX(playerX, screenWidth, snapshot.mapWidth);
+		offsetY = screenHeight - snapshot.mapHeight;
+		drawingSnapshot = true;
+		if (!incremental) {
+			drawMap(g);
+		}
+		spriteCount = 0;
+		for (int i = 0; i < snapshot.count; i++) {
+			float x = snapshot.previousX[i] + (snapshot.x[i] - snapshot.previousX[i])
+					* interpolation;
+			float y = snapshot.previousY[i] + (snapshot.y[i] - snapshot.previousY[i])
+					* interpolation;
+			if (incremental) {
+				addScene(snapshot.animations[i], snapshot.scenes[i], Math.round(x)
+						+ offsetX, Math.round(y) + offsetY);
+			} else {
+				snapshot.animations[i].drawScene(g, snapshot.scenes[i], Math.round(x)
+						+ offsetX, Math.round(y) + offsetY);
+			}
+		}
+		if (incremental) {
+			drawIncremental(g);
+		}
+		drawingSnapshot = false;
+	}
+
+	public void setupDrawingVariables(Sprite player) {
+		calculateOffsetX(player);
+		calculateOffsetY();
+	}
+
+	/**
+	 * Gets the x offset of a map the width in pixels drawn on a screen the
+	 * width with the player at playerX.
+	 */
+	public static int getOffsetX(float playerX, int screenWidth, int mapWidth) {
+		int offsetX = screenWidth / 2 - Math.round(playerX) - TILE_SIZE;
+		offsetX = Math.min(offsetX, 0);
+		return Math.max(offsetX, screenWidth - mapWidth);
+	}
+	
+	private void calculateOffsetX(Sprite player) {
+		offsetX = getOffsetX(player.getInterpolatedX(interpolation), screenWidth,
+				mapWidth);
+	}
+
+	private void calculateOffsetY() {
+		offsetY = screenHeight - tilesToPixels(tileMap.getHeight());
+	}
+	
+	private void setDirtyScreenSize() {
+		drawn.setScreenSize(screenWidth, screenHeight);
+		lastDrawn.setScreenSize(screenWidth, screenHeight);
+		repaint.setScreenSize(screenWidth, screenHeight);
+	}
+
+	private void addSprite(Sprite sprite, int x, int y) {
+		addScene(sprite.getAnimation(), sprite.getCurrentScene(), x, y);
+	}
+
+	// adds a scene to the sprites drawn this frame if it is on the screen
+	private void addScene(Animation animation, int scene, int x, int y) {
+		if (scene >= animation.getSceneCount()) {
+			return;
+		}
+		Image image = animation.getSceneImage(scene);
+		int width = image.getWidth(null);
+		int height = image.getHeight(null);
+		if (x >= screenWidth || y >= screenHeight || x + width <= 0 || y + height <= 0) {
+			return;
+		}
+		if (spriteCount == spriteAnimations.length) {
+			int capacity = spriteCount * 2;
+			spriteAnimations = Arrays.copyOf(spriteAnimations, capacity);
+			spriteScenes = Arrays.copyOf(spriteScenes, capacity);
+			spriteX = Arrays.copyOf(spriteX, capacity);
+			spriteY = Arrays.copyOf(spriteY, capacity);
+			spriteWidth = Arrays.copyOf(spriteWidth, capacity);
+			spriteHeight = Arrays.copyOf(spriteHeight, capacity);
+		}
+		spriteAnimations[spriteCount] = animation;
+		spriteScenes[spriteCount] = scene;
+		spriteX[spriteCount] = x;
+		spriteY[spriteCount] = y;
+		spriteWidth[spriteCount] = width;
+		spriteHeight[spriteCount] = height;
+		spriteCount++;
+		drawn.add(x, y, width, height);
+	}
+
+	// draws the map and the added sprites where they or what was marked
+	// changed since the last frame, or everything if the map moved
+	private void drawIncremental(Graphics2D g) {
+		boolean all = redrawAll || offsetX != lastOffsetX || offsetY != lastOffsetY
+				|| tileMap.getTileVersion() != lastTileVersion;
+		if (!all) {
+			repaint.clear();
+			repaint.add(lastDrawn);
+			repaint.add(drawn);
+			all = repaint.getArea() > screenWidth * screenHeight * MAX_DIRTY_FRACTION;
+		}
+		if (all) {
+			drawMap(g);
+			for (int i = 0; i < spriteCount; i++) {
+				spriteAnimations[i].drawScene(g, spriteScenes[i], spriteX[i], spriteY[i]);
+			}
+			repaintedPixels = (long) screenWidth * screenHeight;
+		} else {
+			Shape clip = g.getClip();
+			for (int r = 0; r < repaint.getCount(); r++) {
+				g.setClip(repaint.getRegion(r, region));
+				drawMap(g);
+				for (int i = 0; i < spriteCount; i++) {
+					if (repaint.intersects(r, spriteX[i], spriteY[i], spriteWidth[i],
+							spriteHeight[i])) {
+						spriteAnimations[i].drawScene(g, spriteScenes[i], spriteX[i],
+								spriteY[i]);
+					}
+				}
+			}
+			g.setClip(clip);
+			repaintedPixels = repaint.getArea();
+		}
+
+		// what was drawn this frame is repainted next frame
+		DirtyRegions swap = lastDrawn;
+		lastDrawn = drawn;
+		drawn = swap;
+		drawn.clear();
+		// let go of the animations of removed sprites
+		Arrays.fill(spriteAnimations, 0, spriteCount, null);
+		lastOffsetX = offsetX;
+		lastOffsetY = offsetY;
+		lastTileVersion = tileMap.getTileVersion();
+		redrawAll = false;
+	}
+
+	private void drawMap(Graphics2D g) {
+		drawBackground(g);
+		if (chunkCacheEnabled) {
+			drawVisibleChunks(g);
+		} else {
+			drawVisibleTiles(g);
+		}
+	}
+
+	// Draws a parallax background image and fills it with black if needed.
+	private void drawBackground(Graphics2D g) {
+		if (background == null || screenHeight > background.getHeight(null)) {
+			g.setColor(Color.black);
+			g.fillRect(0, 0, screenWidth, screenHeight);
+		}
+		if (background != null) {
+			int x = offsetX * (screenWidth - background.getWidth(null))
+					/ (screenWidth - mapWidth);
+			int y = screenHeight - background.getHeight(null);
+
+			g.drawImage(background, x, y, null);
+		}
+	}
+	
+	private void drawVisibleTiles(Graphics2D g) {
+		int firstTileX = Math.max(pixelsToTiles(-offsetX), 0);
+		int lastTileX = Math.min(firstTileX + pixelsToTiles(screenWidth) + 1,
+				tileMap.getWidth() - 1);
+		for (int y = 0; y < tileMap.getHeight(); y++) {
+			for (int x = firstTileX; x <= lastTileX; x++) {
+				int index = getTileIndex(x, y);
+				if (index > TileMap.EMPTY_TILE) {
+					g.drawImage(tileMap.getTileImage(index), tilesToPixels(x)
+							+ offsetX, tilesToPixels(y) + offsetY, null);
+				}
+			}
+		}
+	}
+	
+	private void drawVisibleChunks(Graphics2D g) {
+		GraphicsConfiguration gc = g.getDeviceConfiguration();
+		if (tileMap.getTileVersion() != chunkTileVersion || gc != chunkConfiguration) {
+			flushChunks();
+			chunkTileVersion = tileMap.getTileVersion();
+			chunkConfiguration = gc;
+		}
+		int firstChunkX = Math.max(-offsetX, 0) / CHUNK_SIZE;
+		int lastChunkX = Math.min((screenWidth - offsetX - 1) / CHUNK_SIZE,
+				(tileMap.getWidth() - 1) >> CHUNK_BITS);
+		boolean built = false;
+		for (int chunkX = firstChunkX; chunkX <= lastChunkX; chunkX++) {
+			for (int chunkY = 0; chunkY < chunkRows; chunkY++) {
+				int y = chunkY * CHUNK_SIZE + offsetY;
+				if (y >= screenHeight || y + CHUNK_SIZE <= 0) {
+					continue;
+				}
+				Integer key = chunkX * chunkRows + chunkY;
+				Chunk chunk = chunks.get(key);
+				if (chunk == null) {
+					chunk = buildChunk(gc, chunkX, chunkY);
+					if (chunk == null) {
+						continue;
+					}
+					chunks.put(key, chunk);
+					built = true;
+				}
+				if (chunk.image != null) {
+					g.drawImage(chunk.image, chunkX * CHUNK_SIZE + chunk.x + offsetX,
+							y + chunk.y, null);
+				}
+			}
+		}
+		if (built) {
+			dropChunks(firstChunkX - CHUNK_MARGIN, lastChunkX + CHUNK_MARGIN);
+		}
+	}
+
+	// draws the tiles of a chunk into an image just big enough to hold them,
+	// or returns null if some of the tiles are not in memory
+	private Chunk buildChunk(GraphicsConfiguration gc, int chunkX, int chunkY) {
+		int firstTileX = chunkX << CHUNK_BITS;
+		int firstTileY = chunkY << CHUNK_BITS;
+		int width = Math.min(CHUNK_TILES, tileMap.getWidth() - firstTileX);
+		int height = Math.min(CHUNK_TILES, tileMap.getHeight() - firstTileY);
+		int minX = width, minY = height, maxX = -1, maxY = -1;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = getTileIndex(firstTileX + x, firstTileY + y);
+				if (index == TileMap.NOT_LOADED) {
+					return null;
+				}
+				if (index != TileMap.EMPTY_TILE) {
+					minX = Math.min(minX, x);
+					minY = Math.min(minY, y);
+					maxX = Math.max(maxX, x);
+					maxY = Math.max(maxY, y);
+				}
+			}
+		}
+		chunksBuilt++;
+		Chunk chunk = new Chunk();
+		if (maxX < 0) {
+			// nothing to draw
+			return chunk;
+		}
+		chunk.x = tilesToPixels(minX);
+		chunk.y = tilesToPixels(minY);
+		BufferedImage image = gc.createCompatibleImage(tilesToPixels(maxX - minX + 1),
+				tilesToPixels(maxY - minY + 1), getTileTransparency());
+		Graphics2D g = image.createGraphics();
+		for (int y = minY; y <= maxY; y++) {
+			for (int x = minX; x <= maxX; x++) {
+				int index = getTileIndex(firstTileX + x, firstTileY + y);
+				if (index > TileMap.EMPTY_TILE) {
+					g.drawImage(tileMap.getTileImage(index), tilesToPixels(x - minX),
+							tilesToPixels(y - minY), null);
+				}
+			}
+		}
+		g.dispose();
+		chunk.image = image;
+		return chunk;
+	}
+
+	// a snapshot is drawn while the map is updated, so only the tiles in
+	// memory are drawn and the thread updating the map loads the rest
+	private int getTileIndex(int x, int y) {
+		return drawingSnapshot ? tileMap.getLoadedTileIndex(x, y) : tileMap
+				.getTileIndex(x, y);
+	}
+
+	// the least transparency that can hold every tile and the empty tile
+	private int getTileTransparency() {
+		int transparency = Transparency.BITMASK;
+		for (int i = 1; i < tileMap.getPaletteSize(); i++) {
+			Image tile = tileMap.getTileImage(i);
+			if (!(tile instanceof Transparency)) {
+				return Transparency.TRANSLUCENT;
+			}
+			transparency = Math.max(transparency, ((Transparency) tile).getTransparency());
+		}
+		return transparency;
+	}
+
+	// throws away the chunks outside the columns
+	private void dropChunks(int firstChunkX, int lastChunkX) {
+		Iterator<Map.Entry<Integer, Chunk>> i = chunks.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, Chunk> entry = i.next();
+			int chunkX = entry.getKey() / chunkRows;
+			if (chunkX < firstChunkX || chunkX > lastChunkX) {
+				entry.getValue().flush();
+				i.remove();
+			}
+		}
+	}
+
+	private void drawPlayer(Graphics2D g, Sprite player) {
+		player.draw(g, Math.round(player.getInterpolatedX(interpolation)) + offsetX,
+				Math.round(player.getInterpolatedY(interpolation)) + offsetY);
+	}
+
+	// only draws the sprites overlapping the screen, so the cost of a
+	// frame does not grow with the sprites of the whole level
+	private void drawSprites(Graphics2D g) {
+		EntityStore entities = tileMap.getEntities();
+		for (int i = 0; i < entities.size(); i++) {
+			int x = Math.round(entities.getInterpolatedX(i, interpolation)) + offsetX;
+			if (x >= screenWidth || x + entities.getWidth(i) <= 0) {
+				continue;
+			}
+			int y = Math.round(entities.getInterpolatedY(i, interpolation)) + offsetY;
+			entities.getSprite(i).draw(g, x, y);
+		}
+	}
+	
+	private void drawBullets(Graphics2D g) {
+		
+	}
+
+	/**
+	 * The tiles of a chunk, drawn into an image covering only the non-empty
+	 * tiles. The image is null if all tiles are empty.
+	 */
+	private static class Chunk {
+
+		Image image;
+		// where the image starts in the chunk, in pixels
+		int x;
+		int y;
+
+		void flush() {
+			if (image != null) {
+				image.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package moller.resource;
+
+import java.util.Arrays;
+import java.util.List;
+
+import moller.sprites.Animation;
+import moller.sprites.Bullet;
+import moller.sprites.EntityStore;
+import moller.sprites.Player;
+import moller.sprites.Sprite;
+
+/**
+ * The WorldSnapshot class holds what TileMapRenderer needs to draw one tick
+ * of a TileMap: the previous and current position and the animation scene
+ * of the player, of the sprites near the screen and of the bullets, plus
+ * what the game shows of the player. A snapshot is captured on the thread
+ * running the game and drawn on another, so the game can move on while the
+ * snapshot is drawn. See Core.setPipelined.
+ *
+ * The size of the map is captured with the sprites, and the tiles on the
+ * screen are loaded while capturing, so drawing a snapshot only reads tiles
+ * already in memory. See TileMap.getLoadedTileIndex.
+ *
+ * Snapshots are meant to be reused through a TripleBuffer, so capturing one
+ * only allocates when it needs room for more sprites than ever before.
+ */
+public class WorldSnapshot {
+
+	// sprites further than this outside the screen are left out
+	private static final int MARGIN = 2 * TileMapRenderer.TILE_SIZE;
+
+	TileMap tileMap;
+	// the size of the map in pixels
+	int mapWidth;
+	int mapHeight;
+	private long time;
+	private int ammo;
+	private int coins;
+
+	// the player first, then the sprites of the map, then the bullets
+	int count;
+	Animation[] animations = new Animation[64];
+	int[] scenes = new int[64];
+	float[] previousX = new float[64];
+	float[] previousY = new float[64];
+	float[] x = new float[64];
+	float[] y = new float[64];
+
+	/**
+	 * Captures the map and the visible bullets as they are now, for a screen
+	 * the width.
+	 */
+	public void capture(TileMap tileMap, List<Bullet> bullets, int screenWidth) {
+		this.tileMap = tileMap;
+		time = System.nanoTime();
+		int oldCount = count;
+		count = 0;
+
+		Sprite player = tileMap.getPlayer();
+		if (player instanceof Player) {
+			ammo = ((Player) player).getAmmo();
+			coins = ((Player) player).getCoins();
+		}
+		add(player, player.getPreviousX(), player.getPreviousY(), player.getX(),
+				player.getY());
+
+		// the screen may show anything between the camera of the previous
+		// and of the current tick
+		mapWidth = TileMapRenderer.tilesToPixels(tileMap.getWidth());
+		mapHeight = TileMapRenderer.tilesToPixels(tileMap.getHeight());
+		int offsetX = TileMapRenderer.getOffsetX(player.getX(), screenWidth, mapWidth);
+		int previousOffsetX = TileMapRenderer.getOffsetX(player.getPreviousX(),
+				screenWidth, mapWidth);
+		float minX = -Math.max(offsetX, previousOffsetX) - MARGIN;
+		float maxX = -Math.min(offsetX, previousOffsetX) + screenWidth + MARGIN;
+		tileMap.loadColumns(TileMapRenderer.pixelsToTiles(-Math.max(offsetX,
+				previousOffsetX)), TileMapRenderer.pixelsToTiles(-Math.min(offsetX,
+				previousOffsetX) + screenWidth - 1));
+		EntityStore entities = tileMap.getEntities();
+		for (int i = 0; i < entities.size(); i++) {
+			float spriteX = entities.getX(i);
+			if (spriteX < minX || spriteX > maxX) {
+				continue;
+			}
+			add(entities.getSprite(i), entities.getPreviousX(i), entities.getPreviousY(i),
+					spriteX, entities.getY(i));
+		}
+
+		for (int i = 0; i < bullets.size(); i++) {
+			Bullet bullet = bullets.get(i);
+			if (bullet.isVisible()) {
+				add(bullet, bullet.getPreviousX(), bullet.getPreviousY(), bullet.getX(),
+						bullet.getY());
+			}
+		}
+		// let go of the animations of sprites no longer in the snapshot
+		if (count < oldCount) {
+			Arrays.fill(animations, count, oldCount, null);
+		}
+	}
+
+	public TileMap getTileMap() {
+		return tileMap;
+	}
+
+	public int getMapWidth() {
+		return mapWidth;
+	}
+
+	public int getMapHeight() {
+		return mapHeight;
+	}
+
+	/**
+	 * Gets the System.nanoTime() the snapshot was captured at.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public int getAmmo() {
+		return ammo;
+	}
+
+	public int getCoins() {
+		return coins;
+	}
+
+	/**
+	 * Gets the number of sprites in the snapshot, counting the player.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	private void add(Sprite sprite, float fromX, float fromY, float toX, float toY) {
+		if (count == animations.length) {
+			int capacity = count * 2;
+			animations = Arrays.copyOf(animations, capacity);
+			scenes = Arrays.copyOf(scenes, capacity);
+			previousX = Arrays.copyOf(previousX, capacity);
+			previousY = Arrays.copyOf(previousY, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+		}
+		Animation animation = sprite.getAnimation();
+		animations[count] = animation;
+		scenes[count] = sprite.getCurrentScene();
+		previousX[count] = fromX;
+		previousY[count] = fromY;
+		x[count] = toX;
+		y[count] = toY;
+		count++;
+	}
+}
@@ -1,81 +1,118 @@
-package moller.sprites;
-/********************************************************************************************************************************************************************************************
- * Animation.java
- * 
- * The Animation class carries all kind of animation and makes it possible to add scenes to make the image living.
- * 
- * Made By: Emil Mller
- * Email: emilmol@kth.se
- *******************************************************************************************************************************************************************************************/
-
-import java.awt.Image;
-import java.util.ArrayList;
-
-public class Animation {
-
-	private ArrayList scenes;
-	private int currentScene;
-	private long animationTime;
-	private long totalTime;
-
-	public Animation() {
-		this(new ArrayList(), 0);
-	}
-	
-    private Animation(ArrayList frames, long totalTime) {
-        this.scenes = frames;
-        this.totalTime = totalTime;
-        start();
-    }
-
-	public synchronized void addScene(Image i, long time) {
-		totalTime += time;
-		scenes.add(new OneScene(i, totalTime));
-	}
-
-	public synchronized void start() {
-		animationTime = 0;
-		currentScene = 0;
-	}
-	
-    public Object clone() {
-        return new Animation(scenes, totalTime);
-    }
-
-	public synchronized void update(long timePassed) {
-		if (scenes.size() > 1) {
-			animationTime += timePassed;
-
-			if (animationTime >= totalTime) {
-				animationTime = 0;
-				currentScene = 0;
-			}
-			while (animationTime > getScene(currentScene).endTime) {
-				currentScene++;
-			}
-		}
-	}
-
-	public synchronized Image getImage() {
-		if (scenes.size() == 0) {
-			return null;
-		} else {
-			return getScene(currentScene).pic;
-		}
-	}
-
-	private OneScene getScene(int x) {
-		return (OneScene) scenes.get(x);
-	}
-	
-	private class OneScene {
-		
-		Image pic;
-		long endTime;
-
-		public OneScene(Image pic, long endTime) {
-			this.pic = pic;
-			this.endTime = endTime;
-		}
-	}
-}
+package moller.sprites;
+/********************************************************************************************************************************************************************************************
+ * Animation.java
+ * 
+ * The Animation class carries all kind of animation and makes it possible to add scenes to make the image living.
+ * 
+ * Made By: Emil Möller
+ * Email: emilmol@kth.se
+ *******************************************************************************************************************************************************************************************/
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.util.Arrays;
+
+/**
+ * An Animation is a timeline of scenes, each shown for a time before the
+ * next, starting over after the last one. Animations are built while the
+ * game loads and do not change after, so one animation is shared by all
+ * sprites showing it, on any thread, without locking. Each sprite keeps how
+ * far into its animation it is, see Sprite.getCurrentScene(), and the scene
+ * for that time is found by a binary search of the scene end times.
+ */
+public class Animation {
+
+	private int sceneCount;
+	private Image[] pics = new Image[4];
+	private AtlasRegion[] regions = new AtlasRegion[4];
+	// the time each scene ends at, from the start of the animation
+	private long[] endTimes = new long[4];
+	private long totalTime;
+
+	/**
+	 * Adds a scene shown for the time in milliseconds. Must only be called
+	 * while loading, before sprites share the animation.
+	 */
+	public void addScene(Image i, long time) {
+		if (sceneCount == pics.length) {
+			int capacity = sceneCount * 2;
+			pics = Arrays.copyOf(pics, capacity);
+			regions = Arrays.copyOf(regions, capacity);
+			endTimes = Arrays.copyOf(endTimes, capacity);
+		}
+		totalTime += time;
+		pics[sceneCount] = i;
+		endTimes[sceneCount] = totalTime;
+		sceneCount++;
+	}
+
+	/**
+	 * Gets how long the animation runs before it starts over, in
+	 * milliseconds.
+	 */
+	public long getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Gets the number of the scene shown the time in milliseconds into the
+	 * animation.
+	 */
+	public int getSceneAt(long time) {
+		if (sceneCount <= 1 || totalTime <= 0) {
+			return 0;
+		}
+		time %= totalTime;
+		// the first scene ending at or after the time
+		int low = 0;
+		int high = sceneCount - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (endTimes[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Gets the image shown the time in milliseconds into the animation, or
+	 * null if the animation has no scenes.
+	 */
+	public Image getImageAt(long time) {
+		return (sceneCount == 0) ? null : pics[getSceneAt(time)];
+	}
+
+	/**
+	 * Draws the scene with its top left corner at the specified position.
+	 */
+	public void drawScene(Graphics g, int i, int x, int y) {
+		if (i >= sceneCount) {
+			return;
+		}
+		if (regions[i] != null) {
+			regions[i].draw(g, x, y);
+		} else {
+			g.drawImage(pics[i], x, y, null);
+		}
+	}
+
+	public int getSceneCount() {
+		return sceneCount;
+	}
+
+	public Image getSceneImage(int i) {
+		return pics[i];
+	}
+
+	/**
+	 * Makes a scene draw from a region of a texture atlas instead of its own
+	 * image. Must only be called while loading, like addScene.
+	 */
+	public void setSceneRegion(int i, AtlasRegion region) {
+		regions[i] = region;
+		pics[i] = region.getImage();
+	}
+}
@@ -0,0 +1,67 @@
+package moller.sprites;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+
+/**
+ * The AtlasRegion class is a rectangle of a texture atlas page holding one
+ * image. Drawing the region draws straight from the page, so all regions of
+ * a page share one image for the graphics pipeline to cache.
+ */
+public class AtlasRegion {
+
+	private BufferedImage page;
+	private int x;
+	private int y;
+	private int width;
+	private int height;
+	private Image image;
+
+	public AtlasRegion(BufferedImage page, int x, int y, int width, int height) {
+		this.page = page;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	public BufferedImage getPage() {
+		return page;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the region as an image of its own, for code that needs an Image.
+	 * The image shares its pixels with the page.
+	 */
+	public Image getImage() {
+		if (image == null) {
+			image = page.getSubimage(x, y, width, height);
+		}
+		return image;
+	}
+
+	/**
+	 * Draws the region with its top left corner at the specified position.
+	 */
+	public void draw(Graphics g, int drawX, int drawY) {
+		g.drawImage(page, drawX, drawY, drawX + width, drawY + height, x, y, x
+				+ width, y + height, null);
+	}
+}
@@ -1,36 +1,49 @@
-package moller.sprites;
-public abstract class Bullet extends Sprite {
-
-	public static final float BULLET_SPEED = 0.75f;
-	private boolean isVisible;
-	
-	public Bullet(Animation a, float initialX, float initialY) {
-		super(a);
-		this.setX(initialX);
-		this.setY(initialY);
-		isVisible = true;
-	}
-	
-	public void collideHorizontal() {
-		setVisible(false);
-	}
-	
-	public void collideVertical() {
-		setVisible(false);
-	}
-	
-	public void setVisible(boolean var) {
-		isVisible = var;
-	}
-	
-	public boolean isVisible() {
-		return isVisible;
-	}
-
-	public static class HandGunBullet extends Bullet {
-
-		public HandGunBullet(Animation a, float initialX, float initialY) {
-			super(a, initialX, initialY);
-		}
-	}
-}
+package moller.sprites;
+public abstract class Bullet extends Sprite {
+
+	public static final float BULLET_SPEED = 0.75f;
+	private boolean isVisible;
+	
+	public Bullet(Animation a, float initialX, float initialY) {
+		super(a);
+		this.setX(initialX);
+		this.setY(initialY);
+		isVisible = true;
+	}
+	
+	/**
+	 * Makes a used bullet fly again from a new position, see BulletPool.
+	 */
+	public void reset(Animation a, float initialX, float initialY, float velocityX) {
+		setAnimation(a);
+		setX(initialX);
+		setY(initialY);
+		setVelocityX(velocityX);
+		setVelocityY(0);
+		savePreviousPosition();
+		isVisible = true;
+	}
+
+	public void collideHorizontal() {
+		setVisible(false);
+	}
+	
+	public void collideVertical() {
+		setVisible(false);
+	}
+	
+	public void setVisible(boolean var) {
+		isVisible = var;
+	}
+	
+	public boolean isVisible() {
+		return isVisible;
+	}
+
+	public static class HandGunBullet extends Bullet {
+
+		public HandGunBullet(Animation a, float initialX, float initialY) {
+			super(a, initialX, initialY);
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package moller.sprites;
+
+import java.awt.Image;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The EntityStore class keeps the state of many Sprites in parallel primitive
+ * arrays, so loops over all entities walk memory in order instead of chasing
+ * one object per entity.
+ *
+ * Entities are packed at the indices 0 to size() - 1. Removing an entity moves
+ * the last entity into the free index, so indices change when entities are
+ * removed. Use handles to refer to an entity over time: a handle stays the
+ * same for the lifetime of the entity. Once the entity is removed its handle
+ * is no longer valid, until the id in it has been reused 512 times and the
+ * generation in the handle wraps around.
+ *
+ * A Sprite added to the store reads and writes its position, velocity, size,
+ * state and animation time through the store until it is removed again. The
+ * loops taking an array of indices move, advance and wake up entities
+ * straight on the arrays, without calling Sprite.update, so sprites kept in a
+ * store must not depend on overriding it. Only a creature changing direction
+ * or state calls back into its Sprite to pick its new animation.
+ */
+public class EntityStore {
+
+	public static final int NO_HANDLE = -1;
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	// start and multiplier of the FNV-1a hash used by stateHash
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// a handle is the generation of the id in the high bits and the id in
+	// the low bits
+	private static final int ID_BITS = 22;
+	private static final int ID_MASK = (1 << ID_BITS) - 1;
+	private static final int GENERATION_MASK = (1 << (31 - ID_BITS)) - 1;
+
+	// bits of flags
+	private static final int CREATURE = 1;
+	private static final int FLYING = 2;
+	// an animation key no entity has, so the animation is picked on the
+	// first advance
+	private static final int NO_ANIMATION_KEY = Integer.MIN_VALUE;
+
+	private int size;
+
+	// entity data, by index
+	Sprite[] sprites;
+	float[] x;
+	float[] y;
+	float[] velocityX;
+	float[] velocityY;
+	float[] previousX;
+	float[] previousY;
+	// the size of the image shown when the animation last changed
+	int[] width;
+	int[] height;
+	int[] state;
+	long[] animationTime;
+	long[] stateTime;
+	private int[] flags;
+	private float[] maxSpeed;
+	// the state and direction a creature's animation was picked for
+	private int[] animationKey;
+	private int[] idOfIndex;
+
+	// id data, by id
+	private int[] indexOfId;
+	private int[] generationOfId;
+	private int[] freeIds;
+	private int freeIdCount;
+	private int idCount;
+
+	public EntityStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public EntityStore(int capacity) {
+		capacity = Math.max(capacity, 1);
+		sprites = new Sprite[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		velocityX = new float[capacity];
+		velocityY = new float[capacity];
+		previousX = new float[capacity];
+		previousY = new float[capacity];
+		width = new int[capacity];
+		height = new int[capacity];
+		state = new int[capacity];
+		animationTime = new long[capacity];
+		stateTime = new long[capacity];
+		flags = new int[capacity];
+		maxSpeed = new float[capacity];
+		animationKey = new int[capacity];
+		idOfIndex = new int[capacity];
+		indexOfId = new int[capacity];
+		generationOfId = new int[capacity];
+		freeIds = new int[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Adds the sprite and returns its handle. From now on the sprite keeps
+	 * its state in this store.
+	 */
+	public int add(Sprite sprite) {
+		if (sprite.store != null) {
+			throw new IllegalArgumentException("sprite is already in a store");
+		}
+		if (size == sprites.length) {
+			grow();
+		}
+		int id = allocateId();
+		int index = size++;
+		sprites[index] = sprite;
+		x[index] = sprite.getX();
+		y[index] = sprite.getY();
+		velocityX[index] = sprite.getVelocityX();
+		velocityY[index] = sprite.getVelocityY();
+		previousX[index] = sprite.getPreviousX();
+		previousY[index] = sprite.getPreviousY();
+		width[index] = sprite.getWidth();
+		height[index] = sprite.getHeight();
+		animationTime[index] = sprite.getAnimationTime();
+		if (sprite instanceof Creature) {
+			Creature creature = (Creature) sprite;
+			state[index] = creature.getState();
+			stateTime[index] = creature.getStateTime();
+			flags[index] = creature.isFlying() ? CREATURE | FLYING : CREATURE;
+			maxSpeed[index] = creature.getMaxSpeed();
+		} else {
+			state[index] = Creature.STATE_NORMAL;
+			stateTime[index] = 0;
+			flags[index] = 0;
+			maxSpeed[index] = 0;
+		}
+		animationKey[index] = NO_ANIMATION_KEY;
+		idOfIndex[index] = id;
+		indexOfId[id] = index;
+		sprite.attach(this, index);
+		return toHandle(id);
+	}
+
+	/**
+	 * Removes the entity of the handle. Returns false if the handle is no
+	 * longer valid.
+	 */
+	public boolean remove(int handle) {
+		int index = indexOf(handle);
+		if (index < 0) {
+			return false;
+		}
+		removeAt(index);
+		return true;
+	}
+
+	public boolean remove(Sprite sprite) {
+		if (sprite.store != this) {
+			return false;
+		}
+		removeAt(sprite.index);
+		return true;
+	}
+
+	/**
+	 * Removes the entity at the index in constant time by moving the last
+	 * entity into its place. The sprite gets its state back.
+	 */
+	public void removeAt(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+		}
+		Sprite sprite = sprites[index];
+		sprite.detach();
+		releaseId(idOfIndex[index]);
+
+		int last = --size;
+		if (index != last) {
+			sprites[index] = sprites[last];
+			x[index] = x[last];
+			y[index] = y[last];
+			velocityX[index] = velocityX[last];
+			velocityY[index] = velocityY[last];
+			previousX[index] = previousX[last];
+			previousY[index] = previousY[last];
+			width[index] = width[last];
+			height[index] = height[last];
+			state[index] = state[last];
+			animationTime[index] = animationTime[last];
+			stateTime[index] = stateTime[last];
+			flags[index] = flags[last];
+			maxSpeed[index] = maxSpeed[last];
+			animationKey[index] = animationKey[last];
+			idOfIndex[index] = idOfIndex[last];
+			indexOfId[idOfIndex[index]] = index;
+			sprites[index].index = index;
+		}
+		sprites[last] = null;
+	}
+
+	public void clear() {
+		while (size > 0) {
+			removeAt(size - 1);
+		}
+	}
+
+	public boolean isValid(int handle) {
+		return indexOf(handle) >= 0;
+	}
+
+	/**
+	 * Gets the current index of the entity of the handle, or -1 if the
+	 * entity has been removed.
+	 */
+	public int indexOf(int handle) {
+		if (handle < 0) {
+			return -1;
+		}
+		int id = handle & ID_MASK;
+		if (id >= idCount || generationOfId[id] != (handle >>> ID_BITS)) {
+			return -1;
+		}
+		return indexOfId[id];
+	}
+
+	public int getHandle(int index) {
+		return toHandle(idOfIndex[index]);
+	}
+
+	public int getHandle(Sprite sprite) {
+		if (sprite.store != this) {
+			return NO_HANDLE;
+		}
+		return getHandle(sprite.index);
+	}
+
+	/**
+	 * Gets the current index of the sprite, or -1 if it is not in this
+	 * store.
+	 */
+	public int indexOf(Sprite sprite) {
+		return (sprite.store == this) ? sprite.index : -1;
+	}
+
+	public Sprite getSprite(int index) {
+		return sprites[index];
+	}
+
+	public float getX(int index) {
+		return x[index];
+	}
+
+	public float getY(int index) {
+		return y[index];
+	}
+
+	public float getVelocityX(int index) {
+		return velocityX[index];
+	}
+
+	public float getVelocityY(int index) {
+		return velocityY[index];
+	}
+
+	public float getPreviousX(int index) {
+		return previousX[index];
+	}
+
+	public float getPreviousY(int index) {
+		return previousY[index];
+	}
+
+	public float getInterpolatedX(int index, float alpha) {
+		return previousX[index] + (x[index] - previousX[index]) * alpha;
+	}
+
+	public float getInterpolatedY(int index, float alpha) {
+		return previousY[index] + (y[index] - previousY[index]) * alpha;
+	}
+
+	public void savePreviousPosition(int index) {
+		previousX[index] = x[index];
+		previousY[index] = y[index];
+	}
+
+	public int getWidth(int index) {
+		return width[index];
+	}
+
+	public int getHeight(int index) {
+		return height[index];
+	}
+
+	public int getState(int index) {
+		return state[index];
+	}
+
+	public boolean isCreature(int index) {
+		return (flags[index] & CREATURE) != 0;
+	}
+
+	/**
+	 * Saves the current position as the previous one for the entities at
+	 * indices[start] to indices[end - 1].
+	 */
+	public void savePreviousPositions(int[] indices, int start, int end) {
+		for (int n = start; n < end; n++) {
+			int i = indices[n];
+			previousX[i] = x[i];
+			previousY[i] = y[i];
+		}
+	}
+
+	/**
+	 * Adds the amount to the y velocity of the creatures that do not fly
+	 * among the entities at indices[start] to indices[end - 1].
+	 */
+	public void applyGravity(int[] indices, int start, int end, float amount) {
+		for (int n = start; n < end; n++) {
+			int i = indices[n];
+			if ((flags[i] & (CREATURE | FLYING)) == CREATURE) {
+				velocityY[i] += amount;
+			}
+		}
+	}
+
+	/**
+	 * Moves the entities at indices[start] to indices[end - 1] on by the
+	 * time in milliseconds, like Sprite.update: other sprites than
+	 * creatures move by their velocity, animations move on and dying
+	 * creatures die. Creatures are moved by the caller, who checks them
+	 * against the tiles.
+	 */
+	public void advance(int[] indices, int start, int end, long elapsedTime) {
+		for (int n = start; n < end; n++) {
+			int i = indices[n];
+			if ((flags[i] & CREATURE) == 0) {
+				x[i] += velocityX[i] * elapsedTime;
+				y[i] += velocityY[i] * elapsedTime;
+				animationTime[i] += elapsedTime;
+				continue;
+			}
+			// the animation only changes with the direction or the state
+			int key = (velocityX[i] < 0) ? -1 - state[i] : (velocityX[i] > 0) ? 1
+					+ state[i] : 0x100 + state[i];
+			if (key != animationKey[i]) {
+				animationKey[i] = key;
+				((Creature) sprites[i]).updateAnimation(elapsedTime);
+			} else {
+				animationTime[i] += elapsedTime;
+			}
+			stateTime[i] += elapsedTime;
+			if (state[i] == Creature.STATE_DYING && stateTime[i] >= Creature.TIME_TO_DIE) {
+				((Creature) sprites[i]).setState(Creature.STATE_DEAD);
+			}
+		}
+	}
+
+	/**
+	 * Wakes up the creatures among the entities at indices[start] to
+	 * indices[end - 1] whose left side is on a screen the width, drawn with
+	 * the x offset, see Creature.wakeUp.
+	 */
+	public void wakeUp(int[] indices, int start, int end, int offsetX, int screenWidth) {
+		for (int n = start; n < end; n++) {
+			int i = indices[n];
+			int screenX = Math.round(x[i]) + offsetX;
+			if ((flags[i] & CREATURE) != 0 && screenX >= 0 && screenX < screenWidth
+					&& state[i] == Creature.STATE_NORMAL && velocityX[i] == 0) {
+				velocityX[i] = -maxSpeed[i];
+			}
+		}
+	}
+
+	/**
+	 * Checks if the entity is alive and overlaps the rectangle, with its
+	 * position rounded to whole pixels.
+	 */
+	public boolean intersects(int index, int left, int top, int width, int height) {
+		if (state[index] != Creature.STATE_NORMAL) {
+			return false;
+		}
+		int entityX = Math.round(x[index]);
+		int entityY = Math.round(y[index]);
+		return left < entityX + this.width[index] && entityX < left + width
+				&& top < entityY + this.height[index] && entityY < top + height;
+	}
+
+	// the animation of the entity was changed by its Sprite
+	void animationChanged(int index) {
+		animationTime[index] = 0;
+		Image image = sprites[index].getAnimation().getImageAt(0);
+		width[index] = image.getWidth(null);
+		height[index] = image.getHeight(null);
+	}
+
+	/**
+	 * Gets a hash of the position, velocity and state of every entity in
+	 * index order, to check that two runs of a simulation ended the same.
+	 */
+	public long stateHash() {
+		long hash = mix(FNV_OFFSET, size);
+		for (int i = 0; i < size; i++) {
+			hash = mix(hash, Float.floatToIntBits(x[i]));
+			hash = mix(hash, Float.floatToIntBits(y[i]));
+			hash = mix(hash, Float.floatToIntBits(velocityX[i]));
+			hash = mix(hash, Float.floatToIntBits(velocityY[i]));
+			hash = mix(hash, state[i]);
+		}
+		return hash;
+	}
+
+	/**
+	 * Adds the value to a 64 bit FNV-1a hash.
+	 */
+	public static long mix(long hash, int value) {
+		return (hash ^ value) * FNV_PRIME;
+	}
+
+	/**
+	 * Gets an iterator over all sprites in index order. Removing through the
+	 * iterator is supported and keeps the iteration going over the entity
+	 * moved into the freed index.
+	 */
+	public Iterator<Sprite> iterator() {
+		return new Iterator<Sprite>() {
+			private int next;
+			private int last = -1;
+
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			public Sprite next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				last = next++;
+				return sprites[last];
+			}
+
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(last);
+				next = last;
+				last = -1;
+			}
+		};
+	}
+
+	private int allocateId() {
+		if (freeIdCount > 0) {
+			return freeIds[--freeIdCount];
+		}
+		if (idCount > ID_MASK) {
+			throw new IllegalStateException("too many entities");
+		}
+		if (idCount == indexOfId.length) {
+			int capacity = indexOfId.length * 2;
+			indexOfId = Arrays.copyOf(indexOfId, capacity);
+			generationOfId = Arrays.copyOf(generationOfId, capacity);
+			freeIds = Arrays.copyOf(freeIds, capacity);
+		}
+		return idCount++;
+	}
+
+	private void releaseId(int id) {
+		generationOfId[id] = (generationOfId[id] + 1) & GENERATION_MASK;
+		freeIds[freeIdCount++] = id;
+	}
+
+	private int toHandle(int id) {
+		return (generationOfId[id] << ID_BITS) | id;
+	}
+
+	private void grow() {
+		int capacity = sprites.length * 2;
+		sprites = Arrays.copyOf(sprites, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		velocityX = Arrays.copyOf(velocityX, capacity);
+		velocityY = Arrays.copyOf(velocityY, capacity);
+		previousX = Arrays.copyOf(previousX, capacity);
+		previousY = Arrays.copyOf(previousY, capacity);
+		width = Arrays.copyOf(width, capacity);
+		height = Arrays.copyOf(height, capacity);
+		state = Arrays.copyOf(state, capacity);
+		animationTime = Arrays.copyOf(animationTime, capacity);
+		stateTime = Arrays.copyOf(stateTime, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+		maxSpeed = Arrays.copyOf(maxSpeed, capacity);
+		animationKey = Arrays.copyOf(animationKey, capacity);
+		idOfIndex = Arrays.copyOf(idOfIndex, capacity);
+	}
+}
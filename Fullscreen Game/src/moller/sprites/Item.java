@@ -1,40 +1,47 @@
-package moller.sprites;
-import java.lang.reflect.Constructor;
-
-public abstract class Item extends Sprite {
-
-	public Item(Animation animation) {
-		super(animation);
-	}
-
-    public Object clone() {
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)animation.clone()});
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
-    }
-	
-	public static class Ammo extends Item {
-		public Ammo(Animation animation) {
-			super(animation);
-		}
-	}
-
-	public static class Coin extends Item {
-		public Coin(Animation animation) {
-			super(animation);
-		}
-	}
-
-	public static class Goal extends Item {
-		public Goal(Animation animation) {
-			super(animation);
-		}
-	}
-}
+package moller.sprites;
+
+public abstract class Item extends Sprite {
+
+	public Item(Animation animation) {
+		super(animation);
+	}
+
+	public Object clone() {
+		return newInstance(animation);
+	}
+
+	/**
+	 * Creates an item of the class with its constructor.
+	 */
+	protected abstract Item newInstance(Animation animation);
+
+	public static class Ammo extends Item {
+		public Ammo(Animation animation) {
+			super(animation);
+		}
+
+		protected Item newInstance(Animation animation) {
+			return new Ammo(animation);
+		}
+	}
+
+	public static class Coin extends Item {
+		public Coin(Animation animation) {
+			super(animation);
+		}
+
+		protected Item newInstance(Animation animation) {
+			return new Coin(animation);
+		}
+	}
+
+	public static class Goal extends Item {
+		public Goal(Animation animation) {
+			super(animation);
+		}
+
+		protected Item newInstance(Animation animation) {
+			return new Goal(animation);
+		}
+	}
+}
@@ -1,70 +1,197 @@
-package moller.sprites;
-import java.awt.Image;
-
-
-public class Sprite {
-
-	protected Animation animation;
-	private float x;
-	private float y;
-	private float velocityX;
-	private float velociyY;
-	
-	public Sprite(Animation a) {
-		this.animation = a;
-	}
-	
-	public void update(long timePassed) {
-		x += velocityX * timePassed;
-		y += velociyY * timePassed;
-		animation.update(timePassed);
-	}
-	
-	public float getX() {
-		return x;
-	}
-	
-	public float getY() {
-		return y;
-	}
-	
-	public void setX(float x) {
-		this.x = x;
-	}
-	
-	public void setY(float y) {
-		this.y = y;
-	}
-	
-	public int getWidth() {
-		return animation.getImage().getWidth(null);
-	}
-	
-	public int getHeight() {
-		return animation.getImage().getHeight(null);
-	}
-	
-	public float getVelocityX() {
-		return velocityX;
-	}
-	
-	public float getVelocityY() {
-		return velociyY;
-	}
-	
-	public void setVelocityX(float vx) {
-		this.velocityX = vx;
-	}
-	
-	public void setVelocityY(float vy) {
-		this.velociyY = vy;
-	}
-	
-	public Image getImage() {
-		return animation.getImage();
-	}
-	
-    public Object clone() {
-        return new Sprite(animation);
-    }
-}
+package moller.sprites;
+import java.awt.Graphics;
+import java.awt.Image;
+
+
+public class Sprite {
+
+	protected Animation animation;
+	// how far into the animation the sprite is, in milliseconds
+	private long animationTime;
+	private float x;
+	private float y;
+	private float velocityX;
+	private float velociyY;
+	private float previousX;
+	private float previousY;
+
+	// set while the sprite keeps its state in an EntityStore
+	EntityStore store;
+	int index;
+	
+	public Sprite(Animation a) {
+		this.animation = a;
+	}
+	
+	public void update(long timePassed) {
+		setX(getX() + getVelocityX() * timePassed);
+		setY(getY() + getVelocityY() * timePassed);
+		advanceAnimation(timePassed);
+	}
+	
+	public float getX() {
+		return (store == null) ? x : store.x[index];
+	}
+	
+	public float getY() {
+		return (store == null) ? y : store.y[index];
+	}
+	
+	public void setX(float x) {
+		if (store == null) {
+			this.x = x;
+		} else {
+			store.x[index] = x;
+		}
+	}
+	
+	public void setY(float y) {
+		if (store == null) {
+			this.y = y;
+		} else {
+			store.y[index] = y;
+		}
+	}
+
+	/**
+	 * Remembers the current position as the position of the previous tick.
+	 * Called before each tick moves the sprite, and after the sprite has
+	 * been placed so it is not drawn sliding in from its old position.
+	 */
+	public void savePreviousPosition() {
+		if (store == null) {
+			previousX = x;
+			previousY = y;
+		} else {
+			store.savePreviousPosition(index);
+		}
+	}
+
+	public float getPreviousX() {
+		return (store == null) ? previousX : store.previousX[index];
+	}
+
+	public float getPreviousY() {
+		return (store == null) ? previousY : store.previousY[index];
+	}
+
+	/**
+	 * Gets the x position between the previous and the current tick, where
+	 * alpha 0 is the previous and alpha 1 the current position.
+	 */
+	public float getInterpolatedX(float alpha) {
+		float previousX = getPreviousX();
+		return previousX + (getX() - previousX) * alpha;
+	}
+
+	public float getInterpolatedY(float alpha) {
+		float previousY = getPreviousY();
+		return previousY + (getY() - previousY) * alpha;
+	}
+	
+	/**
+	 * Gets the width of the current image, or of the image shown when the
+	 * animation last changed while the sprite is in an EntityStore.
+	 */
+	public int getWidth() {
+		return (store == null) ? getImage().getWidth(null) : store.width[index];
+	}
+	
+	public int getHeight() {
+		return (store == null) ? getImage().getHeight(null) : store.height[index];
+	}
+	
+	public float getVelocityX() {
+		return (store == null) ? velocityX : store.velocityX[index];
+	}
+	
+	public float getVelocityY() {
+		return (store == null) ? velociyY : store.velocityY[index];
+	}
+	
+	public void setVelocityX(float vx) {
+		if (store == null) {
+			this.velocityX = vx;
+		} else {
+			store.velocityX[index] = vx;
+		}
+	}
+	
+	public void setVelocityY(float vy) {
+		if (store == null) {
+			this.velociyY = vy;
+		} else {
+			store.velocityY[index] = vy;
+		}
+	}
+	
+	public Image getImage() {
+		return animation.getImageAt(getAnimationTime());
+	}
+
+	public Animation getAnimation() {
+		return animation;
+	}
+
+	/**
+	 * Shows another animation from its start.
+	 */
+	protected void setAnimation(Animation animation) {
+		this.animation = animation;
+		if (store == null) {
+			animationTime = 0;
+		} else {
+			store.animationChanged(index);
+		}
+	}
+
+	long getAnimationTime() {
+		return (store == null) ? animationTime : store.animationTime[index];
+	}
+
+	// moves the animation on by the time in milliseconds
+	void advanceAnimation(long time) {
+		if (store == null) {
+			animationTime += time;
+		} else {
+			store.animationTime[index] += time;
+		}
+	}
+
+	/**
+	 * Gets the number of the scene of the animation shown now, to draw it
+	 * later with Animation.drawScene even if the sprite has moved on.
+	 */
+	public int getCurrentScene() {
+		return animation.getSceneAt(getAnimationTime());
+	}
+
+	/**
+	 * Draws the current image with its top left corner at the specified
+	 * position.
+	 */
+	public void draw(Graphics g, int x, int y) {
+		animation.drawScene(g, getCurrentScene(), x, y);
+	}
+	
+	void attach(EntityStore store, int index) {
+		this.store = store;
+		this.index = index;
+	}
+
+	// copies the state back from the store before the sprite leaves it
+	void detach() {
+		x = store.x[index];
+		y = store.y[index];
+		velocityX = store.velocityX[index];
+		velociyY = store.velocityY[index];
+		previousX = store.previousX[index];
+		previousY = store.previousY[index];
+		animationTime = store.animationTime[index];
+		store = null;
+	}
+	
+    public Object clone() {
+        return new Sprite(animation);
+    }
+}
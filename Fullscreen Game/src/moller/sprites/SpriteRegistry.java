@@ -0,0 +1,45 @@
+package moller.sprites;
+
+/**
+ * The SpriteRegistry class maps the characters of a level to the prototype
+ * sprites spawned for them. A spawned sprite is a clone of its prototype,
+ * made with the constructor of its class, so it shares the animations of
+ * the prototype but none of its state.
+ *
+ * Looking a character up is an array index, so a level with many sprites
+ * loads without a chain of comparisons for every one of them.
+ */
+public class SpriteRegistry {
+
+	// level characters are ASCII
+	private static final int MAX_CHAR = 128;
+
+	private Sprite[] prototypes = new Sprite[MAX_CHAR];
+
+	/**
+	 * Spawns clones of the prototype for the level character, or nothing
+	 * if the prototype is null.
+	 */
+	public void register(char ch, Sprite prototype) {
+		if (ch >= MAX_CHAR) {
+			throw new IllegalArgumentException("not an ASCII character: " + ch);
+		}
+		prototypes[ch] = prototype;
+	}
+
+	/**
+	 * Gets the prototype of the level character, or null if it has none.
+	 */
+	public Sprite getPrototype(char ch) {
+		return (ch < MAX_CHAR) ? prototypes[ch] : null;
+	}
+
+	/**
+	 * Creates a sprite for the level character, or returns null if it has
+	 * no prototype.
+	 */
+	public Sprite create(char ch) {
+		Sprite prototype = getPrototype(ch);
+		return (prototype == null) ? null : (Sprite) prototype.clone();
+	}
+}